@@ -0,0 +1,377 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pontusvision.nifi.office365;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/*
+ * A compact in-memory table of users: one row per user, one column (a String array) per field.  Rows are found by
+ * user id through an open addressing table keyed by the two longs of the id GUID (so no String or boxed key per
+ * user), or by lower cased userPrincipalName / mail through a single map.  Values are interned in a pool, so the
+ * values shared by many users (departments, job titles, offices) are only held once.
+ *
+ * Removed users leave their row behind, and values replaced by updates stay in the pool, so the index is compacted
+ * (rebuilt from its live rows) once the removed rows outnumber the live ones, or the pool has doubled since the last
+ * compaction.
+ *
+ * Not thread safe; the lookup service guards it with a read/write lock.
+ */
+final class PontusMicrosoftGraphUserIndex
+{
+  private static final int NO_ROW = -1;
+
+  // below these, the index is never compacted
+  private static final int MIN_COMPACT_ROWS = 1024;
+  private static final int MIN_COMPACT_POOL = 4096;
+
+  private final String[]            fields;
+  private final int                 upnColumn;
+  private final int                 mailColumn;
+  private final Map<String, String> pool   = new HashMap<>();
+  private final Map<String, Integer> byName = new HashMap<>();
+
+  // open addressing table: slot -> row + 1 (0 is an empty slot)
+  private long[] slotHi   = new long[1024];
+  private long[] slotLo   = new long[1024];
+  private int[]  slotRows = new int[1024];
+
+  private long[]     rowHi   = new long[1024];
+  private long[]     rowLo   = new long[1024];
+  private boolean[]  removed = new boolean[1024];
+  private String[][] columns;
+  private int        rows    = 0;
+  private int        live    = 0;
+  private int        pooled  = 0;
+
+  PontusMicrosoftGraphUserIndex(List<String> fields)
+  {
+    this.fields = fields.toArray(new String[0]);
+    this.upnColumn = fields.indexOf("userPrincipalName");
+    this.mailColumn = fields.indexOf("mail");
+    this.columns = new String[this.fields.length][1024];
+  }
+
+  String[] getFields()
+  {
+    return fields;
+  }
+
+  int getColumn(String field)
+  {
+    for (int i = 0; i < fields.length; i++)
+    {
+      if (fields[i].equals(field))
+      {
+        return i;
+      }
+    }
+    return NO_ROW;
+  }
+
+  int size()
+  {
+    return live;
+  }
+
+  // the number of rows (live or removed) and pooled values, for the tests
+  int getRows()
+  {
+    return rows;
+  }
+
+  int getPoolSize()
+  {
+    return pool.size();
+  }
+
+  /*
+   * Adds or updates a user; only the fields present in values (by column) are changed, as delta pages only hold
+   * the properties that changed.  A null value clears the field.
+   */
+  void upsert(String id, Map<Integer, String> values)
+  {
+    UUID uuid = parseId(id);
+    if (uuid == null)
+    {
+      return;
+    }
+
+    int row = findRow(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    if (row == NO_ROW)
+    {
+      row = addRow(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+    else if (removed[row])
+    {
+      removed[row] = false;
+      live++;
+    }
+
+    unindexNames(row);
+    for (Map.Entry<Integer, String> value : values.entrySet())
+    {
+      columns[value.getKey()][row] = intern(value.getValue());
+    }
+    indexNames(row);
+    compactIfNeeded();
+  }
+
+  void remove(String id)
+  {
+    UUID uuid = parseId(id);
+    int  row  = uuid == null ? NO_ROW : findRow(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    if (row == NO_ROW || removed[row])
+    {
+      return;
+    }
+    unindexNames(row);
+    for (String[] column : columns)
+    {
+      column[row] = null;
+    }
+    removed[row] = true;
+    live--;
+    compactIfNeeded();
+  }
+
+  /*
+   * Returns the value of the column for the user with the given id, userPrincipalName or mail, or null.
+   */
+  String lookup(String key, int column)
+  {
+    int row = NO_ROW;
+
+    UUID uuid = parseId(key);
+    if (uuid != null)
+    {
+      row = findRow(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+    if (row == NO_ROW)
+    {
+      Integer named = byName.get(key.toLowerCase());
+      row = named == null ? NO_ROW : named;
+    }
+    if (row == NO_ROW || removed[row])
+    {
+      return null;
+    }
+    return column == NO_ROW ? new UUID(rowHi[row], rowLo[row]).toString() : columns[column][row];
+  }
+
+  /*
+   * A rough estimate of the heap held by the index, in bytes: the arrays, the pooled strings, and the name map.
+   */
+  long getEstimatedMemoryUse()
+  {
+    long bytes = (long) slotHi.length * (8 + 8 + 4);
+    // every row array has the same capacity, and there may be no columns at all (only the id is kept)
+    bytes += (long) rowHi.length * (8 + 8 + 1 + 4 * columns.length);
+    for (String value : pool.keySet())
+    {
+      bytes += 40 + 2L * value.length();
+    }
+    bytes += (long) byName.size() * 48;
+    return bytes;
+  }
+
+  private static UUID parseId(String id)
+  {
+    if (id == null || id.length() != 36)
+    {
+      return null;
+    }
+    try
+    {
+      return UUID.fromString(id);
+    }
+    catch (IllegalArgumentException ex)
+    {
+      return null;
+    }
+  }
+
+  private String intern(String value)
+  {
+    if (value == null)
+    {
+      return null;
+    }
+    String pooled = pool.putIfAbsent(value, value);
+    return pooled != null ? pooled : value;
+  }
+
+  private void indexNames(int row)
+  {
+    if (upnColumn >= 0 && columns[upnColumn][row] != null)
+    {
+      byName.put(columns[upnColumn][row].toLowerCase(), row);
+    }
+    if (mailColumn >= 0 && columns[mailColumn][row] != null)
+    {
+      byName.put(columns[mailColumn][row].toLowerCase(), row);
+    }
+  }
+
+  private void unindexNames(int row)
+  {
+    if (upnColumn >= 0 && columns[upnColumn][row] != null)
+    {
+      byName.remove(columns[upnColumn][row].toLowerCase(), row);
+    }
+    if (mailColumn >= 0 && columns[mailColumn][row] != null)
+    {
+      byName.remove(columns[mailColumn][row].toLowerCase(), row);
+    }
+  }
+
+  private static int hash(long hi, long lo, int mask)
+  {
+    long h = hi * 0x9E3779B97F4A7C15L ^ lo;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  private int findRow(long hi, long lo)
+  {
+    int mask = slotRows.length - 1;
+    for (int slot = hash(hi, lo, mask); slotRows[slot] != 0; slot = (slot + 1) & mask)
+    {
+      if (slotHi[slot] == hi && slotLo[slot] == lo)
+      {
+        return slotRows[slot] - 1;
+      }
+    }
+    return NO_ROW;
+  }
+
+  private int addRow(long hi, long lo)
+  {
+    if (rows == rowHi.length)
+    {
+      int capacity = rows * 2;
+      rowHi = Arrays.copyOf(rowHi, capacity);
+      rowLo = Arrays.copyOf(rowLo, capacity);
+      removed = Arrays.copyOf(removed, capacity);
+      for (int i = 0; i < columns.length; i++)
+      {
+        columns[i] = Arrays.copyOf(columns[i], capacity);
+      }
+    }
+    // keep the table at most half full
+    if ((rows + 1) * 2 > slotRows.length)
+    {
+      rehash(slotRows.length * 2);
+    }
+
+    int row = rows++;
+    rowHi[row] = hi;
+    rowLo[row] = lo;
+    live++;
+    putSlot(hi, lo, row);
+    return row;
+  }
+
+  private void putSlot(long hi, long lo, int row)
+  {
+    int mask = slotRows.length - 1;
+    int slot = hash(hi, lo, mask);
+    while (slotRows[slot] != 0)
+    {
+      slot = (slot + 1) & mask;
+    }
+    slotHi[slot] = hi;
+    slotLo[slot] = lo;
+    slotRows[slot] = row + 1;
+  }
+
+  private void compactIfNeeded()
+  {
+    if (rows - live > Math.max(MIN_COMPACT_ROWS, live) || pool.size() > Math.max(MIN_COMPACT_POOL, pooled * 2))
+    {
+      compact();
+    }
+  }
+
+  /*
+   * Moves the live rows down over the removed ones, re-interns their values into a new pool, and rebuilds the id
+   * table and the name map; the arrays are shrunk to fit (keeping the initial capacity).
+   */
+  void compact()
+  {
+    int capacity = 1024;
+    while (capacity < live)
+    {
+      capacity *= 2;
+    }
+
+    long[]     newHi      = new long[capacity];
+    long[]     newLo      = new long[capacity];
+    String[][] newColumns = new String[columns.length][capacity];
+    pool.clear();
+    byName.clear();
+
+    int next = 0;
+    for (int row = 0; row < rows; row++)
+    {
+      if (removed[row])
+      {
+        continue;
+      }
+      newHi[next] = rowHi[row];
+      newLo[next] = rowLo[row];
+      for (int i = 0; i < columns.length; i++)
+      {
+        newColumns[i][next] = intern(columns[i][row]);
+      }
+      next++;
+    }
+
+    rowHi = newHi;
+    rowLo = newLo;
+    removed = new boolean[capacity];
+    columns = newColumns;
+    rows = next;
+    live = next;
+    pooled = pool.size();
+
+    // keep the table at most half full, as addRow does
+    int slots = 1024;
+    while (slots < rows * 2)
+    {
+      slots *= 2;
+    }
+    rehash(slots);
+    for (int row = 0; row < rows; row++)
+    {
+      indexNames(row);
+    }
+  }
+
+  private void rehash(int capacity)
+  {
+    slotHi = new long[capacity];
+    slotLo = new long[capacity];
+    slotRows = new int[capacity];
+    for (int row = 0; row < rows; row++)
+    {
+      putSlot(rowHi[row], rowLo[row], row);
+    }
+  }
+}
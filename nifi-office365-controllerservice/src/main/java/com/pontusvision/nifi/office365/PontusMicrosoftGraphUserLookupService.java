@@ -0,0 +1,391 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pontusvision.nifi.office365;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.core.ClientException;
+import com.microsoft.graph.http.GraphServiceException;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+import com.microsoft.graph.models.extensions.User;
+import com.microsoft.graph.requests.extensions.IUserDeltaCollectionPage;
+import com.microsoft.graph.requests.extensions.IUserDeltaCollectionRequest;
+import com.microsoft.graph.requests.extensions.UserDeltaCollectionRequestBuilder;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.lookup.StringLookupService;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+@Tags({ "Pontus", "Microsoft", "Graph", "Office 365", "User", "lookup", "enrich" })
+@CapabilityDescription("Looks up Office 365 users by id, userPrincipalName or mail, and returns one of their fields "
+    + "(e.g. to enrich messages by office365_user_id).  The users are held in a compact in-memory index, loaded with "
+    + "users/delta when the service is enabled, and kept up to date by running the delta link every Refresh "
+    + "Interval (removed users are dropped).  Lookups never call Graph; until the first load completes, they find "
+    + "nothing.  The size and estimated memory use of the index are logged after each refresh.")
+public class PontusMicrosoftGraphUserLookupService extends AbstractControllerService implements StringLookupService
+{
+  public static final String KEY   = "key";
+  public static final String FIELD = "field";
+
+  public static final String MANAGER_ID = "managerId";
+
+  public final static PropertyDescriptor SERVICE = new PropertyDescriptor
+    .Builder()
+    .name("Controller Service")
+    .displayName("Controller Service")
+    .description("Authentication Controller Service")
+    .required(true)
+    .identifiesControllerService(PontusMicrosoftGraphAuthControllerServiceInterface.class)
+    .build();
+
+  public final static PropertyDescriptor USER_FIELDS = new PropertyDescriptor
+    .Builder()
+    .name("User Fields")
+    .description("Comma-separated list of the user fields held in the index (the id is always held); "
+        + "userPrincipalName and mail, if listed, can also be used as lookup keys.")
+    .required(true)
+    .defaultValue("userPrincipalName,displayName,mail,department,jobTitle,officeLocation")
+    .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+    .build();
+
+  public final static PropertyDescriptor INCLUDE_MANAGER = new PropertyDescriptor
+    .Builder()
+    .name("Include Manager")
+    .description("If true, the id of each user's manager is also held, as the " + MANAGER_ID + " field.")
+    .required(true)
+    .defaultValue("false")
+    .allowableValues("true", "false")
+    .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+    .build();
+
+  public final static PropertyDescriptor LOOKUP_FIELD = new PropertyDescriptor
+    .Builder()
+    .name("Lookup Value Field")
+    .description("The field returned by a lookup, unless the lookup coordinates hold a '" + FIELD + "' entry; "
+        + "'id' returns the user id.")
+    .required(true)
+    .defaultValue("userPrincipalName")
+    .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+    .build();
+
+  public final static PropertyDescriptor REFRESH_INTERVAL = new PropertyDescriptor
+    .Builder()
+    .name("Refresh Interval")
+    .description("How often the delta link is run to pick up the users added, changed or removed.")
+    .required(true)
+    .defaultValue("5 mins")
+    .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+    .build();
+
+  private static final List<PropertyDescriptor> properties;
+
+  static
+  {
+    final List<PropertyDescriptor> props = new ArrayList<>();
+    props.add(SERVICE);
+    props.add(USER_FIELDS);
+    props.add(INCLUDE_MANAGER);
+    props.add(LOOKUP_FIELD);
+    props.add(REFRESH_INTERVAL);
+    properties = Collections.unmodifiableList(props);
+  }
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private volatile PontusMicrosoftGraphUserIndex                      index;
+  private volatile PontusMicrosoftGraphAuthControllerServiceInterface authProviderService;
+  private volatile ScheduledExecutorService                           refresher;
+  private volatile String                                             deltaLink;
+
+  private List<String> fields;
+  private String       select;
+  private boolean      includeManager;
+  private String       lookupField;
+
+  @Override public List<PropertyDescriptor> getSupportedPropertyDescriptors()
+  {
+    return properties;
+  }
+
+  @OnEnabled public void onEnabled(final ConfigurationContext context)
+  {
+    authProviderService = context.getProperty(SERVICE)
+                                 .asControllerService(PontusMicrosoftGraphAuthControllerServiceInterface.class);
+    includeManager = context.getProperty(INCLUDE_MANAGER).asBoolean();
+    lookupField = context.getProperty(LOOKUP_FIELD).getValue().trim();
+
+    fields = new ArrayList<>();
+    for (String field : context.getProperty(USER_FIELDS).getValue().split(","))
+    {
+      if (!field.trim().isEmpty() && !field.trim().equals("id") && !fields.contains(field.trim()))
+      {
+        fields.add(field.trim());
+      }
+    }
+    select = "id," + String.join(",", fields);
+    if (includeManager)
+    {
+      fields.add(MANAGER_ID);
+    }
+
+    index = new PontusMicrosoftGraphUserIndex(fields);
+    deltaLink = null;
+
+    long interval = context.getProperty(REFRESH_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+    refresher = Executors.newSingleThreadScheduledExecutor();
+    refresher.scheduleWithFixedDelay(this::refresh, 0, interval, TimeUnit.MILLISECONDS);
+  }
+
+  @OnDisabled public void onDisabled()
+  {
+    if (refresher != null)
+    {
+      refresher.shutdownNow();
+      refresher = null;
+    }
+    index = null;
+    deltaLink = null;
+  }
+
+  /*
+   * Runs the delta link (or, the first time, a full users/delta walk into a new index); an expired delta link
+   * starts a full load again.  Failures are logged, and retried with a new token at the next interval.
+   */
+  void refresh()
+  {
+    try
+    {
+      long start = System.currentTimeMillis();
+      long count = deltaLink == null ? load() : update();
+      long size;
+      long memory;
+      lock.readLock().lock();
+      try
+      {
+        size = index.size();
+        memory = index.getEstimatedMemoryUse();
+      }
+      finally
+      {
+        lock.readLock().unlock();
+      }
+      getLogger().info("User index refreshed in {} ms: {} changes, {} users, about {} KB",
+          new Object[] { System.currentTimeMillis() - start, count, size, memory / 1024 });
+    }
+    catch (GraphServiceException ex)
+    {
+      if (ex.getResponseCode() == 410)
+      {
+        getLogger().warn("The user delta link has expired; reloading all the users", ex);
+        deltaLink = null;
+      }
+      else
+      {
+        getLogger().error("Unable to refresh the user index", ex);
+        authProviderService.refreshToken();
+      }
+    }
+    catch (Exception ex)
+    {
+      getLogger().error("Unable to refresh the user index", ex);
+      authProviderService.refreshToken();
+    }
+  }
+
+  /*
+   * A full load goes into a new index, swapped in once complete, so lookups keep using the old one meanwhile.
+   */
+  private long load()
+  {
+    PontusMicrosoftGraphUserIndex fresh = new PontusMicrosoftGraphUserIndex(fields);
+    IUserDeltaCollectionRequest request = authProviderService.getService().users().delta().buildRequest()
+                                                             .select(select);
+    if (includeManager)
+    {
+      request = request.expand("manager($select=id)");
+    }
+    long count = walk(request, fresh);
+
+    lock.writeLock().lock();
+    try
+    {
+      index = fresh;
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+    return count;
+  }
+
+  private long update()
+  {
+    IGraphServiceClient graphClient = authProviderService.getService();
+    return walk(new UserDeltaCollectionRequestBuilder(deltaLink, graphClient, Collections.emptyList()).buildRequest(), index);
+  }
+
+  /*
+   * Applies every page of the delta walk to the target index, and keeps the final delta link.
+   */
+  private long walk(IUserDeltaCollectionRequest request, PontusMicrosoftGraphUserIndex target) throws ClientException
+  {
+    long count = 0;
+    do
+    {
+      IUserDeltaCollectionPage page  = request.get();
+      List<User>               users = page.getCurrentPage();
+
+      if (users != null && !users.isEmpty())
+      {
+        // a full load goes into an index that lookups cannot see yet, so only the live index needs the lock
+        boolean shared = target == index;
+        if (shared)
+        {
+          lock.writeLock().lock();
+        }
+        try
+        {
+          for (User user : users)
+          {
+            apply(target, user.id, user.getRawObject());
+            count++;
+          }
+        }
+        finally
+        {
+          if (shared)
+          {
+            lock.writeLock().unlock();
+          }
+        }
+      }
+
+      if (page.getNextPage() != null)
+      {
+        request = page.getNextPage().buildRequest();
+      }
+      else
+      {
+        request = null;
+        deltaLink = page.deltaLink();
+      }
+    }
+    while (request != null && !Thread.currentThread().isInterrupted());
+    return count;
+  }
+
+  private void apply(PontusMicrosoftGraphUserIndex target, String id, JsonObject raw)
+  {
+    if (raw.has("@removed"))
+    {
+      target.remove(id);
+      return;
+    }
+
+    Map<Integer, String> values = new HashMap<>();
+    for (int column = 0; column < fields.size(); column++)
+    {
+      String field = fields.get(column);
+      if (field.equals(MANAGER_ID))
+      {
+        JsonElement manager = raw.has("manager@delta") ? raw.get("manager@delta") : raw.get("manager");
+        if (manager != null)
+        {
+          values.put(column, getManagerId(manager));
+        }
+      }
+      else if (raw.has(field))
+      {
+        JsonElement value = raw.get(field);
+        values.put(column, value.isJsonNull() ? null : value.isJsonPrimitive() ? value.getAsString() : value.toString());
+      }
+    }
+    target.upsert(id, values);
+  }
+
+  private static String getManagerId(JsonElement manager)
+  {
+    if (manager.isJsonArray())
+    {
+      JsonArray managers = manager.getAsJsonArray();
+      for (JsonElement entry : managers)
+      {
+        if (entry.isJsonObject() && !entry.getAsJsonObject().has("@removed") && entry.getAsJsonObject().has("id"))
+        {
+          return entry.getAsJsonObject().get("id").getAsString();
+        }
+      }
+      return null;
+    }
+    if (manager.isJsonObject() && manager.getAsJsonObject().has("id"))
+    {
+      return manager.getAsJsonObject().get("id").getAsString();
+    }
+    return null;
+  }
+
+  @Override public Optional<String> lookup(Map<String, Object> coordinates)
+  {
+    Object key = coordinates == null ? null : coordinates.get(KEY);
+    if (key == null)
+    {
+      return Optional.empty();
+    }
+    Object field = coordinates.get(FIELD);
+    String name  = field == null ? lookupField : field.toString();
+
+    PontusMicrosoftGraphUserIndex current = index;
+    if (current == null)
+    {
+      return Optional.empty();
+    }
+
+    lock.readLock().lock();
+    try
+    {
+      current = index;
+      int column = current.getColumn(name);
+      if (column < 0 && !"id".equals(name))
+      {
+        return Optional.empty();
+      }
+      return Optional.ofNullable(current.lookup(key.toString(), column));
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override public Set<String> getRequiredKeys()
+  {
+    return Collections.singleton(KEY);
+  }
+}
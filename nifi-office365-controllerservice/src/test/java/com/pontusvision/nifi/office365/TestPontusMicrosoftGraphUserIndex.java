@@ -0,0 +1,163 @@
+package com.pontusvision.nifi.office365;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestPontusMicrosoftGraphUserIndex {
+
+    private static final List<String> FIELDS = Arrays.asList("userPrincipalName", "mail", "department");
+
+    private PontusMicrosoftGraphUserIndex index;
+    private int                           upn;
+    private int                           mail;
+    private int                           department;
+
+    @Before
+    public void init() {
+        index = new PontusMicrosoftGraphUserIndex(FIELDS);
+        upn = index.getColumn("userPrincipalName");
+        mail = index.getColumn("mail");
+        department = index.getColumn("department");
+    }
+
+    @Test
+    public void testLookupById() {
+        // enough users to grow the open addressing table several times, so colliding slots are probed
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            String id = id(i);
+            ids.add(id);
+            index.upsert(id, values("user" + i + "@contoso.com", null, "dept" + (i % 7)));
+        }
+
+        assertEquals(5000, index.size());
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals("user" + i + "@contoso.com", index.lookup(ids.get(i), upn));
+            assertEquals("dept" + (i % 7), index.lookup(ids.get(i), department));
+            assertEquals(ids.get(i), index.lookup(ids.get(i), -1));
+        }
+        assertNull(index.lookup(id(5000), upn));
+        assertNull(index.lookup("not-a-guid", upn));
+    }
+
+    @Test
+    public void testLookupByName() {
+        String id = id(1);
+        index.upsert(id, values("Jane.Doe@contoso.com", "JDoe@contoso.com", "Sales"));
+
+        assertEquals(id, index.lookup("jane.doe@contoso.com", -1));
+        assertEquals(id, index.lookup("JANE.DOE@CONTOSO.COM", -1));
+        assertEquals("Sales", index.lookup("jdoe@contoso.com", department));
+    }
+
+    @Test
+    public void testUpsertReindexesNames() {
+        String id = id(1);
+        index.upsert(id, values("old@contoso.com", "old.mail@contoso.com", "Sales"));
+
+        // a delta page only holds the changed fields
+        Map<Integer, String> changed = new HashMap<>();
+        changed.put(upn, "new@contoso.com");
+        index.upsert(id, changed);
+
+        assertNull(index.lookup("old@contoso.com", -1));
+        assertEquals(id, index.lookup("new@contoso.com", -1));
+        assertEquals(id, index.lookup("old.mail@contoso.com", -1));
+        assertEquals("Sales", index.lookup(id, department));
+        assertEquals(1, index.size());
+
+        changed.clear();
+        changed.put(mail, null);
+        index.upsert(id, changed);
+        assertNull(index.lookup("old.mail@contoso.com", -1));
+        assertNull(index.lookup(id, mail));
+    }
+
+    @Test
+    public void testRemove() {
+        String id    = id(1);
+        String other = id(2);
+        index.upsert(id, values("a@contoso.com", "a.mail@contoso.com", "Sales"));
+        index.upsert(other, values("b@contoso.com", null, "Sales"));
+
+        index.remove(id);
+        index.remove(id);
+        assertEquals(1, index.size());
+        assertNull(index.lookup(id, upn));
+        assertNull(index.lookup("a@contoso.com", -1));
+        assertNull(index.lookup("a.mail@contoso.com", -1));
+        assertEquals("b@contoso.com", index.lookup(other, upn));
+
+        // the same user coming back reuses its row
+        index.upsert(id, values("a@contoso.com", null, "Marketing"));
+        assertEquals(2, index.size());
+        assertEquals(2, index.getRows());
+        assertEquals(id, index.lookup("a@contoso.com", -1));
+        assertNull(index.lookup("a.mail@contoso.com", -1));
+    }
+
+    @Test
+    public void testRemovedRowsAreReclaimed() {
+        for (int i = 0; i < 10000; i++) {
+            index.upsert(id(i), values("user" + i + "@contoso.com", null, "dept" + (i % 7)));
+        }
+        for (int i = 0; i < 9000; i++) {
+            index.remove(id(i));
+        }
+
+        assertEquals(1000, index.size());
+        assertTrue(index.getRows() < 10000);
+        for (int i = 9000; i < 10000; i++) {
+            assertEquals("user" + i + "@contoso.com", index.lookup(id(i), upn));
+            assertEquals(id(i), index.lookup("user" + i + "@contoso.com", -1));
+        }
+        assertNull(index.lookup(id(0), upn));
+        assertNull(index.lookup("user0@contoso.com", -1));
+
+        index.upsert(id(0), values("user0@contoso.com", null, "dept0"));
+        assertEquals(id(0), index.lookup("user0@contoso.com", -1));
+    }
+
+    @Test
+    public void testReplacedValuesAreDropped() {
+        String id = id(1);
+        for (int i = 0; i < 20000; i++) {
+            index.upsert(id, values("user@contoso.com", null, "dept" + i));
+        }
+
+        assertTrue(index.getPoolSize() < 20000);
+        assertEquals("dept19999", index.lookup(id, department));
+        assertEquals(id, index.lookup("user@contoso.com", -1));
+
+        index.compact();
+        assertEquals(2, index.getPoolSize());
+        assertEquals("dept19999", index.lookup(id, department));
+    }
+
+    @Test
+    public void testNoFields() {
+        PontusMicrosoftGraphUserIndex ids = new PontusMicrosoftGraphUserIndex(Collections.emptyList());
+        ids.upsert(id(1), Collections.emptyMap());
+
+        assertEquals(id(1), ids.lookup(id(1), -1));
+        assertTrue(ids.getEstimatedMemoryUse() > 0);
+    }
+
+    private static String id(int i) {
+        return new UUID(0x1234L * i, i).toString();
+    }
+
+    private Map<Integer, String> values(String userPrincipalName, String mailValue, String departmentValue) {
+        Map<Integer, String> values = new HashMap<>();
+        values.put(upn, userPrincipalName);
+        values.put(mail, mailValue);
+        values.put(department, departmentValue);
+        return values;
+    }
+}
@@ -0,0 +1,617 @@
+package com.pontusvision.processors.office365;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+import com.microsoft.graph.models.extensions.Subscription;
+import com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import org.apache.commons.io.IOUtils;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.ssl.SSLContextService;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+
+@Tags({ "GRAPH", "Message", "Microsoft", "Office 365", "email", "mail", "subscription", "webhook", "notification" })
+@InputRequirement(InputRequirement.Requirement.INPUT_FORBIDDEN)
+@CapabilityDescription(
+    "This processor listens for Microsoft Graph change notifications instead of polling the delta endpoints.  It "
+        + "creates (and renews) one subscription per entry in the distributed map cache whose key matches the "
+        + "'Cache Filter Message Regex' property (keys should have the pattern O365_messages|<user id>|<folder id>), "
+        + "answers the Graph validation handshake, and emits either the changed message ids, or one delta trigger per "
+        + "mailbox folder that changed.  The 'Notification URL' must be the public HTTPS address that Graph can use to "
+        + "reach the 'Listening Port' of this processor (either directly, or through a reverse proxy).  Accepted "
+        + "notifications are only queued in memory until the next trigger, so the ones still queued when the "
+        + "processor is stopped (or NiFi shuts down) are lost; the next delta run of the folders still picks up "
+        + "their changes.")
+@WritesAttributes({
+    @WritesAttribute(attribute = PontusMicrosoftGraphBaseProcessor.OFFICE365_USER_ID, description = "The user id of the mailbox that changed"),
+    @WritesAttribute(attribute = PontusMicrosoftGraphBaseProcessor.OFFICE365_FOLDER_ID, description = "The folder id that changed"),
+    @WritesAttribute(attribute = PontusMicrosoftGraphBaseProcessor.OFFICE365_MESSAGE_ID, description = "The message id that changed (Message IDs output only)"),
+    @WritesAttribute(attribute = PontusMicrosoftGraphBaseProcessor.OFFICE365_CACHE_KEY, description = "The cache key of the mailbox folder (Delta Triggers output only)"),
+    @WritesAttribute(attribute = PontusMicrosoftGraphBaseProcessor.OFFICE365_DELTA_VALUE, description = "The last delta link stored in the cache for the mailbox folder (Delta Triggers output only)"),
+    @WritesAttribute(attribute = PontusMicrosoftGraphChangeNotificationProcessor.OFFICE365_CHANGE_TYPE, description = "The Graph change type (created, updated or deleted)") })
+public class PontusMicrosoftGraphChangeNotificationProcessor extends PontusMicrosoftGraphBaseProcessor
+{
+  public static final String OFFICE365_CHANGE_TYPE = "office365_change_type";
+
+  public static final String OUTPUT_MESSAGE_IDS   = "Message IDs";
+  public static final String OUTPUT_DELTA_TRIGGER = "Delta Triggers";
+
+  public static final PropertyDescriptor LISTENING_PORT = new PropertyDescriptor.Builder()
+      .name("Listening Port")
+      .description("The port to listen on for Microsoft Graph change notifications")
+      .required(true)
+      .addValidator(StandardValidators.PORT_VALIDATOR)
+      .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+      .build();
+
+  public static final PropertyDescriptor LISTENING_PATH = new PropertyDescriptor.Builder()
+      .name("Listening Path")
+      .description("The HTTP path where change notifications are received")
+      .required(true)
+      .defaultValue("/office365/notifications")
+      .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+      .build();
+
+  public static final PropertyDescriptor SSL_CONTEXT_SERVICE = new PropertyDescriptor.Builder()
+      .name("SSL Context Service")
+      .description("The SSL Context Service used to serve HTTPS; if not set, plain HTTP is used, and TLS must be "
+          + "terminated by a reverse proxy (Graph only delivers notifications to HTTPS URLs)")
+      .required(false)
+      .identifiesControllerService(SSLContextService.class)
+      .build();
+
+  public static final PropertyDescriptor NOTIFICATION_URL = new PropertyDescriptor.Builder()
+      .name("Notification URL")
+      .description("The public HTTPS URL that Microsoft Graph will post change notifications to; this must reach the "
+          + "'Listening Port' and 'Listening Path' of this processor")
+      .required(true)
+      .addValidator(StandardValidators.URL_VALIDATOR)
+      .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+      .build();
+
+  public static final PropertyDescriptor CHANGE_TYPE = new PropertyDescriptor.Builder()
+      .name("Change Type")
+      .description("The comma-separated list of Graph change types to subscribe to")
+      .required(true)
+      .defaultValue("created,updated,deleted")
+      .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+      .build();
+
+  public static final PropertyDescriptor CLIENT_STATE = new PropertyDescriptor.Builder()
+      .name("Client State")
+      .description("Secret sent with each subscription, and checked on every notification received; if left blank, "
+          + "a random value is generated each time the processor is started")
+      .required(false)
+      .sensitive(true)
+      .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+      .build();
+
+  public static final PropertyDescriptor SUBSCRIPTION_LIFETIME = new PropertyDescriptor.Builder()
+      .name("Subscription Lifetime")
+      .description("How long each subscription is created (or renewed) for; Graph limits message subscriptions to "
+          + "4230 minutes")
+      .required(true)
+      .defaultValue("4200 mins")
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .build();
+
+  public static final PropertyDescriptor SUBSCRIPTION_RENEWAL_WINDOW = new PropertyDescriptor.Builder()
+      .name("Subscription Renewal Window")
+      .description("Subscriptions that expire within this period are renewed")
+      .required(true)
+      .defaultValue("60 mins")
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .build();
+
+  public static final PropertyDescriptor SUBSCRIPTION_REFRESH_INTERVAL = new PropertyDescriptor.Builder()
+      .name("Subscription Refresh Interval")
+      .description("How often the cache keys are compared with the active subscriptions, to create, renew or "
+          + "delete subscriptions")
+      .required(true)
+      .defaultValue("5 mins")
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .build();
+
+  public static final PropertyDescriptor NOTIFICATION_OUTPUT = new PropertyDescriptor.Builder()
+      .name("Notification Output")
+      .description("'" + OUTPUT_MESSAGE_IDS + "' emits one flow file per changed message; '" + OUTPUT_DELTA_TRIGGER
+          + "' emits one flow file per mailbox folder that changed since the last trigger, with the cache key and "
+          + "last delta link, so only these folders need to be synchronised")
+      .required(true)
+      .allowableValues(OUTPUT_MESSAGE_IDS, OUTPUT_DELTA_TRIGGER)
+      .defaultValue(OUTPUT_DELTA_TRIGGER)
+      .build();
+
+  public static final PropertyDescriptor MAX_QUEUED_NOTIFICATIONS = new PropertyDescriptor.Builder()
+      .name("Max Queued Notifications")
+      .description("The maximum number of notifications held in memory before this processor starts replying with "
+          + "HTTP 503, so that Graph retries the delivery later")
+      .required(true)
+      .defaultValue("10000")
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .build();
+
+  /*
+   * Resource path of the subscription created for each O365_messages|<user id>|<folder id> key.
+   */
+  public static final String SUBSCRIPTION_RESOURCE_FORMAT = "users/%s/mailFolders/%s/messages";
+
+  private static final Pattern KEY_SEPARATOR = Pattern.compile(Pattern.quote("|"));
+
+  private final Map<String, Subscription> subscriptionsByKey = new ConcurrentHashMap<>();
+  private final Map<String, String>       keysBySubscription = new ConcurrentHashMap<>();
+
+  private volatile BlockingQueue<JsonObject> notifications;
+  private volatile HttpServer                server;
+  private volatile String                    clientState;
+  private volatile long                      nextSubscriptionRefresh = 0;
+
+  @Override protected PropertyDescriptor getRegexPropertyDescriptor()
+  {
+    return CACHE_FILTER_REGEX_MESSAGE;
+  }
+
+  @Override public void init(final ProcessorInitializationContext context)
+  {
+    super.init(context);
+
+    List<PropertyDescriptor> properties = new ArrayList<>(this.properties);
+    properties.add(LISTENING_PORT);
+    properties.add(LISTENING_PATH);
+    properties.add(SSL_CONTEXT_SERVICE);
+    properties.add(NOTIFICATION_URL);
+    properties.add(CHANGE_TYPE);
+    properties.add(CLIENT_STATE);
+    properties.add(SUBSCRIPTION_LIFETIME);
+    properties.add(SUBSCRIPTION_RENEWAL_WINDOW);
+    properties.add(SUBSCRIPTION_REFRESH_INTERVAL);
+    properties.add(NOTIFICATION_OUTPUT);
+    properties.add(MAX_QUEUED_NOTIFICATIONS);
+
+    this.properties = Collections.unmodifiableList(properties);
+
+    Set<Relationship> relationships = new HashSet<>();
+    relationships.add(SUCCESS);
+    relationships.add(FAILURE);
+
+    this.relationships = Collections.unmodifiableSet(relationships);
+  }
+
+  @OnScheduled
+  public void onScheduled(final ProcessContext context)
+  {
+    super.onScheduled(context);
+
+    String configuredState = context.getProperty(CLIENT_STATE).getValue();
+    initNotifications(configuredState != null ? configuredState : UUID.randomUUID().toString(),
+        context.getProperty(MAX_QUEUED_NOTIFICATIONS).asInteger());
+    nextSubscriptionRefresh = 0;
+
+    final int    port = context.getProperty(LISTENING_PORT).evaluateAttributeExpressions().asInteger();
+    final String path = context.getProperty(LISTENING_PATH).getValue();
+
+    final SSLContextService sslContextService = context.getProperty(SSL_CONTEXT_SERVICE)
+                                                       .asControllerService(SSLContextService.class);
+    try
+    {
+      if (sslContextService != null)
+      {
+        HttpsServer httpsServer = HttpsServer.create(new InetSocketAddress(port), 0);
+        httpsServer.setHttpsConfigurator(new HttpsConfigurator(createSslContext(sslContextService)));
+        server = httpsServer;
+      }
+      else
+      {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+      }
+      server.createContext(path, this::handleNotification);
+      server.setExecutor(Executors.newCachedThreadPool());
+      server.start();
+    }
+    catch (Exception ex)
+    {
+      throw new ProcessException("Unable to listen for Graph change notifications on port " + port, ex);
+    }
+  }
+
+  @OnStopped
+  public void onStopped()
+  {
+    if (server != null)
+    {
+      server.stop(0);
+      if (server.getExecutor() instanceof ExecutorService)
+      {
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+      }
+      server = null;
+    }
+
+    if (authProviderService != null)
+    {
+      for (Subscription subscription : subscriptionsByKey.values())
+      {
+        try
+        {
+          authProviderService.getService().subscriptions(subscription.id).buildRequest().delete();
+        }
+        catch (Exception ex)
+        {
+          getLogger().warn("Unable to delete subscription {} for {}", new Object[] { subscription.id,
+              subscription.resource }, ex);
+        }
+      }
+    }
+    subscriptionsByKey.clear();
+    keysBySubscription.clear();
+
+    super.onStopped();
+  }
+
+  static SSLContext createSslContext(SSLContextService sslContextService) throws Exception
+  {
+    KeyStore keyStore = KeyStore.getInstance(sslContextService.getKeyStoreType());
+    try (InputStream in = new FileInputStream(sslContextService.getKeyStoreFile()))
+    {
+      keyStore.load(in, sslContextService.getKeyStorePassword().toCharArray());
+    }
+    String keyPassword = sslContextService.getKeyPassword() != null ?
+        sslContextService.getKeyPassword() :
+        sslContextService.getKeyStorePassword();
+
+    KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagerFactory.init(keyStore, keyPassword.toCharArray());
+
+    TrustManagerFactory trustManagerFactory = null;
+    if (sslContextService.isTrustStoreConfigured())
+    {
+      KeyStore trustStore = KeyStore.getInstance(sslContextService.getTrustStoreType());
+      try (InputStream in = new FileInputStream(sslContextService.getTrustStoreFile()))
+      {
+        trustStore.load(in, sslContextService.getTrustStorePassword().toCharArray());
+      }
+      trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      trustManagerFactory.init(trustStore);
+    }
+
+    SSLContext sslContext = SSLContext.getInstance(sslContextService.getSslAlgorithm());
+    sslContext.init(keyManagerFactory.getKeyManagers(),
+        trustManagerFactory == null ? null : trustManagerFactory.getTrustManagers(), null);
+    return sslContext;
+  }
+
+  void initNotifications(String clientState, int maxQueued)
+  {
+    this.clientState = clientState;
+    this.notifications = new LinkedBlockingQueue<>(maxQueued);
+  }
+
+  int getQueuedNotifications()
+  {
+    return notifications.size();
+  }
+
+  /*
+   * Handles both the subscription validation handshake, and the notifications themselves.  A batch is either queued
+   * whole, or (if it does not fit) rejected whole with a 503, as Graph redelivers the whole batch.
+   */
+  void handleNotification(HttpExchange exchange) throws IOException
+  {
+    try
+    {
+      String validationToken = getQueryParameter(exchange.getRequestURI().getRawQuery(), "validationToken");
+      if (validationToken != null)
+      {
+        reply(exchange, 200, validationToken);
+        return;
+      }
+
+      if (!"POST".equalsIgnoreCase(exchange.getRequestMethod()))
+      {
+        reply(exchange, 405, "");
+        return;
+      }
+
+      JsonObject body;
+      try (InputStream in = exchange.getRequestBody())
+      {
+        body = new JsonParser().parse(IOUtils.toString(in, StandardCharsets.UTF_8)).getAsJsonObject();
+      }
+
+      JsonArray        values = body.has("value") ? body.getAsJsonArray("value") : new JsonArray();
+      List<JsonObject> batch  = new ArrayList<>(values.size());
+      for (JsonElement value : values)
+      {
+        JsonObject notification = value.getAsJsonObject();
+        if (!notification.has("clientState") || !clientState.equals(notification.get("clientState").getAsString()))
+        {
+          getLogger().warn("Ignoring Graph change notification with an invalid client state");
+          continue;
+        }
+        batch.add(notification);
+      }
+
+      // onTrigger only ever drains the queue, so once the capacity has been checked the whole batch fits
+      boolean queued = false;
+      synchronized (notifications)
+      {
+        if (notifications.remainingCapacity() >= batch.size())
+        {
+          notifications.addAll(batch);
+          queued = true;
+        }
+      }
+      reply(exchange, queued ? 202 : 503, "");
+    }
+    catch (Exception ex)
+    {
+      getLogger().error("Unable to process Graph change notification", ex);
+      reply(exchange, 400, "");
+    }
+  }
+
+  static String getQueryParameter(String rawQuery, String name) throws IOException
+  {
+    if (rawQuery == null)
+    {
+      return null;
+    }
+    for (String param : rawQuery.split("&"))
+    {
+      int idx = param.indexOf('=');
+      if (idx > 0 && name.equals(param.substring(0, idx)))
+      {
+        return URLDecoder.decode(param.substring(idx + 1), StandardCharsets.UTF_8.name());
+      }
+    }
+    return null;
+  }
+
+  private static void reply(HttpExchange exchange, int status, String body) throws IOException
+  {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain");
+    exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+    if (bytes.length > 0)
+    {
+      try (OutputStream out = exchange.getResponseBody())
+      {
+        out.write(bytes);
+      }
+    }
+    exchange.close();
+  }
+
+  /*
+   * Creates subscriptions for new keys, renews the ones about to expire, and removes the ones whose keys are gone.
+   */
+  private void refreshSubscriptions(final ProcessContext context) throws Exception
+  {
+    final IGraphServiceClient graphClient = authProviderService.getService();
+
+    final long now = System.currentTimeMillis();
+    final long lifetime = context.getProperty(SUBSCRIPTION_LIFETIME).asTimePeriod(TimeUnit.MILLISECONDS);
+    final long renewalWindow = context.getProperty(SUBSCRIPTION_RENEWAL_WINDOW).asTimePeriod(TimeUnit.MILLISECONDS);
+    final String notificationUrl = context.getProperty(NOTIFICATION_URL).evaluateAttributeExpressions().getValue();
+    final String changeType = context.getProperty(CHANGE_TYPE).getValue();
+
+    Set<String> keys = new HashSet<>();
+    for (String key : cacheClient.keySet(DES))
+    {
+      if (cacheFilterRegex.matcher(key).matches())
+      {
+        keys.add(key);
+      }
+    }
+
+    for (String key : keys)
+    {
+      Subscription existing = subscriptionsByKey.get(key);
+      Calendar expiration = Calendar.getInstance();
+      expiration.setTimeInMillis(now + lifetime);
+
+      try
+      {
+        if (existing == null)
+        {
+          String[] fields = KEY_SEPARATOR.split(key);
+
+          Subscription subscription = new Subscription();
+          subscription.changeType = changeType;
+          subscription.notificationUrl = notificationUrl;
+          subscription.resource = String.format(SUBSCRIPTION_RESOURCE_FORMAT, fields[1], fields[2]);
+          subscription.expirationDateTime = expiration;
+          subscription.clientState = clientState;
+
+          Subscription created = graphClient.subscriptions().buildRequest().post(subscription);
+          subscriptionsByKey.put(key, created);
+          keysBySubscription.put(created.id, key);
+        }
+        else if (existing.expirationDateTime == null ||
+            existing.expirationDateTime.getTimeInMillis() - now < renewalWindow)
+        {
+          Subscription renewal = new Subscription();
+          renewal.expirationDateTime = expiration;
+
+          Subscription renewed = graphClient.subscriptions(existing.id).buildRequest().patch(renewal);
+          existing.expirationDateTime = renewed != null && renewed.expirationDateTime != null ?
+              renewed.expirationDateTime :
+              expiration;
+        }
+      }
+      catch (Exception ex)
+      {
+        getLogger().warn("Unable to create or renew the subscription for {}", new Object[] { key }, ex);
+
+        // a subscription that is still live in Graph is kept, and its renewal retried on the next refresh; dropping
+        // it here would leave it running alongside the one created for the key next time
+        boolean gone = PontusMicrosoftGraphMessageSendProcessor.getResponseCode(ex) == 404 ||
+            (existing != null && existing.expirationDateTime != null &&
+                existing.expirationDateTime.getTimeInMillis() <= System.currentTimeMillis());
+        if (existing != null && gone)
+        {
+          subscriptionsByKey.remove(key);
+          keysBySubscription.remove(existing.id);
+        }
+      }
+    }
+
+    for (Iterator<Map.Entry<String, Subscription>> it = subscriptionsByKey.entrySet().iterator(); it.hasNext(); )
+    {
+      Map.Entry<String, Subscription> entry = it.next();
+      if (!keys.contains(entry.getKey()))
+      {
+        it.remove();
+        keysBySubscription.remove(entry.getValue().id);
+        try
+        {
+          graphClient.subscriptions(entry.getValue().id).buildRequest().delete();
+        }
+        catch (Exception ex)
+        {
+          getLogger().warn("Unable to delete subscription {}", new Object[] { entry.getValue().id }, ex);
+        }
+      }
+    }
+  }
+
+  @Override public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException
+  {
+    try
+    {
+      if (System.currentTimeMillis() >= nextSubscriptionRefresh)
+      {
+        try
+        {
+          try
+          {
+            refreshSubscriptions(context);
+          }
+          catch (Exception ex)
+          {
+            authProviderService.refreshToken();
+            refreshSubscriptions(context);
+          }
+        }
+        finally
+        {
+          // a failed refresh waits for the next interval too, rather than failing again on every trigger
+          nextSubscriptionRefresh = System.currentTimeMillis() +
+              context.getProperty(SUBSCRIPTION_REFRESH_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+        }
+      }
+    }
+    catch (Exception ex)
+    {
+      handleError(getLogger(), ex, session);
+      context.yield();
+    }
+
+    List<JsonObject> received = new ArrayList<>();
+    notifications.drainTo(received);
+
+    if (received.isEmpty())
+    {
+      context.yield();
+      return;
+    }
+
+    boolean deltaTriggers = OUTPUT_DELTA_TRIGGER.equals(context.getProperty(NOTIFICATION_OUTPUT).getValue());
+
+    Set<String> changedKeys = new LinkedHashSet<>();
+
+    for (JsonObject notification : received)
+    {
+      String subscriptionId = notification.has("subscriptionId") ?
+          notification.get("subscriptionId").getAsString() :
+          null;
+      String key = subscriptionId != null ? keysBySubscription.get(subscriptionId) : null;
+      if (key == null)
+      {
+        getLogger().debug("Ignoring notification for unknown subscription {}", new Object[] { subscriptionId });
+        continue;
+      }
+
+      if (deltaTriggers)
+      {
+        changedKeys.add(key);
+        continue;
+      }
+
+      String[] fields = KEY_SEPARATOR.split(key);
+
+      FlowFile ff = session.create();
+      ff = session.putAttribute(ff, OFFICE365_USER_ID, fields[1]);
+      ff = session.putAttribute(ff, OFFICE365_FOLDER_ID, fields[2]);
+      if (notification.has("changeType"))
+      {
+        ff = session.putAttribute(ff, OFFICE365_CHANGE_TYPE, notification.get("changeType").getAsString());
+      }
+      if (notification.has("resourceData") && notification.getAsJsonObject("resourceData").has("id"))
+      {
+        ff = session.putAttribute(ff, OFFICE365_MESSAGE_ID,
+            notification.getAsJsonObject("resourceData").get("id").getAsString());
+      }
+      writeFlowFile(ff, session, notification.toString(), SUCCESS);
+    }
+
+    for (String key : changedKeys)
+    {
+      String[] fields = KEY_SEPARATOR.split(key);
+
+      FlowFile ff = session.create();
+      ff = session.putAttribute(ff, OFFICE365_USER_ID, fields[1]);
+      ff = session.putAttribute(ff, OFFICE365_FOLDER_ID, fields[2]);
+      ff = session.putAttribute(ff, OFFICE365_CACHE_KEY, key);
+      String delta = null;
+      try
+      {
+        delta = cacheClient.get(key, SER, DES);
+      }
+      catch (IOException ex)
+      {
+        getLogger().warn("Unable to read the delta link for {}", new Object[] { key }, ex);
+      }
+      if (delta != null)
+      {
+        ff = session.putAttribute(ff, OFFICE365_DELTA_VALUE, delta);
+      }
+      writeFlowFile(ff, session, key, SUCCESS);
+    }
+  }
+}
@@ -3,11 +3,15 @@ package com.pontusvision.processors.office365;
 import com.microsoft.graph.models.extensions.Attachment;
 import com.microsoft.graph.models.extensions.IGraphServiceClient;
 import com.microsoft.graph.models.extensions.Message;
+import com.microsoft.graph.options.Option;
 import com.microsoft.graph.requests.extensions.IAttachmentCollectionPage;
 import com.microsoft.graph.requests.extensions.IAttachmentCollectionRequest;
+import com.microsoft.graph.requests.extensions.IMessageCollectionPage;
 import com.microsoft.graph.requests.extensions.IMessageDeltaCollectionPage;
 import com.microsoft.graph.requests.extensions.IMessageDeltaCollectionRequest;
+import com.pontusvision.processors.office365.base.PontusMicrosoftGraphBackfill;
 import com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor;
+import com.pontusvision.processors.office365.base.PontusMicrosoftGraphFolderState;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
@@ -22,6 +26,7 @@ import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 @Tags({ "GRAPH", "Message", "Microsoft", "Office 365", "email", "mail" })
@@ -33,7 +38,16 @@ import java.util.regex.Pattern;
 
 public class PontusMicrosoftGraphMessageCacheProcessor extends PontusMicrosoftGraphBaseProcessor
 {
-  private String messageFields = null;
+  private String  messageFields        = null;
+  private boolean skipUnchangedFolders = false;
+  private long    syncHorizon          = 0;
+  private boolean backfill             = false;
+  private long    backfillRunDuration  = 0;
+  private int     backfillPageSize     = 50;
+
+  private List<Option> preferOptions = Collections.emptyList();
+
+  public static final String OFFICE365_BACKFILL = "office365_backfill";
 
   final static PropertyDescriptor MESSAGE_FIELDS = new PropertyDescriptor.Builder()
       .name("Message Fields").defaultValue(
@@ -48,6 +62,50 @@ public class PontusMicrosoftGraphMessageCacheProcessor extends PontusMicrosoftGr
       .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
       .build();
 
+  final static PropertyDescriptor SKIP_UNCHANGED_FOLDERS = new PropertyDescriptor.Builder()
+      .name("Skip Unchanged Folders")
+      .description("If true, the message delta of a folder is skipped while the folder's totalItemCount and "
+          + "unreadItemCount (recorded by the message folder cache processor under "
+          + PontusMicrosoftGraphFolderState.OFFICE365_FOLDER_STATE_KEY_PREFIX + "<cache key>) are the same as when "
+          + "its last complete delta run started.  This removes nearly all the requests for dormant folders, but "
+          + "changes that leave both counters as they were (e.g. a message edited, or one message moved in and "
+          + "another out) are only picked up with the folder's next counter change.")
+      .required(true)
+      .defaultValue("false")
+      .allowableValues("true", "false")
+      .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+      .build();
+
+  final static PropertyDescriptor BACKFILL = new PropertyDescriptor.Builder()
+      .name("Backfill Older Messages")
+      .description("With a Sync Horizon, whether the messages received before the horizon are listed too, newest "
+          + "first, once the initial delta of a folder has started.  The backfill has a lower priority than the "
+          + "delta runs: it only runs in triggers whose cache entries have all been processed within the Max Run "
+          + "Duration, for at most the Backfill Run Duration.  Its messages have the " + OFFICE365_BACKFILL
+          + " attribute set to true, and its cursor is kept under "
+          + PontusMicrosoftGraphBackfill.OFFICE365_BACKFILL_KEY_PREFIX + "<cache key> until it completes.")
+      .required(true)
+      .defaultValue("false")
+      .allowableValues("true", "false")
+      .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+      .build();
+
+  final static PropertyDescriptor BACKFILL_RUN_DURATION = new PropertyDescriptor.Builder()
+      .name("Backfill Run Duration")
+      .description("The time budget of the backfill in each trigger, separate from the Max Run Duration.")
+      .required(true)
+      .defaultValue("10 sec")
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .build();
+
+  final static PropertyDescriptor BACKFILL_PAGE_SIZE = new PropertyDescriptor.Builder()
+      .name("Backfill Page Size")
+      .description("The number of older messages listed per backfill request.")
+      .required(true)
+      .defaultValue("50")
+      .addValidator(StandardValidators.createLongValidator(1, 999, true))
+      .build();
+
   public static final Relationship SUCCESS_MESSAGES = new Relationship.Builder().name("success_messages")
                                                                                 .description(
                                                                                     "Success relationship for messages")
@@ -68,8 +126,16 @@ public class PontusMicrosoftGraphMessageCacheProcessor extends PontusMicrosoftGr
     super.init(context);
 
     List<PropertyDescriptor> properties = new ArrayList<>(this.properties);
+    properties.addAll(CACHE_KEY_SCHEDULING_PROPERTIES);
 
     properties.add(MESSAGE_FIELDS);
+    properties.add(SKIP_UNCHANGED_FOLDERS);
+    properties.add(SYNC_HORIZON);
+    properties.add(BACKFILL);
+    properties.add(BACKFILL_RUN_DURATION);
+    properties.add(BACKFILL_PAGE_SIZE);
+    properties.add(PREFER_TEXT_BODY);
+    properties.add(PREFER_IMMUTABLE_IDS);
 
     this.properties = Collections.unmodifiableList(properties);
 
@@ -86,7 +152,7 @@ public class PontusMicrosoftGraphMessageCacheProcessor extends PontusMicrosoftGr
   {
 
     IAttachmentCollectionRequest request = graphClient.users(userId).messages(message.id).attachments()
-                                                      .buildRequest();
+                                                      .buildRequest(preferOptions);
     do
     {
       IAttachmentCollectionPage page        = request.get();
@@ -107,7 +173,7 @@ public class PontusMicrosoftGraphMessageCacheProcessor extends PontusMicrosoftGr
       // Get next page request
       if (page.getNextPage() != null)
       {
-        request = page.getNextPage().buildRequest();
+        request = page.getNextPage().buildRequest(preferOptions);
       }
       else
       {
@@ -121,9 +187,12 @@ public class PontusMicrosoftGraphMessageCacheProcessor extends PontusMicrosoftGr
   /*
    * Load Messages
    */
-  private void loadMessages(String userId, String folderId, IGraphServiceClient graphClient,
-                            Map<String, String> attributes, ProcessSession session, String delta) throws Exception
+  private long loadMessages(String userId, String folderId, IGraphServiceClient graphClient,
+                            Map<String, String> attributes, ProcessSession session, String delta,
+                            String folderState, long deadline) throws Exception
   {
+    long count = 0;
+
     IMessageDeltaCollectionRequest request;
     if (delta != null && delta.trim().length() > 0)
     {
@@ -132,7 +201,23 @@ public class PontusMicrosoftGraphMessageCacheProcessor extends PontusMicrosoftGr
           .mailFolders(folderId)
           .messages()
           .delta(delta)
-          .buildRequest().top(10)
+          .buildRequest(preferOptions).top(10)
+          .select(messageFields);
+    }
+    else if (syncHorizon > 0)
+    {
+      String horizon = PontusMicrosoftGraphBackfill.getHorizon(syncHorizon);
+      if (backfill)
+      {
+        cacheClient.put(PontusMicrosoftGraphBackfill.getBackfillKey(
+            String.format(OFFICE365_DELTA_KEY_FORMAT_MESSAGE, userId, folderId)), horizon, SER, SER);
+      }
+      request = graphClient
+          .users(userId)
+          .mailFolders(folderId)
+          .messages()
+          .delta()
+          .buildRequest(PontusMicrosoftGraphBackfill.getDeltaOptions(horizon, preferOptions)).top(10)
           .select(messageFields);
     }
     else
@@ -142,7 +227,7 @@ public class PontusMicrosoftGraphMessageCacheProcessor extends PontusMicrosoftGr
           .mailFolders(folderId)
           .messages()
           .delta()
-          .buildRequest().top(10)
+          .buildRequest(preferOptions).top(10)
           .select(messageFields);
 
     }
@@ -156,22 +241,21 @@ public class PontusMicrosoftGraphMessageCacheProcessor extends PontusMicrosoftGr
       {
         for (Message message : messages)
         {
-          FlowFile ff = session.create();
-          ff = session.putAllAttributes(ff, attributes);
-          ff = session.putAttribute(ff, OFFICE365_USER_ID, userId);
-          ff = session.putAttribute(ff, OFFICE365_FOLDER_ID, folderId);
-          ff = session.putAttribute(ff, OFFICE365_MESSAGE_ID, message.id);
-
-          loadAttachments(userId, message, graphClient, ff, session);
-          writeFlowFile(ff, session, message.getRawObject().toString(), SUCCESS_MESSAGES);
-          session.commit();
+          count++;
+          writeMessage(userId, folderId, message, graphClient, attributes, session, false);
         }
       }
 
       // Get next page request
-      if (page.getNextPage() != null)
+      if (page.getNextPage() != null && isRunBudgetSpent(deadline))
       {
-        request = page.getNextPage().buildRequest();
+        // resume from the next page in a later trigger
+        request = null;
+        writeDeltaLink(userId, folderId, attributes, session, page.getNextPage().getRequestUrl());
+      }
+      else if (page.getNextPage() != null)
+      {
+        request = page.getNextPage().buildRequest(preferOptions);
       }
       else
       {
@@ -179,19 +263,118 @@ public class PontusMicrosoftGraphMessageCacheProcessor extends PontusMicrosoftGr
         String deltaLink = page.deltaLink();
         if (!deltaLink.equals(delta))
         {
-          FlowFile ff = session.create();
-          ff = session.putAllAttributes(ff, attributes);
-          ff = session.putAttribute(ff, OFFICE365_DELTA_VALUE, deltaLink);
-          ff = session.putAttribute(ff, OFFICE365_DELTA_KEY,
-              String.format(OFFICE365_DELTA_KEY_FORMAT_MESSAGE, userId, folderId));
-          writeFlowFile(ff, session, deltaLink, SUCCESS_MESSAGES);
-          session.commit();
-
+          writeDeltaLink(userId, folderId, attributes, session, deltaLink);
+        }
+        if (folderState != null)
+        {
+          cacheClient.put(PontusMicrosoftGraphFolderState.getSyncedKey(
+              String.format(OFFICE365_DELTA_KEY_FORMAT_MESSAGE, userId, folderId)), folderState, SER, SER);
         }
       }
     }
     while (request != null);
 
+    return count;
+  }
+
+  private void writeMessage(String userId, String folderId, Message message, IGraphServiceClient graphClient,
+                            Map<String, String> attributes, ProcessSession session, boolean backfilled)
+  {
+    FlowFile ff = session.create();
+    ff = session.putAllAttributes(ff, attributes);
+    ff = session.putAttribute(ff, OFFICE365_USER_ID, userId);
+    ff = session.putAttribute(ff, OFFICE365_FOLDER_ID, folderId);
+    ff = session.putAttribute(ff, OFFICE365_MESSAGE_ID, message.id);
+    if (backfilled)
+    {
+      ff = session.putAttribute(ff, OFFICE365_BACKFILL, "true");
+    }
+
+    loadAttachments(userId, message, graphClient, ff, session);
+    writeFlowFile(ff, session, message.getRawObject().toString(), SUCCESS_MESSAGES);
+    session.commit();
+  }
+
+  /*
+   * Lists the messages received before the Sync Horizon of the folders whose backfill has not completed, newest
+   * first, until the Backfill Run Duration is spent; the cursor is only moved on once the page has been committed.
+   */
+  private void runBackfill(Map<String, String> attributes, ProcessSession session) throws Exception
+  {
+    long deadline = System.currentTimeMillis() + backfillRunDuration;
+
+    for (String key : cacheClient.keySet(DES))
+    {
+      if (!key.startsWith(PontusMicrosoftGraphBackfill.OFFICE365_BACKFILL_KEY_PREFIX))
+      {
+        continue;
+      }
+      String cacheKey = key.substring(PontusMicrosoftGraphBackfill.OFFICE365_BACKFILL_KEY_PREFIX.length());
+      if (!cacheFilterRegex.matcher(cacheKey).matches())
+      {
+        continue;
+      }
+
+      String[] fields   = cacheKey.split(Pattern.quote("|"));
+      String   userId   = fields[1];
+      String   folderId = fields[2];
+      String   cursor   = cacheClient.get(key, SER, DES);
+
+      while (cursor != null)
+      {
+        if (!isScheduled() || System.currentTimeMillis() >= deadline)
+        {
+          return;
+        }
+
+        IGraphServiceClient    graphClient = authProviderService.getService();
+        IMessageCollectionPage page;
+        try
+        {
+          page = PontusMicrosoftGraphBackfill.getRequest(graphClient, userId, folderId, cursor, messageFields,
+              backfillPageSize, preferOptions).get();
+        }
+        catch (Exception ex)
+        {
+          authProviderService.refreshToken();
+          graphClient = authProviderService.getService();
+          page = PontusMicrosoftGraphBackfill.getRequest(graphClient, userId, folderId, cursor, messageFields,
+              backfillPageSize, preferOptions).get();
+        }
+
+        List<Message> messages = page.getCurrentPage();
+        if (messages != null)
+        {
+          for (Message message : messages)
+          {
+            writeMessage(userId, folderId, message, graphClient, attributes, session, true);
+          }
+        }
+
+        if (page.getNextPage() == null)
+        {
+          cursor = null;
+          cacheClient.remove(key, SER);
+        }
+        else
+        {
+          cursor = page.getNextPage().getRequestUrl();
+          cacheClient.put(key, cursor, SER, SER);
+        }
+      }
+    }
+  }
+
+  private void writeDeltaLink(String userId, String folderId, Map<String, String> attributes, ProcessSession session,
+                              String deltaLink)
+  {
+    FlowFile ff = session.create();
+    ff = session.putAllAttributes(ff, attributes);
+    ff = session.putAttribute(ff, OFFICE365_DELTA_VALUE, deltaLink);
+    ff = session.putAttribute(ff, OFFICE365_DELTA_KEY,
+        String.format(OFFICE365_DELTA_KEY_FORMAT_MESSAGE, userId, folderId));
+    writeFlowFile(ff, session, deltaLink, SUCCESS_MESSAGES);
+    session.commit();
   }
 
   @Override public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue,
@@ -212,6 +395,13 @@ public class PontusMicrosoftGraphMessageCacheProcessor extends PontusMicrosoftGr
       messageFields = context.getProperty(MESSAGE_FIELDS).evaluateAttributeExpressions().getValue();
 
     }
+    skipUnchangedFolders = context.getProperty(SKIP_UNCHANGED_FOLDERS).asBoolean();
+    syncHorizon = context.getProperty(SYNC_HORIZON).isSet() ?
+        context.getProperty(SYNC_HORIZON).asTimePeriod(TimeUnit.MILLISECONDS) : 0;
+    backfill = syncHorizon > 0 && context.getProperty(BACKFILL).asBoolean();
+    backfillRunDuration = context.getProperty(BACKFILL_RUN_DURATION).asTimePeriod(TimeUnit.MILLISECONDS);
+    backfillPageSize = context.getProperty(BACKFILL_PAGE_SIZE).asInteger();
+    preferOptions = getPreferOptions(context);
   }
 
   @Override public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException
@@ -232,29 +422,39 @@ public class PontusMicrosoftGraphMessageCacheProcessor extends PontusMicrosoftGr
 
     try
     {
-      Set<String> keys = cacheClient.keySet(DES);
-
-      for (String key : keys)
-      {
-        if (cacheFilterRegex.matcher(key).matches())
+      final long deadline = getRunDeadline();
+      processCacheKeys(context, attributes, deadline, (key, delta) -> {
+        String[] fields   = key.split(Pattern.quote("|"));
+        String   userId   = fields[1];
+        String   folderId = fields[2];
+
+        String folderState = null;
+        if (skipUnchangedFolders)
         {
-          String[] fields   = key.split(Pattern.quote("|"));
-          String   userId   = fields[1];
-          String   folderId = fields[2];
-
-          try
+          folderState = cacheClient.get(PontusMicrosoftGraphFolderState.getStateKey(key), SER, DES);
+          if (folderState != null && delta != null && delta.trim().length() > 0
+              && folderState.equals(cacheClient.get(PontusMicrosoftGraphFolderState.getSyncedKey(key), SER, DES)))
           {
-            loadMessages(userId, folderId, authProviderService.getService(), attributes, session, cacheClient.get(key,
-                SER, DES));
-          }
-          catch (Exception ex)
-          {
-            authProviderService.refreshToken();
-            loadMessages(userId, folderId, authProviderService.getService(), attributes, session, cacheClient.get(key,
-                SER, DES));
+            return 0;
           }
+        }
 
+        try
+        {
+          return loadMessages(userId, folderId, authProviderService.getService(), attributes, session, delta,
+              folderState, deadline);
+        }
+        catch (Exception ex)
+        {
+          authProviderService.refreshToken();
+          return loadMessages(userId, folderId, authProviderService.getService(), attributes, session, delta,
+              folderState, deadline);
         }
+      });
+
+      if (backfill && !isRunBudgetSpent(deadline))
+      {
+        runBackfill(attributes, session);
       }
 
       //            session.transfer(flowFile, ORIGINAL);
@@ -3,11 +3,14 @@ package com.pontusvision.processors.office365;
 import com.microsoft.graph.models.extensions.Attachment;
 import com.microsoft.graph.models.extensions.IGraphServiceClient;
 import com.microsoft.graph.models.extensions.Message;
+import com.microsoft.graph.options.Option;
 import com.microsoft.graph.requests.extensions.*;
 import com.pontusvision.nifi.office365.PontusMicrosoftGraphAuthControllerServiceInterface;
+import com.pontusvision.processors.office365.base.PontusMicrosoftGraphBackfill;
 import org.apache.commons.io.IOUtils;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
@@ -17,22 +20,29 @@ import org.apache.nifi.processor.util.StandardValidators;
 
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 import static com.pontusvision.nifi.office365.PontusMicrosoftGraphAuthControllerServiceInterface.getStackTrace;
 import static com.pontusvision.processors.office365.PontusMicrosoftGraphUserProcessor.OFFICE365_USER_ID;
 import static com.pontusvision.processors.office365.PontusMicrosoftGraphMessageFolderDeltaProcessor.OFFICE365_FOLDER_ID;
+import static com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor.PREFER_IMMUTABLE_IDS;
+import static com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor.PREFER_TEXT_BODY;
+import static com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor.SYNC_HORIZON;
+import static com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor.getPreferOptions;
 
 @Tags({ "GRAPH", "Message", "Microsoft", "Office 365" }) @CapabilityDescription("Get messages")
-
 public class PontusMicrosoftGraphMessageDeltaProcessor extends AbstractProcessor
 {
 
     private List<PropertyDescriptor> properties;
     private Set<Relationship>        relationships;
 
-    private String messageFields = null;
-    private String deltaField = null;
-    private PontusMicrosoftGraphAuthControllerServiceInterface authProviderService;
+    private volatile PontusMicrosoftGraphAuthControllerServiceInterface authProviderService;
+
+    public static final String OFFICE365_SYNC_HORIZON = "office365_sync_horizon";
+
+    private volatile long         syncHorizon   = 0;
+    private volatile List<Option> preferOptions = Collections.emptyList();
 
     final static PropertyDescriptor MESSAGE_FIELDS = new PropertyDescriptor.Builder()
             .name("Message Fields").defaultValue(
@@ -80,6 +90,9 @@ public class PontusMicrosoftGraphMessageDeltaProcessor extends AbstractProcessor
         properties.add(SERVICE);
         properties.add(MESSAGE_FIELDS);
         properties.add(DELTA_FIELD_NAME);
+        properties.add(SYNC_HORIZON);
+        properties.add(PREFER_TEXT_BODY);
+        properties.add(PREFER_IMMUTABLE_IDS);
 
         this.properties = Collections.unmodifiableList(properties);
 
@@ -97,7 +110,7 @@ public class PontusMicrosoftGraphMessageDeltaProcessor extends AbstractProcessor
     {
 
         IAttachmentCollectionRequest request = graphClient.users(userId).messages(message.id).attachments()
-                .buildRequest();
+                .buildRequest(preferOptions);
         do
         {
             IAttachmentCollectionPage page        = request.get();
@@ -114,7 +127,7 @@ public class PontusMicrosoftGraphMessageDeltaProcessor extends AbstractProcessor
             // Get next page request
             if (page.getNextPage() != null)
             {
-                request = page.getNextPage().buildRequest();
+                request = page.getNextPage().buildRequest(preferOptions);
             }
             else
             {
@@ -125,6 +138,28 @@ public class PontusMicrosoftGraphMessageDeltaProcessor extends AbstractProcessor
 
     }
 
+    /*
+     * The mailbox, folder and delta token a flow file's delta run starts from, with its $select fields and attributes.
+     */
+    static final class MessageRequest
+    {
+        final String              userId;
+        final String              folderId;
+        final String              deltaToken;
+        final String              messageFields;
+        final Map<String, String> attributes;
+
+        MessageRequest(String userId, String folderId, String deltaToken, String messageFields,
+                       Map<String, String> attributes)
+        {
+            this.userId = userId;
+            this.folderId = folderId;
+            this.deltaToken = deltaToken;
+            this.messageFields = messageFields;
+            this.attributes = Collections.unmodifiableMap(new HashMap<>(attributes));
+        }
+    }
+
     public static void writeFlowFile(FlowFile flowFile, ProcessSession session, String data, Relationship rel)
     {
         FlowFile ff = session.create(flowFile);
@@ -137,26 +172,41 @@ public class PontusMicrosoftGraphMessageDeltaProcessor extends AbstractProcessor
     /*
      * Load Messages
      */
-    private void loadMessages(String userId, String folderId, IGraphServiceClient graphClient,
-                              Map<String, String> attribs, ProcessSession session, String deltaToken) throws Exception
+    private void loadMessages(MessageRequest messageRequest, IGraphServiceClient graphClient,
+                              ProcessSession session) throws Exception
     {
+        final String userId = messageRequest.userId;
+        final String folderId = messageRequest.folderId;
+        final Map<String, String> attribs = messageRequest.attributes;
+
+        String horizon = null;
+
         IMessageDeltaCollectionRequest request;
-        if (deltaToken != null) {
+        if (messageRequest.deltaToken != null) {
             request = graphClient
                     .users(userId)
                     .mailFolders(folderId)
                     .messages()
-                    .delta(deltaToken)
-                    .buildRequest().top(10)
-                    .select(messageFields);
+                    .delta(messageRequest.deltaToken)
+                    .buildRequest(preferOptions).top(10)
+                    .select(messageRequest.messageFields);
+        } else if (syncHorizon > 0) {
+            horizon = PontusMicrosoftGraphBackfill.getHorizon(syncHorizon);
+            request = graphClient
+                    .users(userId)
+                    .mailFolders(folderId)
+                    .messages()
+                    .delta()
+                    .buildRequest(PontusMicrosoftGraphBackfill.getDeltaOptions(horizon, preferOptions)).top(10)
+                    .select(messageRequest.messageFields);
         } else {
             request = graphClient
                     .users(userId)
                     .mailFolders(folderId)
                     .messages()
                     .delta()
-                    .buildRequest().top(10)
-                    .select(messageFields);
+                    .buildRequest(preferOptions).top(10)
+                    .select(messageRequest.messageFields);
 
         }
 
@@ -181,7 +231,7 @@ public class PontusMicrosoftGraphMessageDeltaProcessor extends AbstractProcessor
             // Get next page request
             if (page.getNextPage() != null)
             {
-                request = page.getNextPage().buildRequest();
+                request = page.getNextPage().buildRequest(preferOptions);
             }
             else
             {
@@ -190,6 +240,11 @@ public class PontusMicrosoftGraphMessageDeltaProcessor extends AbstractProcessor
                 FlowFile ff = session.create();
                 ff = session.putAttribute(ff,OFFICE365_USER_ID, userId);
                 ff = session.putAttribute(ff,OFFICE365_FOLDER_ID, folderId);
+                if (horizon != null)
+                {
+                    // the messages received before this were not synced
+                    ff = session.putAttribute(ff, OFFICE365_SYNC_HORIZON, horizon);
+                }
                 ff = session.write(ff, out -> IOUtils.write(token, out, Charset.defaultCharset()));
                 session.transfer(ff, DELTA);
             }
@@ -198,17 +253,15 @@ public class PontusMicrosoftGraphMessageDeltaProcessor extends AbstractProcessor
 
     }
 
-    @Override public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue,
-                                             final String newValue)
+    @OnScheduled
+    public void onScheduled(final ProcessContext context)
     {
-        if (descriptor.equals(MESSAGE_FIELDS))
-        {
-            messageFields = newValue;
-        }
-        if (descriptor.equals(DELTA_FIELD_NAME))
-        {
-            deltaField = newValue;
-        }
+        authProviderService = context.getProperty(SERVICE)
+                .asControllerService(
+                        PontusMicrosoftGraphAuthControllerServiceInterface.class);
+        syncHorizon = context.getProperty(SYNC_HORIZON).isSet() ?
+                context.getProperty(SYNC_HORIZON).asTimePeriod(TimeUnit.MILLISECONDS) : 0;
+        preferOptions = getPreferOptions(context);
     }
 
     @Override public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException
@@ -240,28 +293,25 @@ public class PontusMicrosoftGraphMessageDeltaProcessor extends AbstractProcessor
             return;
         }
 
-        if (authProviderService == null)
-        {
-            authProviderService = context.getProperty(SERVICE)
-                    .asControllerService(
-                            PontusMicrosoftGraphAuthControllerServiceInterface.class);
-        }
+        final String deltaField = context.getProperty(DELTA_FIELD_NAME).getValue();
 
-        String deltaToken = flowFile.getAttribute(deltaField);
-        messageFields = context.getProperty(MESSAGE_FIELDS).evaluateAttributeExpressions(flowFile).getValue();
+        final MessageRequest messageRequest = new MessageRequest(userId, folderId,
+                deltaField == null ? null : flowFile.getAttribute(deltaField),
+                context.getProperty(MESSAGE_FIELDS).evaluateAttributeExpressions(flowFile).getValue(),
+                attributes);
 
         try
         {
             session.remove(flowFile);
 
-            loadMessages(userId, folderId, authProviderService.getService(), attributes, session, deltaToken);
+            loadMessages(messageRequest, authProviderService.getService(), session);
             //      session.transfer(flowFile, ORIGINAL);
         }
         catch (Exception ex)
         {
             try {
                 authProviderService.refreshToken();
-                loadMessages(userId, folderId, authProviderService.getService(), attributes, session, deltaToken);
+                loadMessages(messageRequest, authProviderService.getService(), session);
             }
             catch (Exception e) {
                 getLogger().error("Unable to process", ex);
@@ -5,15 +5,23 @@ import com.microsoft.graph.models.extensions.MailFolder;
 import com.microsoft.graph.requests.extensions.IMailFolderDeltaCollectionPage;
 import com.microsoft.graph.requests.extensions.IMailFolderDeltaCollectionRequest;
 import com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor;
+import com.pontusvision.processors.office365.base.PontusMicrosoftGraphFolderPolicy;
+import com.pontusvision.processors.office365.base.PontusMicrosoftGraphFolderState;
+import com.pontusvision.processors.office365.base.PontusMicrosoftGraphFolderSync;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.util.StandardValidators;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Pattern;
 
 @Tags({ "GRAPH", "Folder", "Microsoft", "Office 365" }) @CapabilityDescription("Get Message Folders")
@@ -22,6 +30,13 @@ public class PontusMicrosoftGraphMessageFolderCacheProcessor extends PontusMicro
 {
     private String messageFolderFields = null;
 
+    private          int                              maxConcurrentMailboxes = 1;
+    private volatile ExecutorService                  syncExecutor;
+    private          PontusMicrosoftGraphFolderPolicy folderPolicy           = PontusMicrosoftGraphFolderPolicy.NONE;
+
+    // the sync of the trigger running on this thread; with Concurrent Tasks above 1, each trigger has its own
+    private final ThreadLocal<PontusMicrosoftGraphFolderSync> folderSync = new ThreadLocal<>();
+
     final static PropertyDescriptor MESSAGE_FOLDER_FIELDS = new PropertyDescriptor.Builder()
             .name("Message Folder Fields").defaultValue(
                     "id,displayName,childFolderCount,parentFolderId,totalItemCount,unreadItemCount")
@@ -41,17 +56,116 @@ public class PontusMicrosoftGraphMessageFolderCacheProcessor extends PontusMicro
         super.init(context);
 
         List<PropertyDescriptor> properties = new ArrayList<>(this.properties);
+        properties.addAll(CACHE_KEY_SCHEDULING_PROPERTIES);
         properties.add(MESSAGE_FOLDER_FIELDS);
+        properties.add(MAX_CONCURRENT_MAILBOXES);
+        properties.add(EXCLUDED_WELL_KNOWN_FOLDERS);
+        properties.add(EXCLUDED_FOLDER_NAME_REGEX);
+        properties.add(INCLUDED_FOLDER_PATH_REGEX);
+        properties.add(EXCLUDED_FOLDER_PATH_REGEX);
 
         this.properties = Collections.unmodifiableList(properties);
     }
 
+    @OnScheduled
+    public void onScheduled(final ProcessContext context)
+    {
+        super.onScheduled(context);
+
+        folderPolicy = getFolderPolicy(context);
+        maxConcurrentMailboxes = context.getProperty(MAX_CONCURRENT_MAILBOXES).asInteger();
+        if (maxConcurrentMailboxes > 1)
+        {
+            syncExecutor = Executors.newFixedThreadPool(maxConcurrentMailboxes);
+        }
+    }
+
+    @OnStopped
+    public void onStopped()
+    {
+        if (syncExecutor != null)
+        {
+            syncExecutor.shutdownNow();
+            syncExecutor = null;
+        }
+        super.onStopped();
+    }
+
+    /*
+     * With more than one Max Concurrent Mailboxes, process() only starts the walk of each mailbox; the walks still in
+     * flight once every entry has been handed out are completed here, before the trigger is committed.
+     */
+    @Override protected long processCacheKeys(ProcessContext context, Map<String, String> attributes, long deadline,
+                                              CacheKeyProcessor processor) throws Exception
+    {
+        try
+        {
+            long counter = super.processCacheKeys(context, attributes, deadline, processor);
+            if (folderSync.get() != null)
+            {
+                folderSync.get().finish();
+            }
+            return counter;
+        }
+        finally
+        {
+            if (folderSync.get() != null)
+            {
+                folderSync.get().close();
+                folderSync.remove();
+            }
+        }
+    }
+
+    private PontusMicrosoftGraphFolderSync getFolderSync(final ProcessSession session, final FlowFile flowFile,
+                                                         final long deadline)
+    {
+        PontusMicrosoftGraphFolderSync sync = folderSync.get();
+        if (sync == null)
+        {
+            sync = new PontusMicrosoftGraphFolderSync(syncExecutor, maxConcurrentMailboxes, authProviderService,
+                    folderPolicy, () -> isRunBudgetSpent(deadline), new PontusMicrosoftGraphFolderSync.Listener()
+            {
+                @Override public void folder(String key, String userId, MailFolder folder) throws IOException
+                {
+                    writeFolder(userId, folder, flowFile, session);
+                }
+
+                @Override public void deltaLink(String key, String userId, String delta, String deltaLink)
+                {
+                    if (!deltaLink.equals(delta))
+                    {
+                        writeDeltaLink(userId, flowFile, session, deltaLink);
+                    }
+                }
+
+                @Override public void done(String key, String userId, long count, Exception error) throws Exception
+                {
+                    if (error != null)
+                    {
+                        // the other mailboxes carry on; this one is retried from its stored delta link next time
+                        handleError(getLogger(), error, session);
+                        return;
+                    }
+                    updateSchedule(key, adaptivePolling ? getSchedule(key) : null, count);
+                }
+            });
+            folderSync.set(sync);
+        }
+        return sync;
+    }
+
     /*
      * Load Messages
      */
-    private void loadFolders(String userId, IGraphServiceClient graphClient,
-                              FlowFile flowFile, ProcessSession session, String delta) throws Exception
+    private long loadFolders(String userId, IGraphServiceClient graphClient,
+                              FlowFile flowFile, ProcessSession session, String delta, long deadline)
+            throws Exception
     {
+        long count = 0;
+
+        PontusMicrosoftGraphFolderPolicy.Mailbox mailbox = folderPolicy.forMailbox(graphClient, userId);
+
         IMailFolderDeltaCollectionRequest request;
         if (delta != null && delta.trim().length() > 0) {
             request = graphClient
@@ -77,17 +191,22 @@ public class PontusMicrosoftGraphMessageFolderCacheProcessor extends PontusMicro
             {
                 for (MailFolder folder : folders)
                 {
-                    FlowFile ff = session.create(flowFile);
-                    ff = session.putAttribute(ff, OFFICE365_USER_ID, userId);
-                    ff = session.putAttribute(ff, OFFICE365_FOLDER_ID, folder.id);
-                    ff = session.putAttribute(ff, OFFICE365_CACHE_KEY,
-                            String.format(OFFICE365_DELTA_KEY_FORMAT_MESSAGE, userId, folder.id));
-                    writeFlowFile(ff, session, folder.getRawObject().toString(), SUCCESS);
+                    count++;
+                    if (mailbox.accept(folder))
+                    {
+                        writeFolder(userId, folder, flowFile, session);
+                    }
                 }
             }
 
             // Get next page request
-            if (page.getNextPage() != null)
+            if (page.getNextPage() != null && isRunBudgetSpent(deadline))
+            {
+                // resume from the next page in a later trigger
+                request = null;
+                writeDeltaLink(userId, flowFile, session, page.getNextPage().getRequestUrl());
+            }
+            else if (page.getNextPage() != null)
             {
                 request = page.getNextPage().buildRequest();
             }
@@ -96,15 +215,42 @@ public class PontusMicrosoftGraphMessageFolderCacheProcessor extends PontusMicro
                 request = null;
                 String deltaLink = page.deltaLink();
                 if (!deltaLink.equals(delta)) {
-                    FlowFile ff = session.create(flowFile);
-                    ff = session.putAttribute(ff, OFFICE365_DELTA_VALUE, deltaLink);
-                    ff = session.putAttribute(ff, OFFICE365_DELTA_KEY, String.format(OFFICE365_DELTA_KEY_FORMAT_FOLDER, userId));
-                    writeFlowFile(ff, session, deltaLink, SUCCESS);
+                    writeDeltaLink(userId, flowFile, session, deltaLink);
                 }
             }
         }
         while (request != null);
 
+        return count;
+    }
+
+    /*
+     * Emits the folder's message cache key, and records its item counters for the message cache processor's
+     * Skip Unchanged Folders.
+     */
+    private void writeFolder(String userId, MailFolder folder, FlowFile flowFile, ProcessSession session)
+            throws IOException
+    {
+        String cacheKey = String.format(OFFICE365_DELTA_KEY_FORMAT_MESSAGE, userId, folder.id);
+        String state    = PontusMicrosoftGraphFolderState.of(folder);
+        if (state != null)
+        {
+            cacheClient.put(PontusMicrosoftGraphFolderState.getStateKey(cacheKey), state, SER, SER);
+        }
+
+        FlowFile ff = session.create(flowFile);
+        ff = session.putAttribute(ff, OFFICE365_USER_ID, userId);
+        ff = session.putAttribute(ff, OFFICE365_FOLDER_ID, folder.id);
+        ff = session.putAttribute(ff, OFFICE365_CACHE_KEY, cacheKey);
+        writeFlowFile(ff, session, folder.getRawObject().toString(), SUCCESS);
+    }
+
+    private void writeDeltaLink(String userId, FlowFile flowFile, ProcessSession session, String deltaLink)
+    {
+        FlowFile ff = session.create(flowFile);
+        ff = session.putAttribute(ff, OFFICE365_DELTA_VALUE, deltaLink);
+        ff = session.putAttribute(ff, OFFICE365_DELTA_KEY, String.format(OFFICE365_DELTA_KEY_FORMAT_FOLDER, userId));
+        writeFlowFile(ff, session, deltaLink, SUCCESS);
     }
 
     @Override public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue,
@@ -117,18 +263,25 @@ public class PontusMicrosoftGraphMessageFolderCacheProcessor extends PontusMicro
     }
 
     @Override
-    public void process(ProcessContext context, ProcessSession session, FlowFile flowFile, String key, String delta) throws Exception {
+    public long process(ProcessContext context, ProcessSession session, FlowFile flowFile, String key, String delta,
+                        long deadline) throws Exception {
 
         String userId = key.split(Pattern.quote("|"))[1];
 
+        if (syncExecutor != null)
+        {
+            getFolderSync(session, flowFile, deadline).submit(key, userId, delta, messageFolderFields);
+            return -1;
+        }
+
         try
         {
-            loadFolders(userId, authProviderService.getService(), flowFile, session, delta);
+            return loadFolders(userId, authProviderService.getService(), flowFile, session, delta, deadline);
         }
         catch (Exception ex)
         {
             authProviderService.refreshToken();
-            loadFolders(userId, authProviderService.getService(), flowFile, session, delta);
+            return loadFolders(userId, authProviderService.getService(), flowFile, session, delta, deadline);
         }
     }
 }
@@ -4,20 +4,33 @@ import com.microsoft.graph.models.extensions.IGraphServiceClient;
 import com.microsoft.graph.models.extensions.MailFolder;
 import com.microsoft.graph.requests.extensions.*;
 import com.pontusvision.nifi.office365.PontusMicrosoftGraphAuthControllerServiceInterface;
+import com.pontusvision.processors.office365.base.PontusMicrosoftGraphFolderPolicy;
+import com.pontusvision.processors.office365.base.PontusMicrosoftGraphFolderSync;
 import org.apache.commons.io.IOUtils;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
 
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static com.pontusvision.nifi.office365.PontusMicrosoftGraphAuthControllerServiceInterface.getStackTrace;
+import static com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor.EXCLUDED_FOLDER_NAME_REGEX;
+import static com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor.EXCLUDED_FOLDER_PATH_REGEX;
+import static com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor.EXCLUDED_WELL_KNOWN_FOLDERS;
+import static com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor.INCLUDED_FOLDER_PATH_REGEX;
+import static com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor.MAX_CONCURRENT_MAILBOXES;
+import static com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor.getFolderPolicy;
 import static com.pontusvision.processors.office365.PontusMicrosoftGraphUserProcessor.OFFICE365_USER_ID;
 
 @Tags({ "GRAPH", "Folder", "Microsoft", "Office 365" }) @CapabilityDescription("Get Message Folders")
@@ -33,6 +46,10 @@ public class PontusMicrosoftGraphMessageFolderDeltaProcessor extends AbstractPro
     private String messageFolderFields = null;
     private PontusMicrosoftGraphAuthControllerServiceInterface authProviderService;
 
+    private          int                              maxConcurrentMailboxes = 1;
+    private volatile ExecutorService                  syncExecutor;
+    private          PontusMicrosoftGraphFolderPolicy folderPolicy           = PontusMicrosoftGraphFolderPolicy.NONE;
+
     final static PropertyDescriptor MESSAGE_FOLDER_FIELDS = new PropertyDescriptor.Builder()
             .name("Message Folder Fields").defaultValue(
                     "id,displayName,childFolderCount,parentFolderId,totalItemCount,unreadItemCount")
@@ -72,6 +89,11 @@ public class PontusMicrosoftGraphMessageFolderDeltaProcessor extends AbstractPro
         properties.add(SERVICE);
         properties.add(MESSAGE_FOLDER_FIELDS);
         properties.add(DELTA_FIELD_NAME);
+        properties.add(MAX_CONCURRENT_MAILBOXES);
+        properties.add(EXCLUDED_WELL_KNOWN_FOLDERS);
+        properties.add(EXCLUDED_FOLDER_NAME_REGEX);
+        properties.add(INCLUDED_FOLDER_PATH_REGEX);
+        properties.add(EXCLUDED_FOLDER_PATH_REGEX);
 
         this.properties = Collections.unmodifiableList(properties);
 
@@ -83,6 +105,27 @@ public class PontusMicrosoftGraphMessageFolderDeltaProcessor extends AbstractPro
         this.relationships = Collections.unmodifiableSet(relationships);
     }
 
+    @OnScheduled
+    public void onScheduled(final ProcessContext context)
+    {
+        folderPolicy = getFolderPolicy(context);
+        maxConcurrentMailboxes = context.getProperty(MAX_CONCURRENT_MAILBOXES).asInteger();
+        if (maxConcurrentMailboxes > 1)
+        {
+            syncExecutor = Executors.newFixedThreadPool(maxConcurrentMailboxes);
+        }
+    }
+
+    @OnStopped
+    public void onStopped()
+    {
+        if (syncExecutor != null)
+        {
+            syncExecutor.shutdownNow();
+            syncExecutor = null;
+        }
+    }
+
     public static void writeFlowFile(FlowFile flowFile, ProcessSession session, MailFolder folder)
     {
         FlowFile ff = session.create(flowFile);
@@ -100,6 +143,8 @@ public class PontusMicrosoftGraphMessageFolderDeltaProcessor extends AbstractPro
     private void loadFolders(String userId, IGraphServiceClient graphClient,
                               Map<String, String> attribs, ProcessSession session, String deltaToken) throws Exception
     {
+        PontusMicrosoftGraphFolderPolicy.Mailbox mailbox = folderPolicy.forMailbox(graphClient, userId);
+
         IMailFolderDeltaCollectionRequest request;
         if (deltaToken != null) {
             request = graphClient
@@ -125,6 +170,10 @@ public class PontusMicrosoftGraphMessageFolderDeltaProcessor extends AbstractPro
             {
                 for (MailFolder folder : folders)
                 {
+                    if (!mailbox.accept(folder))
+                    {
+                        continue;
+                    }
                     FlowFile flowFile = session.create();
                     flowFile = session.putAllAttributes(flowFile, attribs);
                     writeFlowFile(flowFile, session, folder);
@@ -152,6 +201,68 @@ public class PontusMicrosoftGraphMessageFolderDeltaProcessor extends AbstractPro
 
     }
 
+    /*
+     * Syncs the folders of up to Max Concurrent Mailboxes flow files at once; the folders of each mailbox are
+     * emitted as children of its flow file as soon as their page arrives, and the flow file is dropped once its
+     * delta link has been emitted, or routed to failure if its walk failed.
+     */
+    private void loadFolders(ProcessContext context, ProcessSession session, List<FlowFile> flowFiles) throws Exception
+    {
+        final Map<String, FlowFile> inputs = new HashMap<>();
+
+        try (PontusMicrosoftGraphFolderSync sync = new PontusMicrosoftGraphFolderSync(syncExecutor,
+                maxConcurrentMailboxes, authProviderService, folderPolicy, () -> false,
+                new PontusMicrosoftGraphFolderSync.Listener()
+        {
+            @Override public void folder(String key, String userId, MailFolder folder)
+            {
+                writeFlowFile(inputs.get(key), session, folder);
+            }
+
+            @Override public void deltaLink(String key, String userId, String delta, String deltaLink)
+            {
+                FlowFile ff = session.create(inputs.get(key));
+                ff = session.putAttribute(ff, OFFICE365_USER_ID, userId);
+                ff = session.write(ff, out -> IOUtils.write(deltaLink, out, Charset.defaultCharset()));
+                session.transfer(ff, DELTA);
+            }
+
+            @Override public void done(String key, String userId, long count, Exception error)
+            {
+                FlowFile flowFile = inputs.remove(key);
+                if (error == null)
+                {
+                    session.remove(flowFile);
+                    return;
+                }
+                getLogger().error("Unable to process", error);
+                flowFile = session.putAttribute(flowFile, "Office365.MessageFolderProcessor.Error", error.getMessage());
+                flowFile = session.putAttribute(flowFile, "Office365.MessageFolderProcessor.StackTrace",
+                        getStackTrace(error));
+                session.transfer(flowFile, FAILURE);
+            }
+        }))
+        {
+            for (FlowFile flowFile : flowFiles)
+            {
+                String userId = flowFile.getAttribute(OFFICE365_USER_ID);
+                if (userId == null)
+                {
+                    getLogger().error("Unable to process flow File; must add the attribute " + OFFICE365_USER_ID);
+                    session.transfer(flowFile, FAILURE);
+                    continue;
+                }
+
+                String key = flowFile.getAttribute(CoreAttributes.UUID.key());
+                inputs.put(key, flowFile);
+                sync.submit(key, userId, flowFile.getAttribute(deltaField), context.getProperty(MESSAGE_FOLDER_FIELDS)
+                                                                                 .evaluateAttributeExpressions(flowFile)
+                                                                                 .getValue());
+            }
+            sync.finish();
+        }
+    }
+
     @Override public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue,
                                              final String newValue)
     {
@@ -167,6 +278,31 @@ public class PontusMicrosoftGraphMessageFolderDeltaProcessor extends AbstractPro
 
     @Override public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException
     {
+        if (authProviderService == null)
+        {
+            authProviderService = context.getProperty(SERVICE)
+                    .asControllerService(
+                            PontusMicrosoftGraphAuthControllerServiceInterface.class);
+        }
+
+        if (syncExecutor != null)
+        {
+            List<FlowFile> flowFiles = session.get(maxConcurrentMailboxes);
+            if (flowFiles.isEmpty())
+            {
+                return;
+            }
+            try
+            {
+                loadFolders(context, session, flowFiles);
+            }
+            catch (Exception ex)
+            {
+                throw new ProcessException(ex);
+            }
+            return;
+        }
+
         FlowFile flowFile = session.get();
 
         if (flowFile == null)
@@ -186,13 +322,6 @@ public class PontusMicrosoftGraphMessageFolderDeltaProcessor extends AbstractPro
             return;
         }
 
-        if (authProviderService == null)
-        {
-            authProviderService = context.getProperty(SERVICE)
-                    .asControllerService(
-                            PontusMicrosoftGraphAuthControllerServiceInterface.class);
-        }
-
         String deltaToken = flowFile.getAttribute(deltaField);
         messageFolderFields = context.getProperty(MESSAGE_FOLDER_FIELDS).evaluateAttributeExpressions(flowFile).getValue();
 
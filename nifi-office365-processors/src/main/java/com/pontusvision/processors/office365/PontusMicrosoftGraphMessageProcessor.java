@@ -3,6 +3,7 @@ package com.pontusvision.processors.office365;
 import com.microsoft.graph.models.extensions.Attachment;
 import com.microsoft.graph.models.extensions.IGraphServiceClient;
 import com.microsoft.graph.models.extensions.Message;
+import com.microsoft.graph.options.Option;
 import com.microsoft.graph.requests.extensions.IAttachmentCollectionPage;
 import com.microsoft.graph.requests.extensions.IAttachmentCollectionRequest;
 import com.microsoft.graph.requests.extensions.IMessageCollectionPage;
@@ -12,6 +13,7 @@ import com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProces
 import org.apache.commons.io.IOUtils;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
@@ -23,17 +25,19 @@ import java.nio.charset.Charset;
 import java.util.*;
 
 import static com.pontusvision.processors.office365.PontusMicrosoftGraphUserProcessor.OFFICE365_USER_ID;
+import static com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor.PREFER_IMMUTABLE_IDS;
+import static com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor.PREFER_TEXT_BODY;
+import static com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor.getPreferOptions;
 
 @Tags({ "GRAPH", "Message", "Microsoft", "Office 365" }) @CapabilityDescription("Get messages")
-
 public class PontusMicrosoftGraphMessageProcessor extends AbstractProcessor
 {
 
   private List<PropertyDescriptor> properties;
   private Set<Relationship>        relationships;
 
-  private String                                             messageFields = null;
-  private PontusMicrosoftGraphAuthControllerServiceInterface authProviderService;
+  private volatile PontusMicrosoftGraphAuthControllerServiceInterface authProviderService;
+  private volatile List<Option>                                       preferOptions = Collections.emptyList();
 
   final static PropertyDescriptor MESSAGE_FIELDS = new PropertyDescriptor.Builder()
       .name("Message Fields").defaultValue(
@@ -71,6 +75,8 @@ public class PontusMicrosoftGraphMessageProcessor extends AbstractProcessor
     List<PropertyDescriptor> properties = new ArrayList<>();
     properties.add(SERVICE);
     properties.add(MESSAGE_FIELDS);
+    properties.add(PREFER_TEXT_BODY);
+    properties.add(PREFER_IMMUTABLE_IDS);
 
     this.properties = Collections.unmodifiableList(properties);
 
@@ -87,7 +93,7 @@ public class PontusMicrosoftGraphMessageProcessor extends AbstractProcessor
   {
 
     IAttachmentCollectionRequest request = graphClient.users(userId).messages(message.id).attachments()
-                                                      .buildRequest();
+                                                      .buildRequest(preferOptions);
     do
     {
       IAttachmentCollectionPage page        = request.get();
@@ -104,7 +110,7 @@ public class PontusMicrosoftGraphMessageProcessor extends AbstractProcessor
       // Get next page request
       if (page.getNextPage() != null)
       {
-        request = page.getNextPage().buildRequest();
+        request = page.getNextPage().buildRequest(preferOptions);
       }
       else
       {
@@ -115,6 +121,23 @@ public class PontusMicrosoftGraphMessageProcessor extends AbstractProcessor
 
   }
 
+  /*
+   * The mailbox, $select fields and flow file attributes used to list one flow file's messages.
+   */
+  static final class MessageRequest
+  {
+    final String              userId;
+    final String              messageFields;
+    final Map<String, String> attributes;
+
+    MessageRequest(String userId, String messageFields, Map<String, String> attributes)
+    {
+      this.userId = userId;
+      this.messageFields = messageFields;
+      this.attributes = Collections.unmodifiableMap(new HashMap<>(attributes));
+    }
+  }
+
   public static void writeFlowFile(FlowFile flowFile, ProcessSession session, String data, Relationship rel)
   {
     FlowFile ff = session.create(flowFile);
@@ -127,14 +150,17 @@ public class PontusMicrosoftGraphMessageProcessor extends AbstractProcessor
   /*
    * Load Messages
    */
-  private void loadMessages(String userId, IGraphServiceClient graphClient,
-                            Map<String, String> attribs, ProcessSession session) throws Exception
+  private void loadMessages(MessageRequest messageRequest, IGraphServiceClient graphClient,
+                            ProcessSession session) throws Exception
   {
+    final String              userId  = messageRequest.userId;
+    final Map<String, String> attribs = messageRequest.attributes;
+
     IMessageCollectionRequest request = graphClient
         .users(userId)
         .messages()
-        .buildRequest().top(10)
-        .select(messageFields);
+        .buildRequest(preferOptions).top(10)
+        .select(messageRequest.messageFields);
 
     do
     {
@@ -157,7 +183,7 @@ public class PontusMicrosoftGraphMessageProcessor extends AbstractProcessor
       // Get next page request
       if (page.getNextPage() != null)
       {
-        request = page.getNextPage().buildRequest();
+        request = page.getNextPage().buildRequest(preferOptions);
       }
       else
       {
@@ -168,13 +194,13 @@ public class PontusMicrosoftGraphMessageProcessor extends AbstractProcessor
 
   }
 
-  @Override public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue,
-                                           final String newValue)
+  @OnScheduled
+  public void onScheduled(final ProcessContext context)
   {
-    if (descriptor.equals(MESSAGE_FIELDS))
-    {
-      messageFields = newValue;
-    }
+    authProviderService = context.getProperty(SERVICE)
+                                 .asControllerService(
+                                     PontusMicrosoftGraphAuthControllerServiceInterface.class);
+    preferOptions = getPreferOptions(context);
   }
 
   @Override public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException
@@ -198,20 +224,14 @@ public class PontusMicrosoftGraphMessageProcessor extends AbstractProcessor
       return;
     }
 
-    if (authProviderService == null)
-    {
-      authProviderService = context.getProperty(SERVICE)
-                                   .asControllerService(
-                                       PontusMicrosoftGraphAuthControllerServiceInterface.class);
-    }
-
-    messageFields = context.getProperty(MESSAGE_FIELDS).evaluateAttributeExpressions(flowFile).getValue();
+    final MessageRequest messageRequest = new MessageRequest(userId,
+        context.getProperty(MESSAGE_FIELDS).evaluateAttributeExpressions(flowFile).getValue(), attributes);
 
     try
     {
       session.remove(flowFile);
 
-      loadMessages(userId, authProviderService.getService(), attributes, session);
+      loadMessages(messageRequest, authProviderService.getService(), session);
       //      session.transfer(flowFile, ORIGINAL);
     }
     catch (Exception e)
@@ -219,7 +239,7 @@ public class PontusMicrosoftGraphMessageProcessor extends AbstractProcessor
       try
       {
         authProviderService.refreshToken();
-        loadMessages(userId, authProviderService.getService(), attributes, session);
+        loadMessages(messageRequest, authProviderService.getService(), session);
 
       }
       catch (Exception ex2)
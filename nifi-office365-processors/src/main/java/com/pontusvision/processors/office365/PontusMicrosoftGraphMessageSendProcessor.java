@@ -1,26 +1,47 @@
 package com.pontusvision.processors.office365;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.microsoft.graph.concurrency.ICallback;
 import com.microsoft.graph.core.ClientException;
+import com.microsoft.graph.http.GraphServiceException;
 import com.microsoft.graph.models.extensions.*;
 import com.microsoft.graph.models.generated.BodyType;
 import com.microsoft.graph.models.generated.Importance;
 import com.microsoft.graph.requests.extensions.IUserRequestBuilder;
 import com.pontusvision.nifi.office365.PontusMicrosoftGraphAuthControllerServiceInterface;
 import com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor;
+import com.pontusvision.processors.office365.base.PontusMicrosoftGraphBatch;
+import com.pontusvision.processors.office365.base.PontusMicrosoftGraphDedupeStore;
+import com.pontusvision.processors.office365.base.PontusMicrosoftGraphRawRequest;
 import org.apache.commons.io.IOUtils;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.components.Validator;
+import org.apache.nifi.distributed.cache.client.AtomicDistributedMapCacheClient;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 @Tags({ "GRAPH", "Message", "Microsoft", "Office 365", "mail",
     "email" , "send", "o365"}) @CapabilityDescription("Sends Office 365 email messages")
@@ -141,6 +162,226 @@ public class PontusMicrosoftGraphMessageSendProcessor extends AbstractProcessor
       .build();
 
 
+  public final static String             ATTACHMENT_MODE_NONE    = "None";
+  public final static String             ATTACHMENT_MODE_CONTENT = "Flow File Content";
+  public final static String             ATTACHMENT_MODE_NAME    = "Attachment";
+  public final static PropertyDescriptor ATTACHMENT_MODE         = new PropertyDescriptor.Builder()
+      .name(ATTACHMENT_MODE_NAME).displayName(ATTACHMENT_MODE_NAME)
+      .description("Whether to attach the flow file content to the message (the body then only comes from the "
+          + BODY_NAME + " property).  With an attachment, the message is created as a draft, the "
+          + "content is attached (inline if smaller than 3 MB, otherwise through an upload session, in byte range "
+          + "chunks streamed from the content repository), and the draft is sent; drafts are always saved to the "
+          + "sent items folder.").required(true)
+      .allowableValues(ATTACHMENT_MODE_NONE, ATTACHMENT_MODE_CONTENT)
+      .defaultValue(ATTACHMENT_MODE_NONE)
+      .build();
+
+  public final static String             ATTACHMENT_NAME_NAME    = "Attachment File Name";
+  public final static String             ATTACHMENT_NAME_DEFAULT = "${filename}";
+  public final static PropertyDescriptor ATTACHMENT_NAME         = new PropertyDescriptor.Builder()
+      .name(ATTACHMENT_NAME_NAME).displayName(ATTACHMENT_NAME_NAME)
+      .description("File name of the attachment.").required(true)
+      .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+      .defaultValue(ATTACHMENT_NAME_DEFAULT)
+      .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+      .build();
+
+  public final static String             ATTACHMENT_CONTENT_TYPE_NAME    = "Attachment Content Type";
+  public final static String             ATTACHMENT_CONTENT_TYPE_DEFAULT = "${mime.type}";
+  public final static PropertyDescriptor ATTACHMENT_CONTENT_TYPE         = new PropertyDescriptor.Builder()
+      .name(ATTACHMENT_CONTENT_TYPE_NAME).displayName(ATTACHMENT_CONTENT_TYPE_NAME)
+      .description("MIME type of the attachment; application/octet-stream if empty.").required(false)
+      .addValidator(Validator.VALID)
+      .defaultValue(ATTACHMENT_CONTENT_TYPE_DEFAULT)
+      .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+      .build();
+
+  public final static String             UPLOAD_CHUNK_SIZE_NAME    = "Upload Chunk Size";
+  public final static String             UPLOAD_CHUNK_SIZE_DEFAULT = "3840 KB";
+  public final static PropertyDescriptor UPLOAD_CHUNK_SIZE         = new PropertyDescriptor.Builder()
+      .name(UPLOAD_CHUNK_SIZE_NAME).displayName(UPLOAD_CHUNK_SIZE_NAME)
+      .description("Size of the byte ranges used to upload large attachments; rounded down to a multiple of "
+          + "320 KB, as required by Graph upload sessions, and capped at 3840 KB, as Outlook rejects any range over "
+          + "4 MB.").required(true)
+      .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+      .defaultValue(UPLOAD_CHUNK_SIZE_DEFAULT)
+      .build();
+
+  public final static String             UPLOAD_CONCURRENCY_NAME    = "Upload Concurrency";
+  public final static String             UPLOAD_CONCURRENCY_DEFAULT = "1";
+  public final static PropertyDescriptor UPLOAD_CONCURRENCY         = new PropertyDescriptor.Builder()
+      .name(UPLOAD_CONCURRENCY_NAME).displayName(UPLOAD_CONCURRENCY_NAME)
+      .description("Number of byte ranges of a large attachment uploaded at the same time; 1 uploads them one after "
+          + "the other.  Each range in flight holds one chunk in memory.").required(true)
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .defaultValue(UPLOAD_CONCURRENCY_DEFAULT)
+      .build();
+
+  /*
+   * Attachments smaller than this are posted inline; larger ones go through an upload session.
+   */
+  public final static long UPLOAD_SESSION_THRESHOLD = 3L * 1024 * 1024;
+  public final static int  UPLOAD_CHUNK_MULTIPLE    = 320 * 1024;
+  /*
+   * The largest multiple of UPLOAD_CHUNK_MULTIPLE within the 4 MB Outlook accepts in one PUT.
+   */
+  public final static int  UPLOAD_CHUNK_MAX         = 12 * UPLOAD_CHUNK_MULTIPLE;
+
+  private volatile boolean         attachContent     = false;
+  private volatile int             uploadChunkSize   = UPLOAD_CHUNK_MAX;
+  private volatile int             uploadConcurrency = 1;
+  private volatile ExecutorService uploadExecutor;
+
+  public final static String             SEND_BATCH_SIZE_NAME    = "Send Batch Size";
+  public final static String             SEND_BATCH_SIZE_DEFAULT = "1";
+  public final static PropertyDescriptor SEND_BATCH_SIZE         = new PropertyDescriptor.Builder()
+      .name(SEND_BATCH_SIZE_NAME).displayName(SEND_BATCH_SIZE_NAME)
+      .description("Number of flow files taken from the queue per invocation.  When greater than 1, the messages are "
+          + "sent through Graph JSON $batch requests of up to " + PontusMicrosoftGraphBatch.MAX_BATCH_SIZE
+          + " sendMail calls, and the result of each send is routed back to its flow file (with the "
+          + "office365_send_status attribute).  Not used when the flow file content is sent as an attachment.")
+      .required(true)
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .defaultValue(SEND_BATCH_SIZE_DEFAULT)
+      .build();
+
+  public final static String             MAX_SENDS_PER_MAILBOX_NAME    = "Max Concurrent Sends per Mailbox";
+  public final static String             MAX_SENDS_PER_MAILBOX_DEFAULT = "4";
+  public final static PropertyDescriptor MAX_SENDS_PER_MAILBOX         = new PropertyDescriptor.Builder()
+      .name(MAX_SENDS_PER_MAILBOX_NAME).displayName(MAX_SENDS_PER_MAILBOX_NAME)
+      .description("In batch mode, the maximum number of sends from the same mailbox that a $batch request runs at "
+          + "the same time (Exchange allows 4 concurrent requests per mailbox).  Further sends from that mailbox "
+          + "are chained after earlier ones with dependsOn; if a send fails, the sends chained after it fail with "
+          + "HTTP 424 and are penalized.")
+      .required(true)
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .defaultValue(MAX_SENDS_PER_MAILBOX_DEFAULT)
+      .build();
+
+  public final static String OFFICE365_SEND_STATUS = "office365_send_status";
+
+  private volatile int sendBatchSize      = 1;
+  private volatile int maxSendsPerMailbox = 4;
+
+  public final static int MAX_ASYNC_SENDS_PER_TRIGGER = 1000;
+
+  /*
+   * How long an async trigger that stops early waits for the sends still in flight before putting them back.
+   */
+  final static long ASYNC_DRAIN_TIMEOUT_MS = 30000;
+
+  public final static String             MAX_IN_FLIGHT_NAME    = "Max In-Flight Sends";
+  public final static String             MAX_IN_FLIGHT_DEFAULT = "1";
+  public final static PropertyDescriptor MAX_IN_FLIGHT         = new PropertyDescriptor.Builder()
+      .name(MAX_IN_FLIGHT_NAME).displayName(MAX_IN_FLIGHT_NAME)
+      .description("Maximum number of sends in flight at the same time.  When greater than 1, each invocation "
+          + "sends asynchronously: it takes flow files from the queue until this many sends are in flight, and only "
+          + "takes more as sends complete, routing each flow file as soon as its send completes; the session is "
+          + "committed once the queue is empty, or after " + MAX_ASYNC_SENDS_PER_TRIGGER + " flow files.  Not used "
+          + "in batch mode, or when the flow file content is sent as an attachment.")
+      .required(true)
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .defaultValue(MAX_IN_FLIGHT_DEFAULT)
+      .build();
+
+  private volatile int maxInFlight = 1;
+
+  public final static String             DEDUPE_STORE_NONE        = "None";
+  public final static String             DEDUPE_STORE_MEMORY      = "In Memory";
+  public final static String             DEDUPE_STORE_DISTRIBUTED = "Distributed Map Cache";
+  public final static String             DEDUPE_STORE_NAME        = "Duplicate Send Protection";
+  public final static PropertyDescriptor DEDUPE_STORE             = new PropertyDescriptor.Builder()
+      .name(DEDUPE_STORE_NAME).displayName(DEDUPE_STORE_NAME)
+      .description("Where to record the idempotency keys of the messages sent, so a message sent again within the "
+          + "Duplicate Send Window (e.g. a flow file replayed, or retried after a timeout where the first send "
+          + "actually went through) is skipped and routed to success with office365_send_duplicate=true.  "
+          + DEDUPE_STORE_MEMORY + " only protects within this processor instance; " + DEDUPE_STORE_DISTRIBUTED
+          + " protects across the cluster.").required(true)
+      .allowableValues(DEDUPE_STORE_NONE, DEDUPE_STORE_MEMORY, DEDUPE_STORE_DISTRIBUTED)
+      .defaultValue(DEDUPE_STORE_NONE)
+      .build();
+
+  public final static String             DEDUPE_CACHE_NAME = "Duplicate Send Cache";
+  public final static PropertyDescriptor DEDUPE_CACHE      = new PropertyDescriptor.Builder()
+      .name(DEDUPE_CACHE_NAME).displayName(DEDUPE_CACHE_NAME)
+      .description("Distributed Map Cache used to record the messages sent when " + DEDUPE_STORE_NAME + " is "
+          + DEDUPE_STORE_DISTRIBUTED + "; the keys are stored under "
+          + PontusMicrosoftGraphDedupeStore.OFFICE365_SENT_KEY_PREFIX + "<key>; it must support atomic updates (e.g. "
+          + "DistributedMapCacheClientService), so that two nodes cannot both send the same message.").required(false)
+      .identifiesControllerService(AtomicDistributedMapCacheClient.class)
+      .build();
+
+  public final static String             IDEMPOTENCY_KEY_ATTRIBUTE_NAME = "Idempotency Key Attribute";
+  public final static PropertyDescriptor IDEMPOTENCY_KEY_ATTRIBUTE      = new PropertyDescriptor.Builder()
+      .name(IDEMPOTENCY_KEY_ATTRIBUTE_NAME).displayName(IDEMPOTENCY_KEY_ATTRIBUTE_NAME)
+      .description("Name of the flow file attribute that holds the idempotency key of the message.  If not set, or "
+          + "the attribute is missing, the key is a SHA-256 hash of the sender, recipients, subject, importance and "
+          + "body (plus the content size, for attachments).  The key is written to office365_idempotency_key.")
+      .required(false)
+      .addValidator(StandardValidators.ATTRIBUTE_KEY_VALIDATOR)
+      .build();
+
+  public final static String             DEDUPE_WINDOW_NAME    = "Duplicate Send Window";
+  public final static String             DEDUPE_WINDOW_DEFAULT = "1 hour";
+  public final static PropertyDescriptor DEDUPE_WINDOW         = new PropertyDescriptor.Builder()
+      .name(DEDUPE_WINDOW_NAME).displayName(DEDUPE_WINDOW_NAME)
+      .description("How long a message sent is remembered; the same message sent again after this is sent as usual.")
+      .required(true)
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .defaultValue(DEDUPE_WINDOW_DEFAULT)
+      .build();
+
+  public final static String             DEDUPE_MAX_ENTRIES_NAME    = "Duplicate Send Max Entries";
+  public final static String             DEDUPE_MAX_ENTRIES_DEFAULT = "100000";
+  public final static PropertyDescriptor DEDUPE_MAX_ENTRIES         = new PropertyDescriptor.Builder()
+      .name(DEDUPE_MAX_ENTRIES_NAME).displayName(DEDUPE_MAX_ENTRIES_NAME)
+      .description("With " + DEDUPE_STORE_MEMORY + ", the number of keys remembered; the least recently used keys "
+          + "are dropped first.").required(true)
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .defaultValue(DEDUPE_MAX_ENTRIES_DEFAULT)
+      .build();
+
+  public final static String OFFICE365_IDEMPOTENCY_KEY = "office365_idempotency_key";
+  public final static String OFFICE365_SEND_DUPLICATE  = "office365_send_duplicate";
+  public final static String OFFICE365_SEND_OUTCOME    = "office365_send_outcome";
+
+  private volatile PontusMicrosoftGraphDedupeStore dedupeStore;
+  private volatile long                            dedupeWindow;
+  private volatile String                          idempotencyKeyAttribute;
+
+  /*
+   * How a failed send is handled: AUTH is retried once with a refreshed token; THROTTLED (and sends that were not
+   * attempted) go back to the queue penalized; REJECTED (Graph refused the message, so nothing was sent) goes to
+   * failure; UNKNOWN (a timeout, or a server error) may have been sent, so it goes to failure with its key kept
+   * reserved, and is never retried automatically.
+   */
+  enum SendFailure
+  {
+    AUTH, THROTTLED, REJECTED, UNKNOWN
+  }
+
+  /*
+   * A send in flight; the callback sets error (null on success) and hands it back through the completion queue.
+   */
+  private static final class PendingSend
+  {
+    FlowFile flowFile;
+    final String   userId;
+    final Message  msg;
+    final boolean  saveToSentItems;
+    String    dedupeKey = null;
+    int       attempts  = 0;
+    Exception error     = null;
+
+    PendingSend(FlowFile flowFile, String userId, Message msg, boolean saveToSentItems)
+    {
+      this.flowFile = flowFile;
+      this.userId = userId;
+      this.msg = msg;
+      this.saveToSentItems = saveToSentItems;
+    }
+  }
+
   public static final Relationship SUCCESS = new Relationship.Builder().name("success")
                                                                        .description("Success relationship for messages")
                                                                        .build();
@@ -148,6 +389,114 @@ public class PontusMicrosoftGraphMessageSendProcessor extends AbstractProcessor
   public static final Relationship FAILURE = new Relationship.Builder().name("failure")
                                                                        .description("Failure relationship").build();
 
+  private static final int RECIPIENT_CACHE_SIZE = 1024;
+
+  /*
+   * Parsed recipient lists, keyed by the comma-separated list they were parsed from; the lists are never modified,
+   * so they are shared between messages.
+   */
+  private final Map<String, List<Recipient>> recipientCache = Collections.synchronizedMap(
+      new LinkedHashMap<String, List<Recipient>>(16, 0.75f, true)
+      {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, List<Recipient>> eldest)
+        {
+          return size() > RECIPIENT_CACHE_SIZE;
+        }
+      });
+
+  private volatile MessageTemplate template;
+
+  /*
+   * One message property, compiled in @OnScheduled: the converted value if the property has no Expression
+   * Language, otherwise the property, evaluated and converted per flow file.
+   */
+  private static final class TemplateField<T>
+  {
+    final PropertyValue       property;
+    final T                   value;
+    final Function<String, T> converter;
+
+    private TemplateField(PropertyValue property, T value, Function<String, T> converter)
+    {
+      this.property = property;
+      this.value = value;
+      this.converter = converter;
+    }
+
+    static <T> TemplateField<T> compile(ProcessContext context, PropertyDescriptor descriptor,
+                                        Function<String, T> converter)
+    {
+      PropertyValue property = context.getProperty(descriptor);
+      return property.isExpressionLanguagePresent() ?
+          new TemplateField<>(property, null, converter) :
+          new TemplateField<>(null, converter.apply(property.getValue()), converter);
+    }
+
+    T evaluate(FlowFile flowFile)
+    {
+      return property == null ? value : converter.apply(property.evaluateAttributeExpressions(flowFile).getValue());
+    }
+  }
+
+  /*
+   * The message properties compiled once, so each flow file only evaluates the properties that use Expression
+   * Language, and recipient lists are parsed once per distinct list.
+   */
+  private final class MessageTemplate
+  {
+    final TemplateField<String>          userId;
+    final TemplateField<String>          subject;
+    final TemplateField<String>          body;
+    final TemplateField<BodyType>        bodyType;
+    final TemplateField<Importance>      importance;
+    final TemplateField<Boolean>         saveToSentItems;
+    final TemplateField<List<Recipient>> toRecipients;
+    final TemplateField<List<Recipient>> ccRecipients;
+    final TemplateField<List<Recipient>> bccRecipients;
+    final boolean                        bodyFromContent;
+
+    MessageTemplate(ProcessContext context, boolean bodyFromContent)
+    {
+      Function<String, List<Recipient>> recipients = csv -> csv == null ?
+          Collections.emptyList() :
+          recipientCache.computeIfAbsent(csv, key -> Collections.unmodifiableList(getRecipientsList(key)));
+
+      this.userId = TemplateField.compile(context, USER_ID, Function.identity());
+      this.subject = TemplateField.compile(context, SUBJECT, Function.identity());
+      this.body = TemplateField.compile(context, BODY, Function.identity());
+      this.bodyType = TemplateField.compile(context, BODY_TYPE, value -> BodyType.valueOf(value.toUpperCase()));
+      this.importance = TemplateField.compile(context, IMPORTANCE, value -> Importance.valueOf(value.toUpperCase()));
+      this.saveToSentItems = TemplateField.compile(context, SAVE_TO_SENT_ITEMS, Boolean::parseBoolean);
+      this.toRecipients = TemplateField.compile(context, TO_RECIPIENTS, recipients);
+      this.ccRecipients = TemplateField.compile(context, CC_RECIPIENTS, recipients);
+      this.bccRecipients = TemplateField.compile(context, BCC_RECIPIENTS, recipients);
+      this.bodyFromContent = bodyFromContent;
+    }
+
+    PendingSend prepare(ProcessSession session, FlowFile flowFile)
+    {
+      String content = body.evaluate(flowFile);
+      if (bodyFromContent && (content == null || content.length() == 0))
+      {
+        final StringBuilder bodySb = new StringBuilder();
+        session.read(flowFile, in -> bodySb.append(IOUtils.toString(in, Charset.defaultCharset())));
+        content = bodySb.toString();
+      }
+
+      Message msg = new Message();
+      msg.body = new ItemBody();
+      msg.body.content = content;
+      msg.body.contentType = bodyType.evaluate(flowFile);
+      msg.subject = subject.evaluate(flowFile);
+      msg.bccRecipients = bccRecipients.evaluate(flowFile);
+      msg.ccRecipients = ccRecipients.evaluate(flowFile);
+      msg.toRecipients = toRecipients.evaluate(flowFile);
+      msg.importance = importance.evaluate(flowFile);
+
+      return new PendingSend(flowFile, userId.evaluate(flowFile), msg, saveToSentItems.evaluate(flowFile));
+    }
+  }
+
   @Override public void init(final ProcessorInitializationContext context)
   {
     List<PropertyDescriptor> properties = new ArrayList<>();
@@ -161,6 +510,19 @@ public class PontusMicrosoftGraphMessageSendProcessor extends AbstractProcessor
     properties.add(IMPORTANCE);
     properties.add(BODY_TYPE);
     properties.add(BODY);
+    properties.add(ATTACHMENT_MODE);
+    properties.add(ATTACHMENT_NAME);
+    properties.add(ATTACHMENT_CONTENT_TYPE);
+    properties.add(UPLOAD_CHUNK_SIZE);
+    properties.add(UPLOAD_CONCURRENCY);
+    properties.add(SEND_BATCH_SIZE);
+    properties.add(MAX_SENDS_PER_MAILBOX);
+    properties.add(MAX_IN_FLIGHT);
+    properties.add(DEDUPE_STORE);
+    properties.add(DEDUPE_CACHE);
+    properties.add(IDEMPOTENCY_KEY_ATTRIBUTE);
+    properties.add(DEDUPE_WINDOW);
+    properties.add(DEDUPE_MAX_ENTRIES);
 
     this.properties = Collections.unmodifiableList(properties);
 
@@ -207,6 +569,83 @@ public class PontusMicrosoftGraphMessageSendProcessor extends AbstractProcessor
     return body;
   }
 
+  @OnScheduled
+  public void onScheduled(final ProcessContext context)
+  {
+    attachContent = ATTACHMENT_MODE_CONTENT.equals(context.getProperty(ATTACHMENT_MODE).getValue());
+
+    long chunkSize = context.getProperty(UPLOAD_CHUNK_SIZE).asDataSize(DataUnit.B).longValue();
+    chunkSize = Math.min(chunkSize, UPLOAD_CHUNK_MAX);
+    uploadChunkSize = (int) Math.max(UPLOAD_CHUNK_MULTIPLE, chunkSize - chunkSize % UPLOAD_CHUNK_MULTIPLE);
+
+    uploadConcurrency = context.getProperty(UPLOAD_CONCURRENCY).asInteger();
+    sendBatchSize = context.getProperty(SEND_BATCH_SIZE).asInteger();
+    maxSendsPerMailbox = context.getProperty(MAX_SENDS_PER_MAILBOX).asInteger();
+    maxInFlight = context.getProperty(MAX_IN_FLIGHT).asInteger();
+    if (attachContent && uploadConcurrency > 1)
+    {
+      uploadExecutor = Executors.newCachedThreadPool();
+    }
+
+    recipientCache.clear();
+    template = new MessageTemplate(context, !attachContent);
+
+    String store = context.getProperty(DEDUPE_STORE).getValue();
+    if (DEDUPE_STORE_MEMORY.equals(store))
+    {
+      dedupeStore = new PontusMicrosoftGraphDedupeStore.InMemory(context.getProperty(DEDUPE_MAX_ENTRIES).asInteger());
+    }
+    else if (DEDUPE_STORE_DISTRIBUTED.equals(store))
+    {
+      @SuppressWarnings("unchecked") AtomicDistributedMapCacheClient<Object> cacheClient = context
+          .getProperty(DEDUPE_CACHE).asControllerService(AtomicDistributedMapCacheClient.class);
+      dedupeStore = new PontusMicrosoftGraphDedupeStore.Distributed(cacheClient);
+    }
+    else
+    {
+      dedupeStore = null;
+    }
+    dedupeWindow = context.getProperty(DEDUPE_WINDOW).asTimePeriod(TimeUnit.MILLISECONDS);
+    idempotencyKeyAttribute = context.getProperty(IDEMPOTENCY_KEY_ATTRIBUTE).getValue();
+  }
+
+  @Override protected Collection<ValidationResult> customValidate(final ValidationContext context)
+  {
+    List<ValidationResult> results = new ArrayList<>();
+    if (DEDUPE_STORE_DISTRIBUTED.equals(context.getProperty(DEDUPE_STORE).getValue()) && !context
+        .getProperty(DEDUPE_CACHE).isSet())
+    {
+      results.add(new ValidationResult.Builder().subject(DEDUPE_CACHE_NAME).valid(false)
+          .explanation(DEDUPE_CACHE_NAME + " is required when " + DEDUPE_STORE_NAME + " is "
+              + DEDUPE_STORE_DISTRIBUTED).build());
+    }
+    return results;
+  }
+
+  @OnStopped
+  public void onStopped()
+  {
+    if (uploadExecutor != null)
+    {
+      uploadExecutor.shutdownNow();
+      uploadExecutor = null;
+    }
+  }
+
+  public static IUserRequestBuilder getUser(String userId, IGraphServiceClient graphClient)
+  {
+    if ("me".equalsIgnoreCase(userId))
+    {
+      return graphClient.me();
+    }
+    return graphClient.users(userId);
+  }
+
+  public static String getUserPath(String userId)
+  {
+    return "me".equalsIgnoreCase(userId) ? "/me" : "/users/" + userId;
+  }
+
   /*
    * Load Messages
    */
@@ -215,18 +654,17 @@ public class PontusMicrosoftGraphMessageSendProcessor extends AbstractProcessor
                                  String importance,
                                  IGraphServiceClient graphClient) throws ClientException
   {
-    IUserRequestBuilder user = null;
+    IUserRequestBuilder user = getUser(userId, graphClient);
 
-    if ("me".equalsIgnoreCase(userId))
-    {
-      user = graphClient.me();
+    Message msg = buildMessage(subject, bccRecipients, ccRecipients, toRecipients, body, bodyType, importance);
 
-    }
-    else
-    {
-      user = graphClient.users(userId);
-    }
+    user.sendMail(msg, saveToSentItems).buildRequest().post();
+
+  }
 
+  public static Message buildMessage(String subject, String bccRecipients, String ccRecipients,
+                                     String toRecipients, String body, String bodyType, String importance)
+  {
     Message msg = new Message();
 
     msg.body = new ItemBody();
@@ -242,77 +680,729 @@ public class PontusMicrosoftGraphMessageSendProcessor extends AbstractProcessor
     msg.toRecipients = getRecipientsList(toRecipients);
     msg.importance = Importance.valueOf(importance.toUpperCase());
 
-    user.sendMail(msg, saveToSentItems).buildRequest().post();
+    return msg;
+  }
 
+  /*
+   * Sends the message with the flow file content as a file attachment: creates a draft, attaches the content
+   * (through an upload session if it is large), and sends the draft.  The draft is deleted if any step fails.
+   */
+  public void sendMessageWithAttachment(String userId, Message msg, String fileName, String contentType,
+                                        ProcessSession session, FlowFile flowFile,
+                                        IGraphServiceClient graphClient) throws Exception
+  {
+    IUserRequestBuilder user  = getUser(userId, graphClient);
+    Message             draft = user.messages().buildRequest().post(msg);
+
+    try
+    {
+      long size = flowFile.getSize();
+      if (size < UPLOAD_SESSION_THRESHOLD)
+      {
+        final byte[] content = new byte[(int) size];
+        session.read(flowFile, in -> readChunk(in, content, content.length));
+
+        FileAttachment attachment = new FileAttachment();
+        attachment.oDataType = "#microsoft.graph.fileAttachment";
+        attachment.name = fileName;
+        attachment.contentType = contentType;
+        attachment.contentBytes = content;
+        user.messages(draft.id).attachments().buildRequest().post(attachment);
+      }
+      else
+      {
+        JsonObject item = new JsonObject();
+        item.addProperty("attachmentType", "file");
+        item.addProperty("name", fileName);
+        item.addProperty("size", size);
+        item.addProperty("contentType", contentType);
+        JsonObject uploadSessionReq = new JsonObject();
+        uploadSessionReq.add("AttachmentItem", item);
+
+        JsonObject uploadSession = graphClient
+            .customRequest(getUserPath(userId) + "/messages/" + draft.id + "/attachments/createUploadSession")
+            .buildRequest().post(uploadSessionReq);
+
+        uploadContent(uploadSession.get("uploadUrl").getAsString(), size, session, flowFile);
+      }
+
+      user.messages(draft.id).send().buildRequest().post();
+    }
+    catch (Exception ex)
+    {
+      try
+      {
+        user.messages(draft.id).buildRequest().delete();
+      }
+      catch (Exception deleteEx)
+      {
+        getLogger().warn("Failed to delete draft message {} after a failed send", new Object[] { draft.id },
+            deleteEx);
+      }
+      throw ex;
+    }
   }
 
-  @Override public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue,
-                                           final String newValue)
+  private static int readChunk(InputStream in, byte[] buffer, int length) throws IOException
   {
-    if (descriptor.equals(SERVICE))
+    int total = 0;
+    int len;
+    while (total < length && (len = in.read(buffer, total, length - total)) != -1)
     {
-      authProviderService = null;
+      total += len;
     }
+    if (total < length)
+    {
+      throw new IOException("Unexpected end of content after " + total + " of " + length + " bytes");
+    }
+    return total;
+  }
+
+  /*
+   * Streams the flow file content to the upload session in Upload Chunk Size byte ranges.  With an Upload
+   * Concurrency above 1, up to that many ranges are in flight at once, each in one of a fixed pool of buffers; the
+   * next chunk is only read from the content repository once a buffer is free.
+   */
+  private void uploadContent(final String uploadUrl, final long size, ProcessSession session, FlowFile flowFile)
+  {
+    final int             chunkSize   = uploadChunkSize;
+    final int             concurrency = uploadConcurrency;
+    final ExecutorService executor    = uploadExecutor;
+
+    session.read(flowFile, in -> {
+      long offset = 0;
+
+      if (concurrency <= 1 || executor == null)
+      {
+        byte[] buffer = new byte[chunkSize];
+        while (offset < size)
+        {
+          int len = readChunk(in, buffer, (int) Math.min(chunkSize, size - offset));
+          PontusMicrosoftGraphRawRequest.uploadRange(uploadUrl, buffer, len, offset, size);
+          offset += len;
+        }
+        return;
+      }
+
+      final BlockingQueue<byte[]>        buffers = new ArrayBlockingQueue<>(concurrency);
+      final AtomicReference<IOException> failure = new AtomicReference<>();
+      final List<Future<?>>              uploads = new ArrayList<>();
+      for (int i = 0; i < concurrency; i++)
+      {
+        buffers.add(new byte[chunkSize]);
+      }
+
+      try
+      {
+        while (offset < size && failure.get() == null)
+        {
+          final byte[] buffer      = buffers.take();
+          final long   chunkOffset = offset;
+          final int    len         = readChunk(in, buffer, (int) Math.min(chunkSize, size - offset));
+          offset += len;
+
+          uploads.add(executor.submit(() -> {
+            try
+            {
+              PontusMicrosoftGraphRawRequest.uploadRange(uploadUrl, buffer, len, chunkOffset, size);
+            }
+            catch (IOException ex)
+            {
+              failure.compareAndSet(null, ex);
+            }
+            finally
+            {
+              buffers.add(buffer);
+            }
+          }));
+        }
+        for (Future<?> upload : uploads)
+        {
+          upload.get();
+        }
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+        uploads.forEach(upload -> upload.cancel(true));
+        throw new IOException("Interrupted while uploading the attachment", ex);
+      }
+      catch (ExecutionException ex)
+      {
+        throw new IOException(ex.getCause());
+      }
 
+      if (failure.get() != null)
+      {
+        throw failure.get();
+      }
+    });
   }
 
-  @Override public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException
+  private void send(ProcessContext context, ProcessSession session, PendingSend send,
+                    IGraphServiceClient graphClient) throws Exception
   {
-    FlowFile flowFile = session.get();
+    if (!attachContent)
+    {
+      getUser(send.userId, graphClient).sendMail(send.msg, send.saveToSentItems).buildRequest().post();
+      return;
+    }
 
-    if (flowFile == null)
+    FlowFile flowFile    = send.flowFile;
+    String   fileName    = context.getProperty(ATTACHMENT_NAME).evaluateAttributeExpressions(flowFile).getValue();
+    String   contentType = context.getProperty(ATTACHMENT_CONTENT_TYPE).evaluateAttributeExpressions(flowFile).getValue();
+    if (contentType == null || contentType.trim().isEmpty())
+    {
+      contentType = "application/octet-stream";
+    }
+
+    sendMessageWithAttachment(send.userId, send.msg, fileName, contentType, session, flowFile, graphClient);
+  }
+
+  /*
+   * The idempotency key of a send: the Idempotency Key Attribute if present, otherwise a hash of what is sent.
+   */
+  private String getIdempotencyKey(PendingSend send) throws NoSuchAlgorithmException
+  {
+    String attribute = idempotencyKeyAttribute;
+    if (attribute != null)
+    {
+      String key = send.flowFile.getAttribute(attribute);
+      if (key != null && !key.isEmpty())
+      {
+        return key;
+      }
+    }
+
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    Message       msg    = send.msg;
+    for (Object field : new Object[] { send.userId.toLowerCase(), send.saveToSentItems, msg.subject,
+        msg.importance, msg.body.contentType, msg.body.content, addresses(msg.toRecipients),
+        addresses(msg.ccRecipients), addresses(msg.bccRecipients),
+        attachContent ? send.flowFile.getSize() : null })
+    {
+      digest.update(String.valueOf(field).getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+    }
+
+    StringBuilder hex = new StringBuilder(64);
+    for (byte b : digest.digest())
+    {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  private static String addresses(List<Recipient> recipients)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (Recipient recipient : recipients)
+    {
+      sb.append(recipient.emailAddress.address).append(',');
+    }
+    return sb.toString();
+  }
+
+  /*
+   * Reserves the idempotency key of the send; returns false (having routed the flow file to success as a
+   * duplicate) if the same message was already sent within the Duplicate Send Window.
+   */
+  private boolean reserve(ProcessSession session, PendingSend send) throws Exception
+  {
+    PontusMicrosoftGraphDedupeStore store = dedupeStore;
+    if (store == null)
+    {
+      return true;
+    }
+
+    String  key      = getIdempotencyKey(send);
+    boolean reserved = store.reserve(key, System.currentTimeMillis(), dedupeWindow);
+    send.flowFile = session.putAttribute(send.flowFile, OFFICE365_IDEMPOTENCY_KEY, key);
+    if (reserved)
     {
+      send.dedupeKey = key;
+      return true;
+    }
+
+    getLogger().info("Skipping a duplicate send of {} (idempotency key {})", new Object[] { send.flowFile, key });
+    session.adjustCounter("Office365 Duplicate Sends Skipped", 1, false);
+    session.transfer(session.putAttribute(send.flowFile, OFFICE365_SEND_DUPLICATE, "true"), SUCCESS);
+    return false;
+  }
+
+  /*
+   * The HTTP status behind a failed send, or -1 if there was no response (e.g. a timeout or a connection reset).
+   */
+  static int getResponseCode(Throwable ex)
+  {
+    for (Throwable cause = ex; cause != null; cause = cause.getCause())
+    {
+      if (cause instanceof GraphServiceException)
+      {
+        return ((GraphServiceException) cause).getResponseCode();
+      }
+      if (cause instanceof PontusMicrosoftGraphRawRequest.HttpStatusException)
+      {
+        return ((PontusMicrosoftGraphRawRequest.HttpStatusException) cause).getResponseCode();
+      }
+    }
+    return -1;
+  }
+
+  static SendFailure classify(int responseCode)
+  {
+    if (responseCode == 401)
+    {
+      return SendFailure.AUTH;
+    }
+    // 424: a send chained before this one in a $batch failed, so this one was not attempted
+    if (responseCode == 429 || responseCode == 503 || responseCode == 424)
+    {
+      return SendFailure.THROTTLED;
+    }
+    if (responseCode >= 400 && responseCode < 500)
+    {
+      return SendFailure.REJECTED;
+    }
+    return SendFailure.UNKNOWN;
+  }
+
+  /*
+   * Routes a failed send: releases its key unless the message may have been sent, and either puts the flow file
+   * back on the queue (penalized) or routes it to failure.
+   */
+  private void failed(ProcessSession session, PendingSend send, Exception ex, SendFailure failure)
+  {
+    if (send.dedupeKey != null && failure != SendFailure.UNKNOWN)
+    {
+      try
+      {
+        dedupeStore.release(send.dedupeKey);
+      }
+      catch (Exception releaseEx)
+      {
+        getLogger().warn("Failed to release idempotency key {}", new Object[] { send.dedupeKey }, releaseEx);
+      }
+    }
+
+    if (failure == SendFailure.THROTTLED)
+    {
+      getLogger().warn("Send of {} throttled or not attempted; penalizing it and retrying later",
+          new Object[] { send.flowFile }, ex);
+      session.transfer(session.penalize(send.flowFile));
       return;
     }
 
-    if (authProviderService == null)
+    if (failure == SendFailure.UNKNOWN)
     {
-      authProviderService = context.getProperty(SERVICE)
-                                   .asControllerService(
-                                       PontusMicrosoftGraphAuthControllerServiceInterface.class);
+      send.flowFile = session.putAttribute(send.flowFile, OFFICE365_SEND_OUTCOME, "unknown");
+    }
+    PontusMicrosoftGraphBaseProcessor.handleError(getLogger(), ex, session, send.flowFile);
+  }
+
+  /*
+   * Batch mode: sends up to Send Batch Size messages through $batch requests, with at most Max Concurrent Sends per
+   * Mailbox sends from the same mailbox running at once, and routes each result to its flow file.
+   */
+  private void processBatch(final ProcessContext context, final ProcessSession session)
+  {
+    List<FlowFile> flowFiles = session.get(sendBatchSize);
+    if (flowFiles.isEmpty())
+    {
+      return;
     }
-    String subject = context.getProperty(SUBJECT).evaluateAttributeExpressions(flowFile).getValue();
 
-    String body = getBody(context,session,flowFile);
-    String bodyType = context.getProperty(BODY_TYPE).evaluateAttributeExpressions(flowFile).getValue();
-    String userId = context.getProperty(USER_ID).evaluateAttributeExpressions(flowFile).getValue();
+    final IGraphServiceClient graphClient = authProviderService.getService();
+    final JsonParser          parser      = new JsonParser();
 
-    Boolean saveToSentItems = context.getProperty(SAVE_TO_SENT_ITEMS).evaluateAttributeExpressions(flowFile).asBoolean();
+    for (List<FlowFile> chunk : PontusMicrosoftGraphBatch.partition(flowFiles))
+    {
+      List<PontusMicrosoftGraphBatch.Request> requests        = new ArrayList<>(chunk.size());
+      Map<String, PendingSend>                pending         = new HashMap<>();
+      Map<String, Integer>                    sendsPerMailbox = new HashMap<>();
+      Map<String, String>                     lastIdByChain   = new HashMap<>();
 
-    String  toRecipients = context.getProperty(TO_RECIPIENTS).evaluateAttributeExpressions(flowFile).getValue();
+      for (FlowFile flowFile : chunk)
+      {
+        PendingSend send = null;
+        try
+        {
+          String id = Integer.toString(requests.size());
+          send = template.prepare(session, flowFile);
+          String userId = send.userId;
+          if (!reserve(session, send))
+          {
+            continue;
+          }
+
+          JsonObject sendMail = new JsonObject();
+          sendMail.add("message", parser.parse(graphClient.getSerializer().serializeObject(send.msg)));
+          sendMail.addProperty("saveToSentItems", send.saveToSentItems);
+
+          // spread the sends of each mailbox over at most maxSendsPerMailbox dependsOn chains
+          String mailbox = userId.toLowerCase();
+          int    count   = sendsPerMailbox.merge(mailbox, 1, Integer::sum) - 1;
+          String chain   = mailbox + "#" + (count % maxSendsPerMailbox);
+
+          requests.add(new PontusMicrosoftGraphBatch.Request(id, "POST", getUserPath(userId) + "/sendMail",
+              Collections.emptyMap(), sendMail, lastIdByChain.get(chain)));
+          lastIdByChain.put(chain, id);
+          pending.put(id, send);
+        }
+        catch (Exception ex)
+        {
+          if (send != null)
+          {
+            // reserve() may have replaced the flow file and taken a key; the message was never sent
+            failed(session, send, ex, SendFailure.REJECTED);
+          }
+          else
+          {
+            PontusMicrosoftGraphBaseProcessor.handleError(getLogger(), ex, session, flowFile);
+          }
+        }
+      }
 
-    String ccRecipients = context.getProperty(CC_RECIPIENTS).evaluateAttributeExpressions(flowFile).getValue();
+      if (requests.isEmpty())
+      {
+        continue;
+      }
 
-    String bccRecipients = context.getProperty(BCC_RECIPIENTS).evaluateAttributeExpressions(flowFile).getValue();
+      Map<String, PontusMicrosoftGraphBatch.Response> responses = null;
+      for (int attempt = 1; responses == null; attempt++)
+      {
+        try
+        {
+          responses = PontusMicrosoftGraphBatch.execute(authProviderService.getService(), requests);
+        }
+        catch (Exception ex)
+        {
+          SendFailure failure = classify(getResponseCode(ex));
+          if (failure == SendFailure.AUTH && attempt < 2)
+          {
+            authProviderService.refreshToken();
+            continue;
+          }
+          pending.values().forEach(send -> failed(session, send, ex,
+              failure == SendFailure.AUTH ? SendFailure.REJECTED : failure));
+          break;
+        }
+      }
+      if (responses == null)
+      {
+        continue;
+      }
 
-    String importance = context.getProperty(IMPORTANCE).evaluateAttributeExpressions(flowFile).getValue();
+      for (Map.Entry<String, PendingSend> entry : pending.entrySet())
+      {
+        PontusMicrosoftGraphBatch.Response response = responses.get(entry.getKey());
+        PendingSend                        send     = entry.getValue();
+
+        if (response == null)
+        {
+          failed(session, send, new ProcessException("No response for this send in the $batch result"),
+              SendFailure.UNKNOWN);
+          continue;
+        }
+
+        send.flowFile = session.putAttribute(send.flowFile, OFFICE365_SEND_STATUS,
+            Integer.toString(response.getStatus()));
+        if (response.isSuccess())
+        {
+          session.transfer(send.flowFile, SUCCESS);
+          continue;
+        }
+
+        String error = response.getBodyAsString();
+        failed(session, send, new PontusMicrosoftGraphRawRequest.HttpStatusException(response.getStatus(),
+            error != null ? error : "HTTP " + response.getStatus()), classify(response.getStatus()));
+      }
+    }
+  }
 
+  /*
+   * Starts a send through the SDK's asynchronous API; the calling thread does not wait for the response.
+   */
+  private static void submit(final PendingSend send, IGraphServiceClient graphClient,
+                             final BlockingQueue<PendingSend> completions)
+  {
+    send.attempts++;
     try
     {
-      sendMessage(userId, subject, bccRecipients, ccRecipients, toRecipients, body, bodyType, saveToSentItems,
-          importance,
-          authProviderService.getService());
-
-      session.transfer(flowFile, SUCCESS);
+      ICallback<Void> callback = new ICallback<Void>()
+      {
+        @Override public void success(Void result)
+        {
+          send.error = null;
+          completions.add(send);
+        }
+
+        @Override public void failure(ClientException ex)
+        {
+          send.error = ex;
+          completions.add(send);
+        }
+      };
+      getUser(send.userId, graphClient).sendMail(send.msg, send.saveToSentItems).buildRequest().post(callback);
     }
     catch (Exception ex)
     {
+      send.error = ex;
+      completions.add(send);
+    }
+  }
+
+  /*
+   * Async mode: keeps up to Max In-Flight Sends sends in flight, only taking flow files from the queue when there is
+   * room, and routes each flow file (on this thread, as the session is not thread safe) as its send completes.
+   */
+  private void processAsync(final ProcessContext context, final ProcessSession session)
+  {
+    final BlockingQueue<PendingSend> completions = new LinkedBlockingQueue<>();
+    final Set<PendingSend>           inFlight    = new HashSet<>();
+    final int                        limit       = maxInFlight;
+
+    int     taken   = 0;
+    boolean drained = false;
+
+    try
+    {
+      while (true)
+      {
+        while (!drained && inFlight.size() < limit)
+        {
+          FlowFile flowFile = taken < MAX_ASYNC_SENDS_PER_TRIGGER && isScheduled() ? session.get() : null;
+          if (flowFile == null)
+          {
+            drained = true;
+            break;
+          }
+          taken++;
+
+          PendingSend send = null;
+          try
+          {
+            send = template.prepare(session, flowFile);
+            if (reserve(session, send))
+            {
+              IGraphServiceClient graphClient = authProviderService.getService();
+              inFlight.add(send);
+              submit(send, graphClient, completions);
+            }
+          }
+          catch (Exception ex)
+          {
+            if (send != null)
+            {
+              failed(session, send, ex, SendFailure.REJECTED);
+            }
+            else
+            {
+              PontusMicrosoftGraphBaseProcessor.handleError(getLogger(), ex, session, flowFile);
+            }
+          }
+        }
+
+        if (inFlight.isEmpty())
+        {
+          return;
+        }
+
+        PendingSend send = completions.take();
+        inFlight.remove(send);
+
+        SendFailure failure = send.error == null ? null : classify(getResponseCode(send.error));
+        if (failure != SendFailure.AUTH || send.attempts >= 2)
+        {
+          completed(session, send);
+          continue;
+        }
+
+        IGraphServiceClient graphClient;
+        try
+        {
+          authProviderService.refreshToken();
+          graphClient = authProviderService.getService();
+        }
+        catch (RuntimeException ex)
+        {
+          failed(session, send, ex, SendFailure.REJECTED);
+          continue;
+        }
+        inFlight.add(send);
+        submit(send, graphClient, completions);
+      }
+    }
+    catch (InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+    }
+    catch (RuntimeException ex)
+    {
+      getLogger().error("Async sends stopped early; routing the sends already made", ex);
+    }
+    finally
+    {
+      settle(session, completions, inFlight);
+    }
+  }
+
+  /*
+   * Routes a send that has completed (successfully or not).
+   */
+  private void completed(ProcessSession session, PendingSend send)
+  {
+    if (send.error == null)
+    {
+      session.transfer(send.flowFile, SUCCESS);
+      return;
+    }
+
+    SendFailure failure = classify(getResponseCode(send.error));
+    failed(session, send, send.error, failure == SendFailure.AUTH ? SendFailure.REJECTED : failure);
+  }
+
+  /*
+   * Leaves processAsync() without rolling back, as that would send the mails already sent again (or, with a dedupe
+   * store, skip them as duplicates while their flow files were never routed): waits up to ASYNC_DRAIN_TIMEOUT_MS
+   * for the sends still in flight, routes those that completed, and puts the rest back on the queue with their keys
+   * released.
+   */
+  private void settle(ProcessSession session, BlockingQueue<PendingSend> completions, Set<PendingSend> inFlight)
+  {
+    boolean interrupted = Thread.interrupted();
+    long    deadline    = System.currentTimeMillis() + ASYNC_DRAIN_TIMEOUT_MS;
+
+    while (!inFlight.isEmpty())
+    {
+      PendingSend send;
       try
       {
-        authProviderService.refreshToken();
-        sendMessage(userId, subject, bccRecipients, ccRecipients, toRecipients, body, bodyType, saveToSentItems,
-            importance,
-            authProviderService.getService());
+        long remaining = deadline - System.currentTimeMillis();
+        send = interrupted ? completions.poll() : completions.poll(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException ex)
+      {
+        interrupted = true;
+        continue;
+      }
+      if (send == null)
+      {
+        break;
+      }
+      if (!inFlight.remove(send))
+      {
+        continue;
+      }
 
-        session.transfer(flowFile, SUCCESS);
+      try
+      {
+        completed(session, send);
+      }
+      catch (RuntimeException ex)
+      {
+        getLogger().error("Failed to route {}", new Object[] { send.flowFile }, ex);
+      }
+    }
 
+    for (PendingSend send : inFlight)
+    {
+      getLogger().warn("Send of {} did not complete before the processor stopped; putting it back on the queue",
+          new Object[] { send.flowFile });
+      if (send.dedupeKey != null)
+      {
+        try
+        {
+          dedupeStore.release(send.dedupeKey);
+        }
+        catch (Exception releaseEx)
+        {
+          getLogger().warn("Failed to release idempotency key {}", new Object[] { send.dedupeKey }, releaseEx);
+        }
       }
-      catch (Exception ex2)
+      session.transfer(session.penalize(send.flowFile));
+    }
+    inFlight.clear();
+
+    if (interrupted)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue,
+                                           final String newValue)
+  {
+    if (descriptor.equals(SERVICE))
+    {
+      authProviderService = null;
+    }
+
+  }
+
+  @Override public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException
+  {
+    if (authProviderService == null)
+    {
+      authProviderService = context.getProperty(SERVICE)
+                                   .asControllerService(
+                                       PontusMicrosoftGraphAuthControllerServiceInterface.class);
+    }
+
+    if (sendBatchSize > 1 && !attachContent)
+    {
+      processBatch(context, session);
+      return;
+    }
+
+    if (maxInFlight > 1 && !attachContent)
+    {
+      processAsync(context, session);
+      return;
+    }
+
+    FlowFile flowFile = session.get();
+
+    if (flowFile == null)
+    {
+      return;
+    }
+    PendingSend send;
+    try
+    {
+      send = template.prepare(session, flowFile);
+      if (!reserve(session, send))
       {
-        PontusMicrosoftGraphBaseProcessor.handleError(getLogger(), ex2, session);
+        return;
       }
     }
+    catch (Exception ex)
+    {
+      PontusMicrosoftGraphBaseProcessor.handleError(getLogger(), ex, session, flowFile);
+      return;
+    }
 
+    // only retry what is known not to have been sent; a timeout may have sent the message already
+    for (int attempt = 1; ; attempt++)
+    {
+      try
+      {
+        send(context, session, send, authProviderService.getService());
+        session.transfer(send.flowFile, SUCCESS);
+        return;
+      }
+      catch (Exception ex)
+      {
+        SendFailure failure = classify(getResponseCode(ex));
+        if (failure == SendFailure.AUTH && attempt < 2)
+        {
+          authProviderService.refreshToken();
+          continue;
+        }
+        failed(session, send, ex, failure == SendFailure.AUTH ? SendFailure.REJECTED : failure);
+        return;
+      }
+    }
   }
 
   @Override public Set<Relationship> getRelationships()
@@ -1,13 +1,19 @@
 package com.pontusvision.processors.office365;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import com.microsoft.graph.models.extensions.IGraphServiceClient;
 import com.microsoft.graph.models.extensions.User;
 import com.microsoft.graph.requests.extensions.IUserDeltaCollectionPage;
 import com.microsoft.graph.requests.extensions.IUserDeltaCollectionRequest;
 import com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor;
+import com.pontusvision.processors.office365.base.PontusMicrosoftGraphBatch;
+import com.pontusvision.processors.office365.base.PontusMicrosoftGraphUserScan;
 import org.apache.nifi.annotation.behavior.DynamicProperty;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
@@ -15,6 +21,9 @@ import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.util.StandardValidators;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 @Tags({ "GRAPH", "User", "Microsoft", "Office 365" }) @CapabilityDescription("Gets Office users, and adds the userID for each user"
         + " in the office365_user_id flow file attribute")
@@ -26,6 +35,47 @@ public class PontusMicrosoftGraphUserCacheProcessor extends PontusMicrosoftGraph
 {
     private String userFields = null;
 
+    private volatile boolean            parallelInitialSync = false;
+    private volatile int                initialSyncConcurrency;
+    private volatile Collection<String> initialSyncBoundaries;
+    private volatile ExecutorService    scanExecutor;
+
+    public static final String MAILBOX_FILTER_NONE           = "None";
+    public static final String MAILBOX_FILTER_ASSIGNED_PLANS = "Assigned Plans";
+    public static final String MAILBOX_FILTER_PROBE          = "Mailbox Settings Probe";
+
+    public static final String OFFICE365_MAILBOX_ENABLED = "office365_mailbox_enabled";
+
+    final static PropertyDescriptor MAILBOX_FILTER = new PropertyDescriptor.Builder()
+            .name("Mailbox Filter")
+            .description("How to tell whether a user has a mailbox; only users with one get an "
+                    + OFFICE365_DELTA_KEY_FORMAT_FOLDER_PREFIX + "|<user id> cache key (and go to Success), the "
+                    + "others go to No Mailbox.  " + MAILBOX_FILTER_ASSIGNED_PLANS + " checks for an enabled "
+                    + "exchange plan in the user's assignedPlans (added to the User Fields), so it costs no extra "
+                    + "calls, but it also skips unlicensed shared and resource mailboxes.  " + MAILBOX_FILTER_PROBE
+                    + " reads each user's mailboxSettings (in $batch requests), which fails for users without a "
+                    + "mailbox.  Either way, the result is cached under "
+                    + OFFICE365_MAILBOX_KEY_FORMAT_PREFIX + "|<user id> for the Mailbox Check Cache TTL.")
+            .required(true)
+            .defaultValue(MAILBOX_FILTER_NONE)
+            .allowableValues(MAILBOX_FILTER_NONE, MAILBOX_FILTER_ASSIGNED_PLANS, MAILBOX_FILTER_PROBE)
+            .build();
+
+    final static PropertyDescriptor MAILBOX_CACHE_TTL = new PropertyDescriptor.Builder()
+            .name("Mailbox Check Cache TTL")
+            .description("How long a mailbox check is cached before the user is checked again.")
+            .required(true)
+            .defaultValue("1 day")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final Relationship NO_MAILBOX = new Relationship.Builder().name("No Mailbox")
+            .description("Users without a mailbox, when a Mailbox Filter is set").build();
+
+    private volatile String mailboxFilter = MAILBOX_FILTER_NONE;
+    private volatile long   mailboxCacheTtl;
+    private volatile String userSelect;
+
     final static PropertyDescriptor USER_FIELDS = new PropertyDescriptor.Builder()
             .name("User Fields").defaultValue("businessPhones,displayName,givenName,jobTitle,mail,mobilePhone,"
                     + "officeLocation,preferredLanguage,surname,userPrincipalName,id")
@@ -45,29 +95,95 @@ public class PontusMicrosoftGraphUserCacheProcessor extends PontusMicrosoftGraph
         super.init(context);
 
         List<PropertyDescriptor> properties = new ArrayList<>(this.properties);
+        properties.addAll(CACHE_KEY_SCHEDULING_PROPERTIES);
         properties.add(USER_FIELDS);
+        properties.add(INITIAL_SYNC_MODE);
+        properties.add(INITIAL_SYNC_SEGMENTS);
+        properties.add(INITIAL_SYNC_CONCURRENCY);
+        properties.add(MAILBOX_FILTER);
+        properties.add(MAILBOX_CACHE_TTL);
 
         this.properties = Collections.unmodifiableList(properties);
     }
 
+    private void updateRelationships(String filter)
+    {
+        Set<Relationship> relationships = new HashSet<>(this.relationships);
+        if (MAILBOX_FILTER_NONE.equals(filter))
+        {
+            relationships.remove(NO_MAILBOX);
+        }
+        else
+        {
+            relationships.add(NO_MAILBOX);
+        }
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context)
+    {
+        super.onScheduled(context);
+        if (userFields == null)
+        {
+            userFields = context.getProperty(USER_FIELDS).getValue();
+        }
+
+        parallelInitialSync = INITIAL_SYNC_MODE_PARALLEL.equals(context.getProperty(INITIAL_SYNC_MODE).getValue());
+        initialSyncConcurrency = context.getProperty(INITIAL_SYNC_CONCURRENCY).asInteger();
+        initialSyncBoundaries = PontusMicrosoftGraphUserScan.parseBoundaries(
+                context.getProperty(INITIAL_SYNC_SEGMENTS).getValue());
+        if (parallelInitialSync)
+        {
+            scanExecutor = Executors.newFixedThreadPool(initialSyncConcurrency);
+        }
+
+        mailboxFilter = context.getProperty(MAILBOX_FILTER).getValue();
+        mailboxCacheTtl = context.getProperty(MAILBOX_CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS);
+        userSelect = userFields;
+        if (MAILBOX_FILTER_ASSIGNED_PLANS.equals(mailboxFilter) && !Arrays.asList(userFields.split(","))
+                .contains("assignedPlans"))
+        {
+            userSelect = userFields + ",assignedPlans";
+        }
+    }
+
+    @OnStopped
+    public void onStopped()
+    {
+        if (scanExecutor != null)
+        {
+            scanExecutor.shutdownNow();
+            scanExecutor = null;
+        }
+        super.onStopped();
+    }
+
     /*
      * Load users
      */
-    private void loadUsers(IGraphServiceClient graphClient, FlowFile flowFile, ProcessSession session,
-                           String delta) throws Exception
+    private long loadUsers(IGraphServiceClient graphClient, FlowFile flowFile, ProcessSession session,
+                           String delta, long deadline) throws Exception
     {
+        if (delta == null && parallelInitialSync)
+        {
+            return scanUsers(graphClient, flowFile, session);
+        }
+
+        long count = 0;
+
         IUserDeltaCollectionRequest request;
 
         if (delta != null) {
             request = graphClient.users()
                     .delta(delta)
                     .buildRequest()
-                    .select(userFields);
+                    .select(userSelect);
         } else {
             request = graphClient.users()
                     .delta()
                     .buildRequest()
-                    .select(userFields);
+                    .select(userSelect);
         }
 
         do
@@ -77,17 +193,17 @@ public class PontusMicrosoftGraphUserCacheProcessor extends PontusMicrosoftGraph
 
             if (users != null && !users.isEmpty())
             {
-                for (User user : users)
-                {
-                    FlowFile ff = session.create(flowFile);
-                    ff = session.putAttribute(ff, OFFICE365_USER_ID, user.id);
-                    ff = session.putAttribute(ff, OFFICE365_CACHE_KEY, String.format(OFFICE365_DELTA_KEY_FORMAT_FOLDER, user.id));
-                    writeFlowFile(ff, session, user.getRawObject().toString(), SUCCESS);
-                }
+                count += writeUsers(graphClient, flowFile, session, users);
             }
 
             // Get next page request
-            if (page.getNextPage() != null)
+            if (page.getNextPage() != null && isRunBudgetSpent(deadline))
+            {
+                // resume from the next page in a later trigger
+                request = null;
+                writeDeltaLink(flowFile, session, page.getNextPage().getRequestUrl());
+            }
+            else if (page.getNextPage() != null)
             {
                 request = page.getNextPage().buildRequest();
             }
@@ -96,14 +212,221 @@ public class PontusMicrosoftGraphUserCacheProcessor extends PontusMicrosoftGraph
                 request = null;
                 String deltaLink = page.deltaLink();
                 if (!deltaLink.equals(delta)) {
-                    FlowFile ff = session.create(flowFile);
-                    ff = session.putAttribute(ff, OFFICE365_DELTA_VALUE, deltaLink);
-                    ff = session.putAttribute(ff, OFFICE365_DELTA_KEY, OFFICE365_DELTA_KEY_FORMAT_USER);
-                    writeFlowFile(ff, session, deltaLink, SUCCESS);
+                    writeDeltaLink(flowFile, session, deltaLink);
                 }
             }
         }while (request != null);
 
+        return count;
+    }
+
+    /*
+     * Initial sync in parallel segments: takes the delta baseline first, lists the whole directory, and only then
+     * emits the baseline, so an interrupted scan starts over rather than leaving users out.  As a scan cannot resume,
+     * it runs past the Max Run Duration, but stops between pages once the processor is stopped.
+     */
+    private long scanUsers(IGraphServiceClient graphClient, FlowFile flowFile, ProcessSession session) throws Exception
+    {
+        long   count     = 0;
+        String deltaLink = PontusMicrosoftGraphUserScan.getLatestDeltaLink(graphClient, userSelect);
+
+        try (PontusMicrosoftGraphUserScan scan = new PontusMicrosoftGraphUserScan(scanExecutor,
+                initialSyncConcurrency, graphClient, userSelect, initialSyncBoundaries))
+        {
+            List<User> users;
+            while ((users = scan.next(() -> !isScheduled())) != null)
+            {
+                count += writeUsers(graphClient, flowFile, session, users);
+            }
+
+            if (!scan.isComplete())
+            {
+                getLogger().info("Stopped during the initial user scan, after {} users; the scan starts over on the "
+                        + "next run", new Object[] { count });
+                return count;
+            }
+        }
+
+        writeDeltaLink(flowFile, session, deltaLink);
+        return count;
+    }
+
+    private long writeUsers(IGraphServiceClient graphClient, FlowFile flowFile, ProcessSession session,
+                            List<User> users) throws Exception
+    {
+        Map<String, Boolean> mailboxes = MAILBOX_FILTER_NONE.equals(mailboxFilter) ?
+                Collections.emptyMap() : getMailboxesEnabled(graphClient, users);
+
+        for (User user : users)
+        {
+            Boolean  enabled = mailboxes.get(user.id);
+            FlowFile ff      = session.create(flowFile);
+            ff = session.putAttribute(ff, OFFICE365_USER_ID, user.id);
+            if (enabled == null || enabled)
+            {
+                if (enabled != null)
+                {
+                    ff = session.putAttribute(ff, OFFICE365_MAILBOX_ENABLED, "true");
+                }
+                ff = session.putAttribute(ff, OFFICE365_CACHE_KEY,
+                        String.format(OFFICE365_DELTA_KEY_FORMAT_FOLDER, user.id));
+                writeFlowFile(ff, session, user.getRawObject().toString(), SUCCESS);
+            }
+            else
+            {
+                ff = session.putAttribute(ff, OFFICE365_MAILBOX_ENABLED, "false");
+                writeFlowFile(ff, session, user.getRawObject().toString(), NO_MAILBOX);
+            }
+        }
+        if (!mailboxes.isEmpty())
+        {
+            session.adjustCounter("Office365 Users Without Mailbox",
+                    mailboxes.values().stream().filter(enabled -> !enabled).count(), false);
+        }
+        return users.size();
+    }
+
+    /*
+     * Whether each user of a page has a mailbox: from the cache if checked within the TTL, otherwise from the
+     * user's assignedPlans or a mailboxSettings probe (in $batch requests).  Removed users have no mailbox; users
+     * that cannot be checked (e.g. an assignedPlans change not in the delta page, or a probe failing with an
+     * unexpected error) are assumed to have one, and are not cached.  The cache is read and written once per page,
+     * and only checks that are new, changed or expired are written.
+     */
+    private Map<String, Boolean> getMailboxesEnabled(IGraphServiceClient graphClient, List<User> users)
+            throws Exception
+    {
+        Map<String, Boolean> mailboxes = new HashMap<>(users.size() * 2);
+        Map<String, String>  updates   = new HashMap<>();
+        List<User>           toProbe   = new ArrayList<>();
+        long                 now       = System.currentTimeMillis();
+
+        Set<String> keys = new HashSet<>(users.size() * 2);
+        for (User user : users)
+        {
+            if (!user.getRawObject().has("@removed"))
+            {
+                keys.add(String.format(OFFICE365_MAILBOX_KEY_FORMAT, user.id));
+            }
+        }
+        Map<String, String> cached = keys.isEmpty() ? Collections.emptyMap() : cacheClient.subMap(keys, SER, DES);
+
+        for (User user : users)
+        {
+            JsonObject raw = user.getRawObject();
+            if (raw.has("@removed"))
+            {
+                mailboxes.put(user.id, false);
+                continue;
+            }
+
+            String  key     = String.format(OFFICE365_MAILBOX_KEY_FORMAT, user.id);
+            Boolean enabled = getMailboxEnabled(cached.get(key), now);
+            if (MAILBOX_FILTER_ASSIGNED_PLANS.equals(mailboxFilter) && raw.has("assignedPlans"))
+            {
+                boolean planned = hasExchangePlan(raw.get("assignedPlans"));
+                if (enabled == null || enabled != planned)
+                {
+                    updates.put(key, planned + "|" + now);
+                }
+                enabled = planned;
+            }
+
+            if (enabled == null && MAILBOX_FILTER_PROBE.equals(mailboxFilter))
+            {
+                toProbe.add(user);
+            }
+            else
+            {
+                mailboxes.put(user.id, enabled == null || enabled);
+            }
+        }
+
+        for (List<User> chunk : PontusMicrosoftGraphBatch.partition(toProbe))
+        {
+            List<PontusMicrosoftGraphBatch.Request> requests = new ArrayList<>(chunk.size());
+            for (int i = 0; i < chunk.size(); i++)
+            {
+                requests.add(new PontusMicrosoftGraphBatch.Request(Integer.toString(i), "GET",
+                        "/users/" + chunk.get(i).id + "/mailboxSettings?$select=timeZone", Collections.emptyMap(),
+                        null, null));
+            }
+            Map<String, PontusMicrosoftGraphBatch.Response> responses =
+                    PontusMicrosoftGraphBatch.execute(graphClient, requests);
+
+            for (int i = 0; i < chunk.size(); i++)
+            {
+                String                             userId   = chunk.get(i).id;
+                PontusMicrosoftGraphBatch.Response response = responses.get(Integer.toString(i));
+                if (response != null && (response.isSuccess() || response.getStatus() == 404))
+                {
+                    // 404 (MailboxNotEnabledForRESTAPI, or no mailbox at all)
+                    mailboxes.put(userId, response.isSuccess());
+                    updates.put(String.format(OFFICE365_MAILBOX_KEY_FORMAT, userId), response.isSuccess() + "|" + now);
+                }
+                else
+                {
+                    getLogger().debug("Unable to check the mailbox of user {}: HTTP {}", new Object[] { userId,
+                            response == null ? "no response" : response.getStatus() });
+                    mailboxes.put(userId, true);
+                }
+            }
+        }
+
+        if (!updates.isEmpty())
+        {
+            cacheClient.putAll(updates, SER, SER);
+        }
+        return mailboxes;
+    }
+
+    static boolean hasExchangePlan(JsonElement assignedPlans)
+    {
+        if (assignedPlans == null || !assignedPlans.isJsonArray())
+        {
+            return false;
+        }
+        for (JsonElement plan : assignedPlans.getAsJsonArray())
+        {
+            JsonObject  obj     = plan.getAsJsonObject();
+            JsonElement service = obj.get("service");
+            JsonElement status  = obj.get("capabilityStatus");
+            if (service != null && !service.isJsonNull() && "exchange".equalsIgnoreCase(service.getAsString())
+                    && status != null && !status.isJsonNull() && "Enabled".equalsIgnoreCase(status.getAsString()))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * A cached mailbox check (stored as <true|false>|<checked at>), or null if missing or expired.
+     */
+    private Boolean getMailboxEnabled(String cached, long now)
+    {
+        int idx = cached == null ? -1 : cached.indexOf('|');
+        if (idx < 0)
+        {
+            return null;
+        }
+        try
+        {
+            long checkedAt = Long.parseLong(cached.substring(idx + 1));
+            return now - checkedAt < mailboxCacheTtl ? Boolean.valueOf(cached.substring(0, idx)) : null;
+        }
+        catch (NumberFormatException ex)
+        {
+            return null;
+        }
+    }
+
+    private void writeDeltaLink(FlowFile flowFile, ProcessSession session, String deltaLink)
+    {
+        FlowFile ff = session.create(flowFile);
+        ff = session.putAttribute(ff, OFFICE365_DELTA_VALUE, deltaLink);
+        ff = session.putAttribute(ff, OFFICE365_DELTA_KEY, OFFICE365_DELTA_KEY_FORMAT_USER);
+        writeFlowFile(ff, session, deltaLink, SUCCESS);
     }
 
     @Override public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue,
@@ -113,27 +436,33 @@ public class PontusMicrosoftGraphUserCacheProcessor extends PontusMicrosoftGraph
         {
             userFields = newValue;
         }
+        if (descriptor.equals(MAILBOX_FILTER))
+        {
+            updateRelationships(newValue == null ? MAILBOX_FILTER_NONE : newValue);
+        }
     }
 
-    @Override public void process(ProcessContext context, ProcessSession session, FlowFile flowFile, String key, String delta) throws Exception {
+    @Override public long process(ProcessContext context, ProcessSession session, FlowFile flowFile, String key, String delta,
+                                  long deadline) throws Exception {
         try
         {
-            loadUsers(authProviderService.getService(), flowFile, session, delta);
+            return loadUsers(authProviderService.getService(), flowFile, session, delta, deadline);
         }
         catch (Exception ex) {
             authProviderService.refreshToken();
-            loadUsers(authProviderService.getService(), flowFile, session, delta);
+            return loadUsers(authProviderService.getService(), flowFile, session, delta, deadline);
         }
     }
 
-    @Override public void process(ProcessContext context, ProcessSession session, FlowFile flowFile) throws Exception {
+    @Override public long process(ProcessContext context, ProcessSession session, FlowFile flowFile) throws Exception {
+        final long deadline = getRunDeadline();
         try
         {
-            loadUsers(authProviderService.getService(), flowFile, session, null);
+            return loadUsers(authProviderService.getService(), flowFile, session, null, deadline);
         }
         catch (Exception ex) {
             authProviderService.refreshToken();
-            loadUsers(authProviderService.getService(), flowFile, session, null);
+            return loadUsers(authProviderService.getService(), flowFile, session, null, deadline);
         }
     }
 }
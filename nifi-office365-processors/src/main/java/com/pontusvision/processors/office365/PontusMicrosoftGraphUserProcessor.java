@@ -5,10 +5,13 @@ import com.microsoft.graph.models.extensions.User;
 import com.microsoft.graph.requests.extensions.IUserDeltaCollectionPage;
 import com.microsoft.graph.requests.extensions.IUserDeltaCollectionRequest;
 import com.pontusvision.nifi.office365.PontusMicrosoftGraphAuthControllerServiceInterface;
+import com.pontusvision.processors.office365.base.PontusMicrosoftGraphUserScan;
 import org.apache.commons.io.IOUtils;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.logging.ComponentLog;
@@ -18,6 +21,13 @@ import org.apache.nifi.processor.util.StandardValidators;
 
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor.INITIAL_SYNC_CONCURRENCY;
+import static com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor.INITIAL_SYNC_MODE;
+import static com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor.INITIAL_SYNC_MODE_PARALLEL;
+import static com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor.INITIAL_SYNC_SEGMENTS;
 
 @Tags({ "GRAPH", "User", "Microsoft", "Office 365" }) @CapabilityDescription("Gets Office users, and adds the userID for each user"
     + " in the office365_user_id flow file attribute")
@@ -31,6 +41,11 @@ public class PontusMicrosoftGraphUserProcessor extends AbstractProcessor
   private String                                             userFields = null;
   private PontusMicrosoftGraphAuthControllerServiceInterface authProviderService;
 
+  private volatile boolean            parallelSync = false;
+  private volatile int                syncConcurrency;
+  private volatile Collection<String> syncBoundaries;
+  private volatile ExecutorService    scanExecutor;
+
   final static PropertyDescriptor USER_FIELDS = new PropertyDescriptor.Builder()
       .name("User Fields").defaultValue("businessPhones,displayName,givenName,jobTitle,mail,mobilePhone,"
           + "officeLocation,preferredLanguage,surname,userPrincipalName,id")
@@ -59,6 +74,9 @@ public class PontusMicrosoftGraphUserProcessor extends AbstractProcessor
     List<PropertyDescriptor> properties = new ArrayList<>();
     properties.add(USER_FIELDS);
     properties.add(SERVICE);
+    properties.add(INITIAL_SYNC_MODE);
+    properties.add(INITIAL_SYNC_SEGMENTS);
+    properties.add(INITIAL_SYNC_CONCURRENCY);
 
     this.properties = Collections.unmodifiableList(properties);
 
@@ -79,12 +97,56 @@ public class PontusMicrosoftGraphUserProcessor extends AbstractProcessor
   }
 
 
+  @OnScheduled
+  public void onScheduled(final ProcessContext context)
+  {
+    if (userFields == null)
+    {
+      userFields = context.getProperty(USER_FIELDS).getValue();
+    }
+    parallelSync = INITIAL_SYNC_MODE_PARALLEL.equals(context.getProperty(INITIAL_SYNC_MODE).getValue());
+    syncConcurrency = context.getProperty(INITIAL_SYNC_CONCURRENCY).asInteger();
+    syncBoundaries = PontusMicrosoftGraphUserScan.parseBoundaries(context.getProperty(INITIAL_SYNC_SEGMENTS).getValue());
+    if (parallelSync)
+    {
+      scanExecutor = Executors.newFixedThreadPool(syncConcurrency);
+    }
+  }
+
+  @OnStopped
+  public void onStopped()
+  {
+    if (scanExecutor != null)
+    {
+      scanExecutor.shutdownNow();
+      scanExecutor = null;
+    }
+  }
+
   /*
    * Load users
    */
   private void loadUsers(IGraphServiceClient graphClient,
                             FlowFile flowFile, ProcessSession session) throws Exception
   {
+    if (parallelSync)
+    {
+      // this processor keeps no delta link, so every run is a full listing
+      try (PontusMicrosoftGraphUserScan scan = new PontusMicrosoftGraphUserScan(scanExecutor, syncConcurrency,
+          graphClient, userFields, syncBoundaries))
+      {
+        List<User> users;
+        while ((users = scan.next(() -> !isScheduled())) != null)
+        {
+          for (User user : users)
+          {
+            writeFlowFile(flowFile, session, user);
+          }
+        }
+      }
+      return;
+    }
+
     IUserDeltaCollectionRequest request = graphClient.users()
                                                      .delta()
                                                      .buildRequest()
@@ -0,0 +1,75 @@
+package com.pontusvision.processors.office365.base;
+
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+import com.microsoft.graph.options.Option;
+import com.microsoft.graph.options.QueryOption;
+import com.microsoft.graph.requests.extensions.IMessageCollectionRequest;
+import com.microsoft.graph.requests.extensions.MessageCollectionRequestBuilder;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Sync Horizon support for message sync.  The initial delta of a folder only covers the messages received after the
+ * horizon (receivedDateTime ge <horizon>), so new mail flows straight away; the older messages can then be listed
+ * newest first by a backfill, whose cursor is kept in the distributed map cache under
+ * O365_backfill|<message cache key>: either the horizon itself (not started), or the next page link.
+ */
+public final class PontusMicrosoftGraphBackfill
+{
+  public static final String OFFICE365_BACKFILL_KEY_PREFIX = "O365_backfill|";
+
+  private PontusMicrosoftGraphBackfill()
+  {
+  }
+
+  public static String getBackfillKey(String cacheKey)
+  {
+    return OFFICE365_BACKFILL_KEY_PREFIX + cacheKey;
+  }
+
+  /*
+   * The horizon (now - horizonMillis, to the second) in the format used by Graph filters.
+   */
+  public static String getHorizon(long horizonMillis)
+  {
+    return Instant.now().minusMillis(horizonMillis).truncatedTo(ChronoUnit.SECONDS).toString();
+  }
+
+  /*
+   * Options for the initial messages/delta request of a folder, so it only covers the messages after the horizon;
+   * the other options (e.g. Prefer headers) are kept.
+   */
+  public static List<Option> getDeltaOptions(String horizon, List<Option> options)
+  {
+    List<Option> deltaOptions = new ArrayList<>(options);
+    deltaOptions.add(new QueryOption("$filter", "receivedDateTime ge " + horizon));
+    return deltaOptions;
+  }
+
+  /*
+   * The next backfill request of the folder for the given cursor (see above).
+   */
+  public static IMessageCollectionRequest getRequest(IGraphServiceClient graphClient, String userId,
+                                                     String folderId, String cursor, String select, int pageSize,
+                                                     List<Option> headers)
+  {
+    if (cursor.startsWith("http"))
+    {
+      return new MessageCollectionRequestBuilder(cursor, graphClient, Collections.emptyList()).buildRequest(headers);
+    }
+
+    List<Option> options = new ArrayList<>(headers);
+    options.add(new QueryOption("$filter", "receivedDateTime lt " + cursor));
+    options.add(new QueryOption("$orderby", "receivedDateTime desc"));
+    return graphClient.users(userId)
+                      .mailFolders(folderId)
+                      .messages()
+                      .buildRequest(options)
+                      .top(pageSize)
+                      .select(select);
+  }
+}
@@ -1,8 +1,11 @@
 package com.pontusvision.processors.office365.base;
 
+import com.microsoft.graph.options.HeaderOption;
+import com.microsoft.graph.options.Option;
 import com.pontusvision.nifi.office365.PontusMicrosoftGraphAuthControllerServiceInterface;
 import org.apache.commons.io.IOUtils;
 import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.Stateful;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
@@ -10,6 +13,7 @@ import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.components.Validator;
+import org.apache.nifi.components.state.Scope;
 import org.apache.nifi.distributed.cache.client.Deserializer;
 import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
 import org.apache.nifi.distributed.cache.client.Serializer;
@@ -20,8 +24,10 @@ import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
 
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import static com.pontusvision.nifi.office365.PontusMicrosoftGraphAuthControllerServiceInterface.getStackTrace;
@@ -33,6 +39,8 @@ import static com.pontusvision.nifi.office365.PontusMicrosoftGraphAuthController
     expressionLanguageScope = ExpressionLanguageScope.VARIABLE_REGISTRY,
     description = "Specifies an attribute on generated FlowFiles defined by the Dynamic Property's key and value." +
         " If Expression Language is used, evaluation will be performed only once per batch of generated FlowFiles.")
+@Stateful(scopes = Scope.CLUSTER, description = "Stores the last cache entry started by a trigger that ran out of "
+    + "its Max Run Duration (or was stopped), so the next trigger resumes with the entries after it.")
 abstract public class PontusMicrosoftGraphBaseProcessor extends AbstractProcessor
 {
   public static final String OFFICE365_USER_ID     = "office365_user_id";
@@ -45,15 +53,19 @@ abstract public class PontusMicrosoftGraphBaseProcessor extends AbstractProcesso
   public static final String OFFICE365_DELTA_KEY_FORMAT_MESSAGE_PREFIX = "O365_messages";
   public static final String OFFICE365_DELTA_KEY_FORMAT_USER_PREFIX    = "O365_users_delta";
   public static final String OFFICE365_DELTA_KEY_FORMAT_FOLDER_PREFIX  = "O365_folders";
+  public static final String OFFICE365_MAILBOX_KEY_FORMAT_PREFIX       = "O365_mailbox";
 
   public static final String OFFICE365_DELTA_KEY_FORMAT_MESSAGE = OFFICE365_DELTA_KEY_FORMAT_MESSAGE_PREFIX + "|%s|%s";
   public static final String OFFICE365_DELTA_KEY_FORMAT_USER    = OFFICE365_DELTA_KEY_FORMAT_USER_PREFIX;
   public static final String OFFICE365_DELTA_KEY_FORMAT_FOLDER  = OFFICE365_DELTA_KEY_FORMAT_FOLDER_PREFIX + "|%s";
+  public static final String OFFICE365_MAILBOX_KEY_FORMAT       = OFFICE365_MAILBOX_KEY_FORMAT_PREFIX + "|%s";
 
   public static final String OFFICE365_REGEX_MESSAGE_DEFAULT = OFFICE365_DELTA_KEY_FORMAT_MESSAGE_PREFIX + ".*";
   public static final String OFFICE365_REGEX_USER_DEFAULT    = OFFICE365_DELTA_KEY_FORMAT_USER_PREFIX;
   public static final String OFFICE365_REGEX_FOLDER_DEFAULT  = OFFICE365_DELTA_KEY_FORMAT_FOLDER_PREFIX + ".*";
 
+  public static final String CURSOR_STATE_KEY = "office365.cache.cursor";
+
   protected List<PropertyDescriptor> properties;
   protected Set<Relationship>        relationships;
 
@@ -62,6 +74,15 @@ abstract public class PontusMicrosoftGraphBaseProcessor extends AbstractProcesso
   protected PontusMicrosoftGraphAuthControllerServiceInterface authProviderService;
   protected Pattern                                            cacheFilterRegex;
 
+  protected boolean adaptivePolling       = false;
+  protected long    minPollInterval       = 0;
+  protected long    maxPollInterval       = 0;
+  protected double  pollBackoffMultiplier = 2.0;
+
+  protected          long                              maxRunDuration  = 0;
+  protected volatile PontusMicrosoftGraphKeyPriorities keyPriorities   = PontusMicrosoftGraphKeyPriorities.NONE;
+  protected volatile String                            carryOverCursor = null;
+
   public static final PropertyDescriptor OFFICE365_DISTRIB_MAP_CACHE = new PropertyDescriptor
       .Builder()
       .name("Distributed Map Cache Client")
@@ -129,6 +150,199 @@ abstract public class PontusMicrosoftGraphBaseProcessor extends AbstractProcesso
       .required(true)
       .build();
 
+  public final static PropertyDescriptor ADAPTIVE_POLLING = new PropertyDescriptor.Builder()
+      .name("Adaptive Polling")
+      .description("If true, each cache entry is only processed when it is due; after each delta run, the entry's "
+          + "next due time is recorded in the cache (under " + PontusMicrosoftGraphSyncSchedule.OFFICE365_SCHEDULE_KEY_PREFIX
+          + "<cache key>), and entries that return nothing are polled exponentially less often, whilst busy entries "
+          + "are polled more often.")
+      .required(true)
+      .defaultValue("false")
+      .allowableValues("true", "false")
+      .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+      .build();
+
+  public final static PropertyDescriptor MIN_POLL_INTERVAL = new PropertyDescriptor.Builder()
+      .name("Minimum Poll Interval")
+      .description("With Adaptive Polling, the shortest interval between two delta runs of the same cache entry; at "
+          + "least 1 sec")
+      .required(true)
+      .defaultValue("1 min")
+      .addValidator(StandardValidators.createTimePeriodValidator(1, TimeUnit.SECONDS, Long.MAX_VALUE, TimeUnit.SECONDS))
+      .build();
+
+  public final static PropertyDescriptor MAX_POLL_INTERVAL = new PropertyDescriptor.Builder()
+      .name("Maximum Poll Interval")
+      .description("With Adaptive Polling, the longest interval between two delta runs of the same cache entry")
+      .required(true)
+      .defaultValue("12 hours")
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .build();
+
+  public final static PropertyDescriptor POLL_BACKOFF_MULTIPLIER = new PropertyDescriptor.Builder()
+      .name("Poll Backoff Multiplier")
+      .description("With Adaptive Polling, the poll interval of a cache entry is multiplied by this value after a "
+          + "delta run with no changes, and divided by it after a delta run with changes")
+      .required(true)
+      .defaultValue("2")
+      .addValidator(StandardValidators.NUMBER_VALIDATOR)
+      .build();
+
+  final static Validator PRIORITY_RULES_VALIDATOR = (subject, input, context) -> {
+    ValidationResult.Builder builder = new ValidationResult.Builder().subject(subject).input(input);
+    if (context.isExpressionLanguageSupported(subject) && context.isExpressionLanguagePresent(input))
+    {
+      return builder.valid(true).explanation("Contains Expression Language").build();
+    }
+    try
+    {
+      PontusMicrosoftGraphKeyPriorities.compile(input);
+      return builder.valid(true).build();
+    }
+    catch (IllegalArgumentException ex)
+    {
+      return builder.valid(false).explanation(ex.getMessage()).build();
+    }
+  };
+
+  public final static PropertyDescriptor KEY_PRIORITY_RULES = new PropertyDescriptor.Builder()
+      .name("Key Priority Rules")
+      .description("Optional rules that decide the order in which cache entries are processed, one per line, in the "
+          + "format <regex>=<priority> (e.g. O365_messages\\|<CEO user id>\\|.*=100); the first matching rule wins, "
+          + "entries with no matching rule have priority 0, and higher priorities are processed first.  Expression "
+          + "Language is evaluated against the incoming flow file, so the rules can come from an attribute.")
+      .required(false)
+      .addValidator(PRIORITY_RULES_VALIDATOR)
+      .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+      .build();
+
+  public final static PropertyDescriptor MAX_RUN_DURATION = new PropertyDescriptor.Builder()
+      .name("Max Run Duration")
+      .description("The time budget of each trigger; once it is spent (or the processor is stopped), no more cache "
+          + "entries or result pages are fetched: an entry cut short emits its next page link as its delta value, and "
+          + "the remaining entries are processed first in the next trigger (within their priority), even after a "
+          + "restart.  0 means no limit.")
+      .required(true)
+      .defaultValue("0 sec")
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .build();
+
+  /*
+   * The properties of the processors that walk the cache entries on each trigger (see processCacheKeys); processors
+   * that only read the cache entries (e.g. to subscribe to them) leave these out.
+   */
+  public final static List<PropertyDescriptor> CACHE_KEY_SCHEDULING_PROPERTIES = Collections.unmodifiableList(
+      Arrays.asList(ADAPTIVE_POLLING, MIN_POLL_INTERVAL, MAX_POLL_INTERVAL, POLL_BACKOFF_MULTIPLIER, KEY_PRIORITY_RULES,
+          MAX_RUN_DURATION));
+
+  public static final String INITIAL_SYNC_MODE_DELTA    = "Delta";
+  public static final String INITIAL_SYNC_MODE_PARALLEL = "Parallel Segments";
+
+  public final static PropertyDescriptor INITIAL_SYNC_MODE = new PropertyDescriptor.Builder()
+      .name("Initial Sync Mode")
+      .description("How the users are enumerated when there is no delta link yet.  " + INITIAL_SYNC_MODE_DELTA
+          + " walks users/delta page by page on one thread.  " + INITIAL_SYNC_MODE_PARALLEL + " splits the "
+          + "directory into userPrincipalName ranges (see Initial Sync Segment Boundaries), and lists the ranges in "
+          + "parallel with pages of " + PontusMicrosoftGraphUserScan.MAX_PAGE_SIZE + " users; a delta link taken "
+          + "just before the listing (with $deltatoken=latest) is then emitted, so the following runs are incremental "
+          + "and pick up the changes made during the listing.")
+      .required(true)
+      .defaultValue(INITIAL_SYNC_MODE_DELTA)
+      .allowableValues(INITIAL_SYNC_MODE_DELTA, INITIAL_SYNC_MODE_PARALLEL)
+      .build();
+
+  public final static PropertyDescriptor INITIAL_SYNC_SEGMENTS = new PropertyDescriptor.Builder()
+      .name("Initial Sync Segment Boundaries")
+      .description("With " + INITIAL_SYNC_MODE_PARALLEL + ", a comma-separated list of userPrincipalName prefixes "
+          + "at which the directory is split; e.g. b,c would list the users before b, from b to c, and from c on.  "
+          + "Add boundaries (e.g. ja,jo) to split up large ranges.")
+      .required(true)
+      .defaultValue(PontusMicrosoftGraphUserScan.DEFAULT_BOUNDARIES)
+      .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+      .build();
+
+  public final static PropertyDescriptor INITIAL_SYNC_CONCURRENCY = new PropertyDescriptor.Builder()
+      .name("Initial Sync Concurrency")
+      .description("With " + INITIAL_SYNC_MODE_PARALLEL + ", the number of ranges listed at the same time.")
+      .required(true)
+      .defaultValue("4")
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .build();
+
+  public final static PropertyDescriptor MAX_CONCURRENT_MAILBOXES = new PropertyDescriptor.Builder()
+      .name("Max Concurrent Mailboxes")
+      .description("The number of mailboxes whose folders are synced at the same time; each mailbox is walked by "
+          + "a single request chain, and its folders are emitted as soon as their page arrives.  1 syncs one "
+          + "mailbox at a time.")
+      .required(true)
+      .defaultValue("1")
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .build();
+
+  public final static PropertyDescriptor EXCLUDED_WELL_KNOWN_FOLDERS = new PropertyDescriptor.Builder()
+      .name("Excluded Well-Known Folders")
+      .description("A comma-separated list of well-known folder names (e.g. deleteditems,junkemail,"
+          + "conversationhistory,syncissues,recoverableitemsdeletions) whose folders, and the folders below them, "
+          + "are not synced; no message cache key is emitted for them.")
+      .required(false)
+      .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+      .build();
+
+  public final static PropertyDescriptor EXCLUDED_FOLDER_NAME_REGEX = new PropertyDescriptor.Builder()
+      .name("Excluded Folder Name Regex")
+      .description("Folders whose displayName matches this regex are not synced.")
+      .required(false)
+      .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+      .build();
+
+  public final static PropertyDescriptor INCLUDED_FOLDER_PATH_REGEX = new PropertyDescriptor.Builder()
+      .name("Included Folder Path Regex")
+      .description("If set, only the folders whose path (the display names from the top of the mailbox down, "
+          + "separated by '/', e.g. Inbox/Projects) matches this regex are synced.  Needs the displayName and "
+          + "parentFolderId Message Folder Fields.")
+      .required(false)
+      .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+      .build();
+
+  public final static PropertyDescriptor EXCLUDED_FOLDER_PATH_REGEX = new PropertyDescriptor.Builder()
+      .name("Excluded Folder Path Regex")
+      .description("Folders whose path (see Included Folder Path Regex) matches this regex are not synced; e.g. "
+          + "Inbox/Archive(/.*)? skips Inbox/Archive and the folders below it.")
+      .required(false)
+      .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+      .build();
+
+  public final static PropertyDescriptor SYNC_HORIZON = new PropertyDescriptor.Builder()
+      .name("Sync Horizon")
+      .description("If set (e.g. 90 days), the initial message delta of a folder only covers the messages received "
+          + "within this period (receivedDateTime ge now - horizon), so new mail is synced without waiting for the "
+          + "folder's whole history; later delta runs keep the same filter.  Left blank, the initial delta covers "
+          + "every message.")
+      .required(false)
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .build();
+
+  public final static PropertyDescriptor PREFER_TEXT_BODY = new PropertyDescriptor.Builder()
+      .name("Prefer Text Body")
+      .description("If true, message bodies are requested as plain text (Prefer: outlook.body-content-type=\"text\") "
+          + "rather than as HTML, which is often many times larger.")
+      .required(true)
+      .defaultValue("false")
+      .allowableValues("true", "false")
+      .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+      .build();
+
+  public final static PropertyDescriptor PREFER_IMMUTABLE_IDS = new PropertyDescriptor.Builder()
+      .name("Prefer Immutable Ids")
+      .description("If true, message and attachment ids are requested as immutable ids (Prefer: "
+          + "IdType=\"ImmutableId\"), which do not change when a message is moved to another folder.  Turning this "
+          + "on for an existing sync changes the ids of the messages emitted from then on.")
+      .required(true)
+      .defaultValue("false")
+      .allowableValues("true", "false")
+      .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+      .build();
+
   public final static PropertyDescriptor SERVICE = new PropertyDescriptor.Builder()
       .name("Controller Service")
       .displayName("Controller Service")
@@ -180,6 +394,27 @@ abstract public class PontusMicrosoftGraphBaseProcessor extends AbstractProcesso
     cacheFilterRegexStr = context.getProperty(getRegexPropertyDescriptor()).evaluateAttributeExpressions().getValue();
     cacheFilterRegex = Pattern.compile(cacheFilterRegexStr);
 
+    if (properties.contains(ADAPTIVE_POLLING))
+    {
+      adaptivePolling = context.getProperty(ADAPTIVE_POLLING).asBoolean();
+      minPollInterval = context.getProperty(MIN_POLL_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+      maxPollInterval = Math.max(minPollInterval,
+          context.getProperty(MAX_POLL_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS));
+      pollBackoffMultiplier = Math.max(1.0,
+          Double.parseDouble(context.getProperty(POLL_BACKOFF_MULTIPLIER).getValue()));
+      maxRunDuration = context.getProperty(MAX_RUN_DURATION).asTimePeriod(TimeUnit.MILLISECONDS);
+    }
+
+    try
+    {
+      carryOverCursor = context.getStateManager().getState(Scope.CLUSTER).get(CURSOR_STATE_KEY);
+    }
+    catch (IOException ex)
+    {
+      getLogger().warn("Unable to read the cache entry cursor; starting from the first entry", ex);
+      carryOverCursor = null;
+    }
+
     if (authProviderService == null)
     {
       authProviderService = context.getProperty(SERVICE)
@@ -203,20 +438,14 @@ abstract public class PontusMicrosoftGraphBaseProcessor extends AbstractProcesso
       flowFile = session.create();
     }
 
+    final FlowFile parent   = flowFile;
+    final long     deadline = getRunDeadline();
+
     try
     {
-      Set<String> keys = cacheClient.keySet(DES);
+      long counter = processCacheKeys(context, parent.getAttributes(), deadline,
+          (key, delta) -> process(context, session, parent, key, delta, deadline));
 
-      long counter = 0;
-
-      for (String key : keys)
-      {
-        if (cacheFilterRegex.matcher(key).matches())
-        {
-          counter++;
-          process(context, session, flowFile, key, cacheClient.get(key, SER, DES));
-        }
-      }
       if (counter == 0)
       {
         process(context, session, flowFile);
@@ -238,15 +467,159 @@ abstract public class PontusMicrosoftGraphBaseProcessor extends AbstractProcesso
     authProviderService = null;
   }
 
-  public void process(ProcessContext context, ProcessSession session, FlowFile flowFile, String key,
-                      String delta) throws Exception
+  /*
+   * Processes one cache entry, and returns the number of entities (users, folders, messages) that the delta run
+   * returned; this is used by the adaptive polling schedule (-1 if the entry is run in the background, see
+   * updateSchedule).  Page loops should stop at the next page boundary once isRunBudgetSpent(deadline).
+   */
+  public long process(ProcessContext context, ProcessSession session, FlowFile flowFile, String key,
+                      String delta, long deadline) throws Exception
+  {
+    return 0;
+  }
+
+  public long process(ProcessContext context, ProcessSession session, FlowFile flowFile) throws Exception
+  {
+    return 0;
+  }
+
+  public interface CacheKeyProcessor
+  {
+    long process(String key, String delta) throws Exception;
+  }
+
+  /*
+   * Calls the processor for every cache entry that matches the cache filter regex (and, with Adaptive Polling, that
+   * is due), in priority order, until the deadline (see getRunDeadline) has passed; returns the number of matching
+   * entries, whether or not they were processed.
+   */
+  protected long processCacheKeys(ProcessContext context, Map<String, String> attributes, long deadline,
+                                  CacheKeyProcessor processor) throws Exception
+  {
+    List<String> keys = new ArrayList<>();
+    for (String key : cacheClient.keySet(DES))
+    {
+      if (cacheFilterRegex.matcher(key).matches())
+      {
+        keys.add(key);
+      }
+    }
+
+    String lastKey = null;
+
+    for (String key : getKeyPriorities(context, attributes).order(keys, carryOverCursor))
+    {
+      if (isRunBudgetSpent(deadline))
+      {
+        getLogger().debug("Yielding; carrying over the cache entries after {}", new Object[] { lastKey });
+        if (lastKey != null)
+        {
+          // otherwise nothing was processed, and the cursor carried over from the last run still holds
+          saveCursor(context, lastKey);
+        }
+        return keys.size();
+      }
+      lastKey = key;
+
+      PontusMicrosoftGraphSyncSchedule schedule = null;
+      if (adaptivePolling)
+      {
+        schedule = getSchedule(key);
+        if (schedule != null && !schedule.isDue(System.currentTimeMillis()))
+        {
+          continue;
+        }
+      }
+
+      long changes = processor.process(key, cacheClient.get(key, SER, DES));
+
+      if (changes >= 0)
+      {
+        updateSchedule(key, schedule, changes);
+      }
+    }
+    saveCursor(context, null);
+    return keys.size();
+  }
+
+  /*
+   * Records the number of entities a delta run returned in the Adaptive Polling schedule of the entry.  Processors
+   * that run the entries in the background return -1 from process, and call this once the run has completed.
+   */
+  protected void updateSchedule(String key, PontusMicrosoftGraphSyncSchedule schedule, long changes) throws IOException
+  {
+    if (adaptivePolling)
+    {
+      putSchedule(key, PontusMicrosoftGraphSyncSchedule.next(schedule, System.currentTimeMillis(), changes,
+          minPollInterval, maxPollInterval, pollBackoffMultiplier));
+    }
+  }
+
+  /*
+   * The deadline of a trigger that starts now, as set by the Max Run Duration; each trigger keeps its own, as
+   * concurrent tasks run their triggers at the same time.
+   */
+  protected long getRunDeadline()
+  {
+    return maxRunDuration > 0 ? System.currentTimeMillis() + maxRunDuration : Long.MAX_VALUE;
+  }
+
+  /*
+   * True once the trigger's deadline has passed, or the processor has been stopped; long running loops should then
+   * stop cleanly at the next page boundary.
+   */
+  protected boolean isRunBudgetSpent(long deadline)
+  {
+    return !isScheduled() || System.currentTimeMillis() >= deadline;
+  }
+
+  protected void saveCursor(ProcessContext context, String cursor) throws IOException
+  {
+    if (Objects.equals(cursor, carryOverCursor))
+    {
+      return;
+    }
+    carryOverCursor = cursor;
+    if (cursor == null)
+    {
+      context.getStateManager().clear(Scope.CLUSTER);
+    }
+    else
+    {
+      context.getStateManager().setState(Collections.singletonMap(CURSOR_STATE_KEY, cursor), Scope.CLUSTER);
+    }
+  }
+
+  protected PontusMicrosoftGraphKeyPriorities getKeyPriorities(ProcessContext context, Map<String, String> attributes)
   {
+    if (!properties.contains(KEY_PRIORITY_RULES))
+    {
+      return PontusMicrosoftGraphKeyPriorities.NONE;
+    }
+    String rules = context.getProperty(KEY_PRIORITY_RULES).evaluateAttributeExpressions(attributes).getValue();
+    if (rules == null || rules.trim().isEmpty())
+    {
+      return PontusMicrosoftGraphKeyPriorities.NONE;
+    }
 
+    PontusMicrosoftGraphKeyPriorities priorities = keyPriorities;
+    if (!rules.equals(priorities.getRules()))
+    {
+      priorities = PontusMicrosoftGraphKeyPriorities.compile(rules);
+      keyPriorities = priorities;
+    }
+    return priorities;
   }
 
-  public void process(ProcessContext context, ProcessSession session, FlowFile flowFile) throws Exception
+  protected PontusMicrosoftGraphSyncSchedule getSchedule(String key) throws IOException
   {
+    return PontusMicrosoftGraphSyncSchedule.parse(
+        cacheClient.get(PontusMicrosoftGraphSyncSchedule.getScheduleKey(key), SER, DES));
+  }
 
+  protected void putSchedule(String key, PontusMicrosoftGraphSyncSchedule schedule) throws IOException
+  {
+    cacheClient.put(PontusMicrosoftGraphSyncSchedule.getScheduleKey(key), schedule.serialize(), SER, SER);
   }
 
   @Override public Set<Relationship> getRelationships()
@@ -259,6 +632,35 @@ abstract public class PontusMicrosoftGraphBaseProcessor extends AbstractProcesso
     return properties;
   }
 
+  /*
+   * Compiles the folder include/exclude properties of the folder processors.
+   */
+  public static PontusMicrosoftGraphFolderPolicy getFolderPolicy(ProcessContext context)
+  {
+    return PontusMicrosoftGraphFolderPolicy.compile(context.getProperty(EXCLUDED_WELL_KNOWN_FOLDERS).getValue(),
+        context.getProperty(EXCLUDED_FOLDER_NAME_REGEX).getValue(),
+        context.getProperty(INCLUDED_FOLDER_PATH_REGEX).getValue(),
+        context.getProperty(EXCLUDED_FOLDER_PATH_REGEX).getValue());
+  }
+
+  /*
+   * The Prefer headers selected by Prefer Text Body and Prefer Immutable Ids; message processors send them on every
+   * message and attachment page request, next pages included.
+   */
+  public static List<Option> getPreferOptions(ProcessContext context)
+  {
+    List<Option> options = new ArrayList<>(2);
+    if (context.getProperty(PREFER_TEXT_BODY).asBoolean())
+    {
+      options.add(new HeaderOption("Prefer", "outlook.body-content-type=\"text\""));
+    }
+    if (context.getProperty(PREFER_IMMUTABLE_IDS).asBoolean())
+    {
+      options.add(new HeaderOption("Prefer", "IdType=\"ImmutableId\""));
+    }
+    return Collections.unmodifiableList(options);
+  }
+
   public static void handleError(ComponentLog logger, Exception ex, ProcessSession session)
   {
     logger.error("Unable to process", ex);
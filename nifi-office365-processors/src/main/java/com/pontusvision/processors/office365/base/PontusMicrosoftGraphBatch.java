@@ -0,0 +1,225 @@
+package com.pontusvision.processors.office365.base;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.http.IHttpRequest;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+import com.microsoft.graph.options.HeaderOption;
+
+import java.util.*;
+
+/*
+ * Packs individual Graph requests into JSON $batch requests (at most MAX_BATCH_SIZE per batch), and maps the
+ * responses back to the requests by id.
+ */
+public final class PontusMicrosoftGraphBatch
+{
+  public static final int MAX_BATCH_SIZE = 20;
+
+  public static final String BATCH_URL = "/$batch";
+
+  public static final class Request
+  {
+    private final String              id;
+    private final String              method;
+    private final String              url;
+    private final Map<String, String> headers;
+    private final JsonElement         body;
+    private final String              dependsOn;
+
+    /*
+     * The url is relative to the Graph version root (e.g. /users/{id}/messages/{id}); dependsOn is the id of a
+     * request in the same batch that must complete first, or null.
+     */
+    public Request(String id, String method, String url, Map<String, String> headers, JsonElement body,
+                   String dependsOn)
+    {
+      this.id = id;
+      this.method = method.toUpperCase();
+      this.url = url.startsWith("/") ? url : "/" + url;
+      this.headers = headers;
+      this.body = body;
+      this.dependsOn = dependsOn;
+    }
+
+    /*
+     * Builds a batch request from an SDK request, so the function/query options and headers are kept.
+     */
+    public static Request of(IGraphServiceClient graphClient, String id, String method, IHttpRequest request,
+                             JsonElement body, String dependsOn)
+    {
+      String url  = request.getRequestUrl().toString();
+      String root = graphClient.getServiceRoot();
+      if (url.startsWith(root))
+      {
+        url = url.substring(root.length());
+      }
+
+      Map<String, String> headers = new LinkedHashMap<>();
+      for (HeaderOption header : request.getHeaders())
+      {
+        headers.put(header.getName(), String.valueOf(header.getValue()));
+      }
+      return new Request(id, method, url, headers, body, dependsOn);
+    }
+
+    public String getId()
+    {
+      return id;
+    }
+
+    JsonObject toJson()
+    {
+      JsonObject json = new JsonObject();
+      json.addProperty("id", id);
+      json.addProperty("method", method);
+      json.addProperty("url", url);
+
+      JsonObject headersJson = new JsonObject();
+      headers.forEach(headersJson::addProperty);
+      if (body != null)
+      {
+        json.add("body", body);
+        if (!headersJson.has("Content-Type"))
+        {
+          headersJson.addProperty("Content-Type", "application/json");
+        }
+      }
+      if (headersJson.size() > 0)
+      {
+        json.add("headers", headersJson);
+      }
+      if (dependsOn != null)
+      {
+        JsonArray dependsOnJson = new JsonArray();
+        dependsOnJson.add(dependsOn);
+        json.add("dependsOn", dependsOnJson);
+      }
+      return json;
+    }
+  }
+
+  public static final class Response
+  {
+    private final String      id;
+    private final int         status;
+    private final JsonObject  headers;
+    private final JsonElement body;
+
+    Response(String id, int status, JsonObject headers, JsonElement body)
+    {
+      this.id = id;
+      this.status = status;
+      this.headers = headers;
+      this.body = body;
+    }
+
+    public String getId()
+    {
+      return id;
+    }
+
+    public int getStatus()
+    {
+      return status;
+    }
+
+    public boolean isSuccess()
+    {
+      return status >= 200 && status < 300;
+    }
+
+    /*
+     * True for the statuses Graph uses to ask callers to retry later (429 and 503).
+     */
+    public boolean isThrottled()
+    {
+      return status == 429 || status == 503;
+    }
+
+    public String getHeader(String name)
+    {
+      for (Map.Entry<String, JsonElement> header : headers.entrySet())
+      {
+        if (header.getKey().equalsIgnoreCase(name))
+        {
+          return header.getValue().getAsString();
+        }
+      }
+      return null;
+    }
+
+    public JsonElement getBody()
+    {
+      return body;
+    }
+
+    /*
+     * The body as text: JSON bodies as JSON, and string bodies (e.g. base64 encoded binary content) as is.
+     */
+    public String getBodyAsString()
+    {
+      if (body == null || body.isJsonNull())
+      {
+        return null;
+      }
+      return body.isJsonPrimitive() ? body.getAsString() : body.toString();
+    }
+  }
+
+  private PontusMicrosoftGraphBatch()
+  {
+  }
+
+  /*
+   * Sends the requests (at most MAX_BATCH_SIZE) as a single $batch request; returns the responses by request id.
+   */
+  public static Map<String, Response> execute(IGraphServiceClient graphClient, List<Request> requests)
+  {
+    if (requests.size() > MAX_BATCH_SIZE)
+    {
+      throw new IllegalArgumentException(
+        "A $batch request can hold at most " + MAX_BATCH_SIZE + " requests; got " + requests.size());
+    }
+
+    JsonArray requestsJson = new JsonArray();
+    for (Request request : requests)
+    {
+      requestsJson.add(request.toJson());
+    }
+    JsonObject batch = new JsonObject();
+    batch.add("requests", requestsJson);
+
+    JsonObject result = graphClient.customRequest(BATCH_URL).buildRequest().post(batch);
+
+    Map<String, Response> responses = new HashMap<>(requests.size() * 2);
+    JsonElement           items     = result == null ? null : result.get("responses");
+    if (items != null && items.isJsonArray())
+    {
+      for (JsonElement item : items.getAsJsonArray())
+      {
+        JsonObject  obj     = item.getAsJsonObject();
+        JsonElement headers = obj.get("headers");
+        String      id      = obj.get("id").getAsString();
+        responses.put(id, new Response(id, obj.get("status").getAsInt(),
+          headers != null && headers.isJsonObject() ? headers.getAsJsonObject() : new JsonObject(),
+          obj.get("body")));
+      }
+    }
+    return responses;
+  }
+
+  /*
+   * Splits the requests into consecutive chunks of at most MAX_BATCH_SIZE.
+   */
+  public static <T> List<List<T>> partition(List<T> items)
+  {
+    List<List<T>> chunks = new ArrayList<>((items.size() + MAX_BATCH_SIZE - 1) / MAX_BATCH_SIZE);
+    for (int i = 0, ilen = items.size(); i < ilen; i += MAX_BATCH_SIZE)
+    {
+      chunks.add(items.subList(i, Math.min(ilen, i + MAX_BATCH_SIZE)));
+    }
+    return chunks;
+  }
+}
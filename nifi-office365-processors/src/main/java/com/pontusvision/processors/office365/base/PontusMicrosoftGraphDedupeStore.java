@@ -0,0 +1,118 @@
+package com.pontusvision.processors.office365.base;
+
+import org.apache.nifi.distributed.cache.client.AtomicCacheEntry;
+import org.apache.nifi.distributed.cache.client.AtomicDistributedMapCacheClient;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor.DES;
+import static com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor.SER;
+
+/*
+ * Records the keys of the operations (e.g. sends) done within a time window, so repeated operations can be
+ * skipped.  A key is reserved before the operation, and released if the operation is known not to have happened;
+ * if the outcome is unknown (e.g. a timeout), the reservation is kept, so a retry is treated as a duplicate.
+ */
+public interface PontusMicrosoftGraphDedupeStore
+{
+  String OFFICE365_SENT_KEY_PREFIX = "O365_sent|";
+
+  /*
+   * Returns false if the key was already reserved within the window (a duplicate), otherwise reserves it.
+   */
+  boolean reserve(String key, long now, long window) throws IOException;
+
+  void release(String key) throws IOException;
+
+  /*
+   * Keeps the most recent maxEntries keys in memory; only dedupes within this processor instance.
+   */
+  final class InMemory implements PontusMicrosoftGraphDedupeStore
+  {
+    private final Map<String, Long> reserved;
+
+    public InMemory(final int maxEntries)
+    {
+      this.reserved = new LinkedHashMap<String, Long>(16, 0.75f, true)
+      {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+        {
+          return size() > maxEntries;
+        }
+      };
+    }
+
+    @Override public synchronized boolean reserve(String key, long now, long window)
+    {
+      Long reservedAt = reserved.get(key);
+      if (reservedAt != null && now - reservedAt < window)
+      {
+        return false;
+      }
+      reserved.put(key, now);
+      return true;
+    }
+
+    @Override public synchronized void release(String key)
+    {
+      reserved.remove(key);
+    }
+  }
+
+  /*
+   * Keeps the keys in the distributed map cache, under O365_sent|<key>, with the reservation time as the value;
+   * dedupes across the cluster.  A new key is reserved with putIfAbsent, and an expired one by compare-and-set on
+   * the cache entry revision, so when two nodes reserve the same key at once, only one of them gets it.
+   */
+  final class Distributed implements PontusMicrosoftGraphDedupeStore
+  {
+    private final AtomicDistributedMapCacheClient<Object> cacheClient;
+
+    public Distributed(AtomicDistributedMapCacheClient<Object> cacheClient)
+    {
+      this.cacheClient = cacheClient;
+    }
+
+    @Override public boolean reserve(String key, long now, long window) throws IOException
+    {
+      String cacheKey = OFFICE365_SENT_KEY_PREFIX + key;
+      String value    = Long.toString(now);
+
+      // a replace() of a missing entry is not exclusive (its revision matches any other node's), so new keys are not
+      // reserved through it
+      if (cacheClient.putIfAbsent(cacheKey, value, SER, SER))
+      {
+        return true;
+      }
+
+      AtomicCacheEntry<String, String, Object> entry = cacheClient.fetch(cacheKey, SER, DES);
+      if (entry == null)
+      {
+        // released since
+        return cacheClient.putIfAbsent(cacheKey, value, SER, SER);
+      }
+      try
+      {
+        if (entry.getValue() != null && now - Long.parseLong(entry.getValue()) < window)
+        {
+          return false;
+        }
+      }
+      catch (NumberFormatException ex)
+      {
+        // not one of ours; overwrite it
+      }
+      entry.setValue(value);
+
+      // fails if another node has reserved the expired key since the fetch
+      return cacheClient.replace(entry, SER, SER);
+    }
+
+    @Override public void release(String key) throws IOException
+    {
+      cacheClient.remove(OFFICE365_SENT_KEY_PREFIX + key, SER);
+    }
+  }
+}
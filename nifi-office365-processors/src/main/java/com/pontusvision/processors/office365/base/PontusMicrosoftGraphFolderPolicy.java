@@ -0,0 +1,271 @@
+package com.pontusvision.processors.office365.base;
+
+import com.google.gson.JsonElement;
+import com.microsoft.graph.http.GraphServiceException;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+import com.microsoft.graph.models.extensions.MailFolder;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/*
+ * Decides which mail folders are synced, as they are discovered by the folder processors, so excluded folders never
+ * get an O365_messages cache key.  A folder is excluded if:
+ *  - it is, or sits below, one of the excluded well-known folders (e.g. deleteditems, junkemail); their ids are
+ *    resolved once per mailbox, in a $batch request;
+ *  - its displayName matches the excluded name regex;
+ *  - its path (the display names from the top of the mailbox down, separated by '/', e.g. Inbox/Projects/Old)
+ *    does not match the included path regex, or matches the excluded path regex.
+ *
+ * Paths need the displayName and parentFolderId fields; parents not seen earlier in the walk (e.g. in incremental
+ * delta runs) are fetched once per walk.
+ */
+public final class PontusMicrosoftGraphFolderPolicy
+{
+  public static final PontusMicrosoftGraphFolderPolicy NONE = new PontusMicrosoftGraphFolderPolicy(
+      Collections.emptySet(), null, null, null);
+
+  private static final String ROOT_FOLDER = "msgfolderroot";
+
+  private static final int MAX_DEPTH = 64;
+
+  private static final int MAX_RESOLVED_MAILBOXES = 10000;
+
+  /*
+   * Fetches a folder by id, with at least its displayName and parentFolderId; returns null if the folder is not
+   * visible (404 or 403).
+   */
+  interface FolderLookup
+  {
+    MailFolder get(String id);
+  }
+
+  private final Set<String> wellKnownNames;
+  private final Pattern     excludedName;
+  private final Pattern     includedPath;
+  private final Pattern     excludedPath;
+
+  // user id -> the resolved ids of the well-known folders (by name)
+  private final Map<String, Map<String, String>> resolved = Collections.synchronizedMap(
+      new LinkedHashMap<String, Map<String, String>>(16, 0.75f, true)
+      {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Map<String, String>> eldest)
+        {
+          return size() > MAX_RESOLVED_MAILBOXES;
+        }
+      });
+
+  private PontusMicrosoftGraphFolderPolicy(Set<String> wellKnownNames, Pattern excludedName, Pattern includedPath,
+                                           Pattern excludedPath)
+  {
+    this.wellKnownNames = wellKnownNames;
+    this.excludedName = excludedName;
+    this.includedPath = includedPath;
+    this.excludedPath = excludedPath;
+  }
+
+  /*
+   * wellKnownNames is a comma-separated list of well-known folder names; blank values disable their rule.
+   */
+  public static PontusMicrosoftGraphFolderPolicy compile(String wellKnownNames, String excludedName,
+                                                         String includedPath, String excludedPath)
+  {
+    Set<String> names = new TreeSet<>();
+    if (wellKnownNames != null)
+    {
+      for (String name : wellKnownNames.split(","))
+      {
+        if (!name.trim().isEmpty())
+        {
+          names.add(name.trim().toLowerCase());
+        }
+      }
+    }
+
+    PontusMicrosoftGraphFolderPolicy policy = new PontusMicrosoftGraphFolderPolicy(names, compilePattern(excludedName),
+        compilePattern(includedPath), compilePattern(excludedPath));
+    return policy.isEmpty() ? NONE : policy;
+  }
+
+  private static Pattern compilePattern(String regex)
+  {
+    return regex == null || regex.trim().isEmpty() ? null : Pattern.compile(regex);
+  }
+
+  public boolean isEmpty()
+  {
+    return wellKnownNames.isEmpty() && excludedName == null && !hasPathRules();
+  }
+
+  private boolean hasPathRules()
+  {
+    return includedPath != null || excludedPath != null;
+  }
+
+  /*
+   * Returns the policy for one walk of the mailbox's folders; not thread safe, so each walk takes its own.
+   */
+  public Mailbox forMailbox(IGraphServiceClient graphClient, String userId)
+  {
+    FolderLookup lookup = id -> getFolder(graphClient, userId, id);
+    if (isEmpty() || (wellKnownNames.isEmpty() && !hasPathRules()))
+    {
+      return new Mailbox(lookup, Collections.emptyMap());
+    }
+
+    Map<String, String> ids = resolved.get(userId);
+    if (ids == null)
+    {
+      ids = resolveWellKnownFolders(graphClient, userId);
+      resolved.put(userId, ids);
+    }
+    return new Mailbox(lookup, ids);
+  }
+
+  /*
+   * As above, with the well-known folder ids (by name, including msgfolderroot) already resolved.
+   */
+  Mailbox forMailbox(FolderLookup lookup, Map<String, String> wellKnownIds)
+  {
+    return new Mailbox(lookup, wellKnownIds);
+  }
+
+  private static MailFolder getFolder(IGraphServiceClient graphClient, String userId, String id)
+  {
+    try
+    {
+      return graphClient.users(userId).mailFolders(id).buildRequest().select("id,displayName,parentFolderId").get();
+    }
+    catch (GraphServiceException ex)
+    {
+      // the parent is not visible; the path starts here
+      if (ex.getResponseCode() != 404 && ex.getResponseCode() != 403)
+      {
+        throw ex;
+      }
+      return null;
+    }
+  }
+
+  /*
+   * Resolves the ids of the excluded well-known folders (and of the root folder, where paths start) of the mailbox;
+   * names the mailbox does not have (404) are left out.
+   */
+  private Map<String, String> resolveWellKnownFolders(IGraphServiceClient graphClient, String userId)
+  {
+    List<String> names = new ArrayList<>(wellKnownNames);
+    if (!names.contains(ROOT_FOLDER))
+    {
+      names.add(ROOT_FOLDER);
+    }
+
+    Map<String, String> ids = new HashMap<>();
+    for (List<String> chunk : PontusMicrosoftGraphBatch.partition(names))
+    {
+      List<PontusMicrosoftGraphBatch.Request> requests = new ArrayList<>(chunk.size());
+      for (int i = 0; i < chunk.size(); i++)
+      {
+        requests.add(new PontusMicrosoftGraphBatch.Request(Integer.toString(i), "GET",
+            "/users/" + userId + "/mailFolders/" + chunk.get(i) + "?$select=id", Collections.emptyMap(), null,
+            null));
+      }
+      Map<String, PontusMicrosoftGraphBatch.Response> responses = PontusMicrosoftGraphBatch.execute(graphClient,
+          requests);
+
+      for (int i = 0; i < chunk.size(); i++)
+      {
+        PontusMicrosoftGraphBatch.Response response = responses.get(Integer.toString(i));
+        if (response != null && response.getStatus() == 404)
+        {
+          continue;
+        }
+        JsonElement body = response == null ? null : response.getBody();
+        if (response == null || !response.isSuccess() || body == null || !body.isJsonObject()
+            || !body.getAsJsonObject().has("id"))
+        {
+          // do not sync anything rather than sync the folders that should have been excluded
+          throw new IllegalStateException("Unable to resolve the " + chunk.get(i) + " folder of user " + userId
+              + (response == null ? "" : "; HTTP status " + response.getStatus()));
+        }
+        ids.put(chunk.get(i), body.getAsJsonObject().get("id").getAsString());
+      }
+    }
+    return ids;
+  }
+
+  public final class Mailbox
+  {
+    private final FolderLookup            lookup;
+    private final Set<String>             excludedIds = new HashSet<>();
+    private final String                  rootId;
+    private final Map<String, MailFolder> folders     = new HashMap<>();
+
+    private Mailbox(FolderLookup lookup, Map<String, String> wellKnownIds)
+    {
+      this.lookup = lookup;
+      this.rootId = wellKnownIds.get(ROOT_FOLDER);
+      for (Map.Entry<String, String> id : wellKnownIds.entrySet())
+      {
+        if (wellKnownNames.contains(id.getKey()))
+        {
+          excludedIds.add(id.getValue());
+        }
+      }
+    }
+
+    /*
+     * True if the folder should be synced.  Entries without a displayName (removed folders, or a Message Folder
+     * Fields list without it) are always passed on.
+     */
+    public boolean accept(MailFolder folder)
+    {
+      if (folder.id == null || folder.displayName == null)
+      {
+        return true;
+      }
+      folders.put(folder.id, folder);
+
+      if (excludedName != null && excludedName.matcher(folder.displayName).matches())
+      {
+        return false;
+      }
+      if (excludedIds.isEmpty() && !hasPathRules())
+      {
+        return true;
+      }
+
+      Deque<String> names   = new ArrayDeque<>();
+      MailFolder    current = folder;
+      for (int depth = 0; current != null && depth < MAX_DEPTH; depth++)
+      {
+        if (excludedIds.contains(current.id))
+        {
+          return false;
+        }
+        names.addFirst(current.displayName == null ? "" : current.displayName);
+        current = current.parentFolderId == null || current.parentFolderId.equals(rootId) ? null
+            : getFolder(current.parentFolderId);
+      }
+
+      if (!hasPathRules())
+      {
+        return true;
+      }
+      String path = String.join("/", names);
+      return (includedPath == null || includedPath.matcher(path).matches())
+          && (excludedPath == null || !excludedPath.matcher(path).matches());
+    }
+
+    private MailFolder getFolder(String id)
+    {
+      if (folders.containsKey(id))
+      {
+        return folders.get(id);
+      }
+
+      MailFolder folder = lookup.get(id);
+      folders.put(id, folder);
+      return folder;
+    }
+  }
+}
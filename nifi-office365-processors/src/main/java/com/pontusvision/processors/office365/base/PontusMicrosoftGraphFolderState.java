@@ -0,0 +1,41 @@
+package com.pontusvision.processors.office365.base;
+
+import com.microsoft.graph.models.extensions.MailFolder;
+
+/*
+ * Item counters of a mail folder, as last returned by the folder delta, kept in the distributed map cache under
+ * O365_folder_state|<message cache key>.  The message cache processor records the state each complete message delta
+ * run started from under O365_folder_synced|<message cache key>, and may skip the folder while the two still match.
+ */
+public final class PontusMicrosoftGraphFolderState
+{
+  public static final String OFFICE365_FOLDER_STATE_KEY_PREFIX  = "O365_folder_state|";
+  public static final String OFFICE365_FOLDER_SYNCED_KEY_PREFIX = "O365_folder_synced|";
+
+  private PontusMicrosoftGraphFolderState()
+  {
+  }
+
+  public static String getStateKey(String cacheKey)
+  {
+    return OFFICE365_FOLDER_STATE_KEY_PREFIX + cacheKey;
+  }
+
+  public static String getSyncedKey(String cacheKey)
+  {
+    return OFFICE365_FOLDER_SYNCED_KEY_PREFIX + cacheKey;
+  }
+
+  /*
+   * Returns totalItemCount|unreadItemCount, or null if the folder does not hold them (they were not selected, or the
+   * folder was removed).
+   */
+  public static String of(MailFolder folder)
+  {
+    if (folder.totalItemCount == null || folder.unreadItemCount == null)
+    {
+      return null;
+    }
+    return folder.totalItemCount + "|" + folder.unreadItemCount;
+  }
+}
@@ -0,0 +1,233 @@
+package com.pontusvision.processors.office365.base;
+
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+import com.microsoft.graph.models.extensions.MailFolder;
+import com.microsoft.graph.requests.extensions.IMailFolderDeltaCollectionPage;
+import com.microsoft.graph.requests.extensions.IMailFolderDeltaCollectionRequest;
+import com.pontusvision.nifi.office365.PontusMicrosoftGraphAuthControllerServiceInterface;
+import org.apache.nifi.processor.exception.ProcessException;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/*
+ * Runs the mailFolders/delta walks of many mailboxes at once, with at most maxMailboxes walks in flight.  A delta
+ * walk returns the whole folder tree of a mailbox (child folders included) as one flat list, so each mailbox is a
+ * single sequential chain of pages, and the parallelism is across mailboxes.
+ *
+ * The walks run on background threads, but the listener is only ever called on the thread that calls submit() and
+ * finish(), so it can use the (not thread safe) process session; each folder is handed to it as soon as its page
+ * arrives, without waiting for the rest of the tree or for the other mailboxes.  Folders excluded by the folder
+ * policy are dropped by the walks, and never reach the listener.
+ */
+public final class PontusMicrosoftGraphFolderSync implements Closeable
+{
+  public interface Listener
+  {
+    void folder(String key, String userId, MailFolder folder) throws Exception;
+
+    /*
+     * The delta link to store for the mailbox: the final delta link, or the next page link of a walk cut short by
+     * the run budget; delta is the link the walk started from (null for a full walk).
+     */
+    void deltaLink(String key, String userId, String delta, String deltaLink) throws Exception;
+
+    /*
+     * Called once per walk, with the number of folders returned, or with the error that ended it.
+     */
+    void done(String key, String userId, long count, Exception error) throws Exception;
+  }
+
+  private interface Event
+  {
+    void run() throws Exception;
+  }
+
+  private static final int  EVENT_QUEUE_SIZE = 1000;
+  private static final long POLL_INTERVAL_MS = 500;
+
+  private final ExecutorService                                    executor;
+  private final int                                                maxMailboxes;
+  private final PontusMicrosoftGraphAuthControllerServiceInterface authProviderService;
+  private final PontusMicrosoftGraphFolderPolicy                   folderPolicy;
+  private final BooleanSupplier                                    budgetSpent;
+  private final Listener                                           listener;
+  private final BlockingQueue<Event>                               events  = new ArrayBlockingQueue<>(
+      EVENT_QUEUE_SIZE);
+  private final List<Future<?>>                                    walks   = new ArrayList<>();
+  private       int                                                running = 0;
+
+  public PontusMicrosoftGraphFolderSync(ExecutorService executor, int maxMailboxes,
+                                        PontusMicrosoftGraphAuthControllerServiceInterface authProviderService,
+                                        PontusMicrosoftGraphFolderPolicy folderPolicy, BooleanSupplier budgetSpent,
+                                        Listener listener)
+  {
+    this.executor = executor;
+    this.maxMailboxes = Math.max(1, maxMailboxes);
+    this.authProviderService = authProviderService;
+    this.folderPolicy = folderPolicy;
+    this.budgetSpent = budgetSpent;
+    this.listener = listener;
+  }
+
+  /*
+   * Starts the walk of a mailbox, first waiting (and handing the results of the walks in flight to the listener)
+   * until fewer than maxMailboxes walks are in flight.  The key identifies the walk in the listener calls; select
+   * holds the folder fields to return.  A walk that fails is retried once with a refreshed token.
+   */
+  public void submit(final String key, final String userId, final String delta, final String select) throws Exception
+  {
+    while (running >= maxMailboxes)
+    {
+      nextEvent().run();
+    }
+    running++;
+
+    walks.add(executor.submit(() -> {
+      long      count = 0;
+      Exception error = null;
+      try
+      {
+        try
+        {
+          count = walk(authProviderService.getService(), key, userId, delta, select);
+        }
+        catch (InterruptedException ex)
+        {
+          throw ex;
+        }
+        catch (Exception ex)
+        {
+          authProviderService.refreshToken();
+          count = walk(authProviderService.getService(), key, userId, delta, select);
+        }
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      catch (Throwable ex)
+      {
+        error = ex instanceof Exception ? (Exception) ex : new ExecutionException(ex);
+      }
+
+      final long      total   = count;
+      final Exception failure = error;
+      try
+      {
+        events.put(() -> {
+          running--;
+          listener.done(key, userId, total, failure);
+        });
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }));
+  }
+
+  /*
+   * Hands the results of all the walks in flight to the listener, returning once they have all completed.
+   */
+  public void finish() throws Exception
+  {
+    while (running > 0)
+    {
+      nextEvent().run();
+    }
+  }
+
+  /*
+   * Waits for the next result of the walks in flight; throws if they have all ended, but some never reported back.
+   */
+  private Event nextEvent() throws InterruptedException
+  {
+    Event event = events.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    while (event == null)
+    {
+      // a walk exits without a word when interrupted (e.g. its executor is shut down on stop)
+      if (walks.stream().allMatch(Future::isDone) && events.isEmpty())
+      {
+        throw new ProcessException(running + " mailbox folder walk(s) ended without completing");
+      }
+      event = events.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+    return event;
+  }
+
+  private long walk(IGraphServiceClient graphClient, String key, String userId, String delta, String select)
+      throws Exception
+  {
+    long                                     count   = 0;
+    PontusMicrosoftGraphFolderPolicy.Mailbox mailbox = folderPolicy.forMailbox(graphClient, userId);
+
+    IMailFolderDeltaCollectionRequest request;
+    if (delta != null && delta.trim().length() > 0)
+    {
+      request = graphClient.users(userId).mailFolders().delta(delta).buildRequest().select(select);
+    }
+    else
+    {
+      request = graphClient.users(userId).mailFolders().delta().buildRequest().select(select);
+    }
+
+    do
+    {
+      IMailFolderDeltaCollectionPage page    = request.get();
+      List<MailFolder>               folders = page.getCurrentPage();
+
+      if (folders != null)
+      {
+        for (MailFolder folder : folders)
+        {
+          count++;
+          if (mailbox.accept(folder))
+          {
+            events.put(() -> listener.folder(key, userId, folder));
+          }
+        }
+      }
+
+      if (page.getNextPage() != null && budgetSpent.getAsBoolean())
+      {
+        // resume from the next page in a later run
+        request = null;
+        String nextLink = page.getNextPage().getRequestUrl();
+        events.put(() -> listener.deltaLink(key, userId, delta, nextLink));
+      }
+      else if (page.getNextPage() != null)
+      {
+        request = page.getNextPage().buildRequest();
+      }
+      else
+      {
+        request = null;
+        String deltaLink = page.deltaLink();
+        events.put(() -> listener.deltaLink(key, userId, delta, deltaLink));
+      }
+    }
+    while (request != null);
+
+    return count;
+  }
+
+  /*
+   * Cancels the walks still in flight (e.g. after an error); their remaining results are dropped.
+   */
+  @Override public void close()
+  {
+    walks.forEach(walk -> walk.cancel(true));
+    events.clear();
+    running = 0;
+  }
+}
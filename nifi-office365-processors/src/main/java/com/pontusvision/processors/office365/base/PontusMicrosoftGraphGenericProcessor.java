@@ -1,28 +1,50 @@
 package com.pontusvision.processors.office365.base;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import com.microsoft.graph.http.CustomRequest;
 import com.microsoft.graph.models.extensions.IGraphServiceClient;
 import com.microsoft.graph.options.FunctionOption;
+import com.microsoft.graph.options.HeaderOption;
 import com.microsoft.graph.options.QueryOption;
 import com.pontusvision.nifi.office365.PontusMicrosoftGraphAuthControllerServiceInterface;
 import org.apache.commons.io.IOUtils;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.components.Validator;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.util.StringUtils;
 
 import java.io.IOException;
+import java.io.BufferedWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import static com.pontusvision.processors.office365.base.PontusMicrosoftGraphBaseProcessor.writeFlowFile;
 
@@ -34,7 +56,66 @@ public class PontusMicrosoftGraphGenericProcessor extends AbstractProcessor
   private List<PropertyDescriptor> properties;
   private Set<Relationship>        relationships;
 
-  private PontusMicrosoftGraphAuthControllerServiceInterface authProviderService;
+  private volatile PontusMicrosoftGraphAuthControllerServiceInterface authProviderService;
+
+  private volatile PontusMicrosoftGraphOptionsTemplate functionOptions = PontusMicrosoftGraphOptionsTemplate.EMPTY;
+  private volatile PontusMicrosoftGraphOptionsTemplate queryOptions    = PontusMicrosoftGraphOptionsTemplate.EMPTY;
+  private volatile PontusMicrosoftGraphOptionsTemplate headers         = PontusMicrosoftGraphOptionsTemplate.EMPTY;
+
+  private volatile boolean streamBody = false;
+
+  public static final String RESPONSE_MODE_JSON = "Parsed JSON";
+  public static final String RESPONSE_MODE_AUTO = "Auto Detect";
+
+  public static final String OFFICE365_STATUS_CODE = "office365_status_code";
+  public static final String OFFICE365_BINARY      = "office365_binary";
+
+  private volatile boolean autoDetectResponse     = false;
+
+  public static final String SPLIT_NONE        = "None";
+  public static final String SPLIT_PER_ELEMENT = "Flow File per Element";
+  public static final String SPLIT_JSON_LINES  = "JSON Lines";
+
+  public static final String OFFICE365_ELEMENT_INDEX    = "office365_element_index";
+  public static final String OFFICE365_ATTRIBUTE_PREFIX = "office365_";
+  public static final String JSON_LINES_MIME_TYPE       = "application/x-ndjson";
+
+  private volatile String       splitMode   = SPLIT_NONE;
+  private volatile List<String> splitFields = Collections.emptyList();
+  private volatile Pattern responseHeaderPattern = null;
+
+  public static final String BODY_MODE_PARSED_JSON = "Parsed JSON";
+  public static final String BODY_MODE_STREAM      = "Stream Content";
+
+  public static final String DEFAULT_CONTENT_TYPE = "application/json";
+
+  public static final String PAGINATION_OUTPUT_PER_PAGE = "One Flow File per Page";
+  public static final String PAGINATION_OUTPUT_SINGLE   = "Single Flow File";
+
+  public static final String OFFICE365_PAGE_INDEX   = "office365_page_index";
+  public static final String OFFICE365_PAGE_COUNT   = "office365_page_count";
+  public static final String OFFICE365_ENTITY_COUNT = "office365_entity_count";
+  public static final String OFFICE365_NEXT_LINK    = "office365_next_link";
+  public static final String OFFICE365_BATCH_STATUS = "office365_batch_status";
+
+  private static final Gson GSON = new Gson();
+
+  private volatile boolean         followPagination = false;
+  private volatile boolean         singleFlowFile   = false;
+  private volatile long            maxPages         = 0;
+  private volatile long            maxEntities      = 0;
+  private volatile int             prefetchPages    = 2;
+  private volatile ExecutorService pageExecutor;
+
+  private volatile int    batchSize           = 1;
+  private volatile String dependencyAttribute = null;
+
+  public static final String CACHE_HITS_COUNTER          = "Office365 Response Cache Hits";
+  public static final String CACHE_MISSES_COUNTER        = "Office365 Response Cache Misses";
+  public static final String CACHE_REVALIDATIONS_COUNTER = "Office365 Response Cache Revalidations";
+
+  private volatile PontusMicrosoftGraphResponseCache responseCache = null;
+  private volatile long                              cacheMaxAge   = 0;
 
   final static PropertyDescriptor URL = new PropertyDescriptor
     .Builder()
@@ -66,6 +147,183 @@ public class PontusMicrosoftGraphGenericProcessor extends AbstractProcessor
     .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
     .build();
 
+  final static PropertyDescriptor REQUEST_BODY_MODE = new PropertyDescriptor
+    .Builder()
+    .name("Request Body Mode")
+    .defaultValue(BODY_MODE_PARSED_JSON)
+    .description("How the request body (for POST, PUT and PATCH) and the response are handled.  "
+        + BODY_MODE_PARSED_JSON + " reads the DATA property (or the flow file content) into a JSON object, and writes "
+        + "the JSON response to the flow file.  " + BODY_MODE_STREAM + " streams the DATA property (or the flow file "
+        + "content, with the mime.type attribute as its Content-Type, defaulting to " + DEFAULT_CONTENT_TYPE
+        + ") straight into the HTTP request, and streams the response body straight into the flow file, setting "
+        + "mime.type to the response Content-Type; use it for large payloads, or payloads that are not JSON objects.")
+    .required(true)
+    .allowableValues(BODY_MODE_PARSED_JSON, BODY_MODE_STREAM)
+    .build();
+
+  final static PropertyDescriptor RESPONSE_MODE = new PropertyDescriptor
+    .Builder()
+    .name("Response Mode")
+    .defaultValue(RESPONSE_MODE_JSON)
+    .description("How responses are read in the " + BODY_MODE_PARSED_JSON + " body mode.  " + RESPONSE_MODE_JSON
+        + " parses every response as a JSON object.  " + RESPONSE_MODE_AUTO + " reads the response as is, so "
+        + "endpoints returning binary content (drive item content, photos, MIME $value, ...) work: the body is "
+        + "streamed into the flow file through a fixed size buffer, whatever its size, with mime.type set from the "
+        + "response Content-Type, and " + OFFICE365_BINARY + " set to whether it is anything other than JSON.  The "
+        + BODY_MODE_STREAM + " body mode always reads responses this way.")
+    .required(true)
+    .allowableValues(RESPONSE_MODE_JSON, RESPONSE_MODE_AUTO)
+    .build();
+
+  final static PropertyDescriptor RESPONSE_HEADER_ATTRIBUTES = new PropertyDescriptor
+    .Builder()
+    .name("Response Header Attributes")
+    .description("Optional regular expression; response headers whose names match it (case insensitive) are "
+        + "written as flow file attributes with the same names when the response is streamed (the "
+        + BODY_MODE_STREAM + " body mode, or the " + RESPONSE_MODE_AUTO + " response mode).  The HTTP status is "
+        + "always written to " + OFFICE365_STATUS_CODE + " in those modes.")
+    .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+    .required(false)
+    .build();
+
+  final static PropertyDescriptor SPLIT_VALUE_ARRAY = new PropertyDescriptor
+    .Builder()
+    .name("Split Value Array")
+    .defaultValue(SPLIT_NONE)
+    .description("Splits the value array of collection responses ({\"value\":[...]}) as the response is read, "
+        + "instead of writing the whole document to one flow file.  " + SPLIT_PER_ELEMENT + " emits each element "
+        + "as a child flow file (with the " + OFFICE365_ELEMENT_INDEX + " attribute, and the Split Attribute "
+        + "Fields), and drops the original.  " + SPLIT_JSON_LINES + " writes the elements to the flow file one per "
+        + "line (mime.type " + JSON_LINES_MIME_TYPE + "), ready for record readers.  With Follow Pagination, the "
+        + "elements of every page are split, and Pagination Output is ignored.")
+    .required(true)
+    .allowableValues(SPLIT_NONE, SPLIT_PER_ELEMENT, SPLIT_JSON_LINES)
+    .build();
+
+  final static PropertyDescriptor SPLIT_ATTRIBUTE_FIELDS = new PropertyDescriptor
+    .Builder()
+    .name("Split Attribute Fields")
+    .defaultValue("id")
+    .description("Comma separated list of top level fields copied from each element to the "
+        + OFFICE365_ATTRIBUTE_PREFIX + "<field> attribute of its flow file, when splitting with "
+        + SPLIT_PER_ELEMENT + "; fields that are missing, or are not plain values, are skipped.")
+    .addValidator(Validator.VALID)
+    .required(false)
+    .build();
+
+  final static PropertyDescriptor FOLLOW_PAGINATION = new PropertyDescriptor
+    .Builder()
+    .name("Follow Pagination")
+    .defaultValue("false")
+    .description("For GET requests to collection endpoints, follow every @odata.nextLink within the same invocation, "
+        + "instead of returning only the first page.  Pages are fetched on a background thread, a few pages ahead "
+        + "of the output (see Prefetch Pages).")
+    .required(true)
+    .allowableValues("true", "false")
+    .build();
+
+  final static PropertyDescriptor PAGINATION_OUTPUT = new PropertyDescriptor
+    .Builder()
+    .name("Pagination Output")
+    .defaultValue(PAGINATION_OUTPUT_PER_PAGE)
+    .description("When following pagination, either emit each page as its own flow file (with the "
+        + OFFICE365_PAGE_INDEX + " attribute), or stream the value elements of all pages into a single flow file, "
+        + "as a {\"value\":[...]} document, with the " + OFFICE365_PAGE_COUNT + " and " + OFFICE365_ENTITY_COUNT
+        + " attributes.")
+    .required(true)
+    .allowableValues(PAGINATION_OUTPUT_PER_PAGE, PAGINATION_OUTPUT_SINGLE)
+    .build();
+
+  final static PropertyDescriptor MAX_PAGES = new PropertyDescriptor
+    .Builder()
+    .name("Max Pages")
+    .defaultValue("0")
+    .description("When following pagination, stop after this many pages (0 means no limit).  If there are more "
+        + "pages, the link to the next page is written to the " + OFFICE365_NEXT_LINK + " attribute.")
+    .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+    .required(true)
+    .build();
+
+  final static PropertyDescriptor MAX_ENTITIES = new PropertyDescriptor
+    .Builder()
+    .name("Max Entities")
+    .defaultValue("0")
+    .description("When following pagination, stop after this many value elements (0 means no limit); the last "
+        + "page is truncated if needed.")
+    .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+    .required(true)
+    .build();
+
+  final static PropertyDescriptor PREFETCH_PAGES = new PropertyDescriptor
+    .Builder()
+    .name("Prefetch Pages")
+    .defaultValue("2")
+    .description("When following pagination, the maximum number of pages fetched ahead of the page being written "
+        + "out; bounds the memory used by each invocation.")
+    .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+    .required(true)
+    .build();
+
+  final static PropertyDescriptor BATCH_SIZE = new PropertyDescriptor
+    .Builder()
+    .name("Batch Size")
+    .defaultValue("1")
+    .description("The number of flow files to take from the queue per invocation.  When greater than 1, each flow "
+        + "file becomes one request of a Graph JSON $batch request (up to "
+        + PontusMicrosoftGraphBatch.MAX_BATCH_SIZE + " requests per $batch call), and each response is routed "
+        + "back to its flow file, to success or failure based on its own status (in the " + OFFICE365_BATCH_STATUS
+        + " attribute); throttled requests (429/503) are penalized.  Follow Pagination and the Stream Content "
+        + "body mode are ignored in batch mode, and request bodies must be JSON.")
+    .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+    .required(true)
+    .build();
+
+  final static PropertyDescriptor BATCH_DEPENDENCY_ATTRIBUTE = new PropertyDescriptor
+    .Builder()
+    .name("Batch Dependency Attribute")
+    .description("Optional flow file attribute used to order requests in batch mode: requests whose flow files "
+        + "have the same value for this attribute (e.g. the same message id) run one after the other, in queue "
+        + "order, using the $batch dependsOn field; if one fails, the ones after it fail with HTTP 424.  Requests "
+        + "with different values (or without the attribute) run independently.")
+    .addValidator(StandardValidators.ATTRIBUTE_KEY_VALIDATOR)
+    .required(false)
+    .build();
+
+  final static PropertyDescriptor RESPONSE_CACHE_MAX_ENTRIES = new PropertyDescriptor
+    .Builder()
+    .name("Response Cache Max Entries")
+    .defaultValue("0")
+    .description("Maximum number of GET responses kept in memory (0 disables the cache).  Responses are keyed by "
+        + "URL, select list, function/query options and headers; a cached response with an ETag is revalidated "
+        + "with If-None-Match, and served from the cache if Graph answers HTTP 304.  The least recently used "
+        + "responses are evicted first.  Only applies to GET requests in the " + BODY_MODE_PARSED_JSON
+        + " body mode, without Follow Pagination.  Hits, misses and revalidations are reported as processor "
+        + "counters.")
+    .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+    .required(true)
+    .build();
+
+  final static PropertyDescriptor RESPONSE_CACHE_TTL = new PropertyDescriptor
+    .Builder()
+    .name("Response Cache TTL")
+    .defaultValue("1 hour")
+    .description("How long a cached response is kept since it was last fetched or revalidated (0 sec keeps it "
+        + "until it is evicted by size).")
+    .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+    .required(true)
+    .build();
+
+  final static PropertyDescriptor RESPONSE_CACHE_MAX_AGE = new PropertyDescriptor
+    .Builder()
+    .name("Response Cache Max Age")
+    .defaultValue("0 sec")
+    .description("How long a cached response is served without contacting Graph at all; after that it is "
+        + "revalidated with If-None-Match (0 sec always revalidates).  Responses without an ETag are only cached "
+        + "when this is greater than 0.")
+    .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+    .required(true)
+    .build();
+
   final static PropertyDescriptor SEARCH_FIELDS = new PropertyDescriptor
     .Builder()
     .name("Search Fields").defaultValue(
@@ -152,10 +410,25 @@ public class PontusMicrosoftGraphGenericProcessor extends AbstractProcessor
     properties.add(URL);
     properties.add(METHOD_TYPE);
     properties.add(DATA);
+    properties.add(REQUEST_BODY_MODE);
+    properties.add(RESPONSE_MODE);
+    properties.add(RESPONSE_HEADER_ATTRIBUTES);
     properties.add(SEARCH_FIELDS);
     properties.add(FUNCTION_OPTIONS);
     properties.add(QUERY_OPTIONS);
     properties.add(HEADERS);
+    properties.add(SPLIT_VALUE_ARRAY);
+    properties.add(SPLIT_ATTRIBUTE_FIELDS);
+    properties.add(FOLLOW_PAGINATION);
+    properties.add(PAGINATION_OUTPUT);
+    properties.add(MAX_PAGES);
+    properties.add(MAX_ENTITIES);
+    properties.add(PREFETCH_PAGES);
+    properties.add(BATCH_SIZE);
+    properties.add(BATCH_DEPENDENCY_ATTRIBUTE);
+    properties.add(RESPONSE_CACHE_MAX_ENTRIES);
+    properties.add(RESPONSE_CACHE_TTL);
+    properties.add(RESPONSE_CACHE_MAX_AGE);
 
     this.properties = Collections.unmodifiableList(properties);
 
@@ -166,13 +439,78 @@ public class PontusMicrosoftGraphGenericProcessor extends AbstractProcessor
   }
 
 
-  public void processData (FlowFile flowFile, ProcessContext context, ProcessSession session, String data){
-    JsonParser parser = new JsonParser();
+  @OnScheduled
+  public void onScheduled(final ProcessContext context)
+  {
+    authProviderService = context
+      .getProperty(SERVICE)
+      .asControllerService(PontusMicrosoftGraphAuthControllerServiceInterface.class);
+
+    functionOptions = PontusMicrosoftGraphOptionsTemplate.compile(context, FUNCTION_OPTIONS);
+    queryOptions = PontusMicrosoftGraphOptionsTemplate.compile(context, QUERY_OPTIONS);
+    headers = PontusMicrosoftGraphOptionsTemplate.compile(context, HEADERS);
+
+    streamBody = BODY_MODE_STREAM.equals(context.getProperty(REQUEST_BODY_MODE).getValue());
+    autoDetectResponse = RESPONSE_MODE_AUTO.equals(context.getProperty(RESPONSE_MODE).getValue());
+
+    splitMode = context.getProperty(SPLIT_VALUE_ARRAY).getValue();
+    List<String> fields = new ArrayList<>();
+    String fieldsStr = context.getProperty(SPLIT_ATTRIBUTE_FIELDS).getValue();
+    if (StringUtils.isNotBlank(fieldsStr))
+    {
+      for (String field : fieldsStr.split(","))
+      {
+        if (StringUtils.isNotBlank(field))
+        {
+          fields.add(field.trim());
+        }
+      }
+    }
+    splitFields = Collections.unmodifiableList(fields);
+
+    String headerRegex = context.getProperty(RESPONSE_HEADER_ATTRIBUTES).getValue();
+    responseHeaderPattern = StringUtils.isBlank(headerRegex) ?
+      null :
+      Pattern.compile(headerRegex, Pattern.CASE_INSENSITIVE);
+
+    followPagination = context.getProperty(FOLLOW_PAGINATION).asBoolean();
+    singleFlowFile = PAGINATION_OUTPUT_SINGLE.equals(context.getProperty(PAGINATION_OUTPUT).getValue());
+    maxPages = context.getProperty(MAX_PAGES).asLong();
+    maxEntities = context.getProperty(MAX_ENTITIES).asLong();
+    prefetchPages = context.getProperty(PREFETCH_PAGES).asInteger();
+    batchSize = context.getProperty(BATCH_SIZE).asInteger();
+    dependencyAttribute = context.getProperty(BATCH_DEPENDENCY_ATTRIBUTE).getValue();
+
+    int cacheMaxEntries = context.getProperty(RESPONSE_CACHE_MAX_ENTRIES).asInteger();
+    cacheMaxAge = context.getProperty(RESPONSE_CACHE_MAX_AGE).asTimePeriod(TimeUnit.MILLISECONDS);
+    responseCache = cacheMaxEntries > 0 ?
+      new PontusMicrosoftGraphResponseCache(cacheMaxEntries,
+        context.getProperty(RESPONSE_CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS)) :
+      null;
 
+    if (followPagination)
+    {
+      pageExecutor = Executors.newCachedThreadPool();
+    }
+  }
+
+  @OnStopped
+  public void onStopped()
+  {
+    if (pageExecutor != null)
+    {
+      pageExecutor.shutdownNow();
+      pageExecutor = null;
+    }
+  }
+
+  /*
+   * Builds the request for a flow file, with its select list, function/query options and headers.
+   */
+  private CustomRequest<JsonObject> buildRequest(FlowFile flowFile, ProcessContext context,
+                                                 IGraphServiceClient graphClient)
+  {
     final String url = context.getProperty(URL).evaluateAttributeExpressions(flowFile).getValue();
-    final String methodType = context.getProperty(METHOD_TYPE).evaluateAttributeExpressions(flowFile).getValue();
-//    session.remove(flowFile);
-    final IGraphServiceClient graphClient = authProviderService.getService();
 
     final CustomRequest<JsonObject> req = graphClient.customRequest(url).buildRequest();
 
@@ -182,47 +520,74 @@ public class PontusMicrosoftGraphGenericProcessor extends AbstractProcessor
       req.select(selectStr);
     }
 
-    final String functionOptionsStr = context
-        .getProperty(FUNCTION_OPTIONS)
-        .evaluateAttributeExpressions(flowFile)
-        .getValue();
+    functionOptions.evaluate(flowFile)
+      .forEach(option -> req.addFunctionOption(new FunctionOption(option.getKey(), option.getValue())));
 
-    if (StringUtils.isNotEmpty(functionOptionsStr)) {
-      JsonObject funcOptions = parser.parse(functionOptionsStr).getAsJsonObject();
+    queryOptions.evaluate(flowFile)
+      .forEach(option -> req.addQueryOption(new QueryOption(option.getKey(), option.getValue())));
 
-      funcOptions.entrySet()
-        .forEach(stringJsonElementEntry -> req.addFunctionOption(new FunctionOption(stringJsonElementEntry.getKey(),
-          stringJsonElementEntry.getValue().getAsString()))
-        );
-    }
-    final String queryOptionsStr = context
-        .getProperty(QUERY_OPTIONS)
-        .evaluateAttributeExpressions(flowFile)
-        .getValue();
-    if (StringUtils.isNotEmpty(queryOptionsStr)) {
+    headers.evaluate(flowFile)
+      .forEach(option -> req.addHeader(option.getKey(), option.getValue()));
+
+    return req;
+  }
 
-      JsonObject queryOptions = parser.parse(queryOptionsStr).getAsJsonObject();
+  public void processData (FlowFile flowFile, ProcessContext context, ProcessSession session, String data)
+    throws Exception
+  {
+    JsonParser parser = new JsonParser();
 
-      queryOptions.entrySet()
-        .forEach(stringJsonElementEntry -> req.addQueryOption(new QueryOption(stringJsonElementEntry.getKey(),
-          stringJsonElementEntry.getValue().getAsString()))
-        );
-    }
+    final String methodType = context.getProperty(METHOD_TYPE).evaluateAttributeExpressions(flowFile).getValue();
+//    session.remove(flowFile);
+    final IGraphServiceClient graphClient = authProviderService.getService();
 
-    final String headersStr = context
-        .getProperty(HEADERS)
-        .evaluateAttributeExpressions(flowFile)
-        .getValue();
+    final CustomRequest<JsonObject> req = buildRequest(flowFile, context, graphClient);
 
-    if (StringUtils.isNotEmpty(headersStr)) {
+    if (followPagination && "GET".equalsIgnoreCase(methodType))
+    {
+      final List<Map.Entry<String, String>> headerOptions = headers.evaluate(flowFile);
 
-      JsonObject headers = parser.parse(headersStr).getAsJsonObject();
+      PontusMicrosoftGraphPagePrefetcher.PageFetcher fetcher = nextLink -> {
+        if (nextLink == null)
+        {
+          return req.get();
+        }
+        String root = graphClient.getServiceRoot();
+        CustomRequest<JsonObject> pageReq = graphClient
+          .customRequest(nextLink.startsWith(root) ? nextLink.substring(root.length()) : nextLink)
+          .buildRequest();
+        headerOptions.forEach(option -> pageReq.addHeader(option.getKey(), option.getValue()));
+        return pageReq.get();
+      };
 
-      headers.entrySet()
-        .forEach(stringJsonElementEntry -> req.addHeader(stringJsonElementEntry.getKey(),
-          stringJsonElementEntry.getValue().getAsString())
-        );
+      if (!SPLIT_NONE.equals(splitMode))
+      {
+        emitSplit(flowFile, session, sink -> forEachPageValue(fetcher, sink));
+      }
+      else if (singleFlowFile)
+      {
+        writeAllPages(flowFile, session, fetcher);
+      }
+      else
+      {
+        writePages(flowFile, session, fetcher);
+      }
+      return;
+    }
+
+    final PontusMicrosoftGraphResponseCache cache = responseCache;
+    if (cache != null && !streamBody && "GET".equalsIgnoreCase(methodType))
+    {
+      getCached(flowFile, session, graphClient, req, cache);
+      return;
+    }
+
+    if (streamBody || autoDetectResponse)
+    {
+      streamData(flowFile, session, graphClient, req, methodType, data);
+      return;
     }
+
     JsonObject obj = null;
     if("GET".equalsIgnoreCase(methodType)){
       obj = req.get();
@@ -244,15 +609,632 @@ public class PontusMicrosoftGraphGenericProcessor extends AbstractProcessor
     }
 
     if (obj != null){
-      writeFlowFile(flowFile,session,obj.toString(),SUCCESS );
+      final JsonElement value = obj.get("value");
+      if (!SPLIT_NONE.equals(splitMode) && value != null && value.isJsonArray())
+      {
+        emitSplit(flowFile, session, sink -> {
+          for (JsonElement element : value.getAsJsonArray())
+          {
+            sink.accept(element);
+          }
+          return value.getAsJsonArray().size();
+        });
+      }
+      else
+      {
+        writeFlowFile(flowFile,session,obj.toString(),SUCCESS );
+      }
     }
 
 
     //      session.transfer(flowFile, ORIGINAL);
   }
 
+  private interface ElementSink
+  {
+    void accept(JsonElement element) throws IOException;
+  }
+
+  private interface ElementSource
+  {
+    /*
+     * Passes every element to the sink; returns the number of elements.
+     */
+    long forEach(ElementSink sink) throws Exception;
+  }
+
+  /*
+   * Reads a collection document element by element, passing each element of its value array to the sink, so only
+   * one element is held in memory at a time.
+   */
+  private static long forEachValue(JsonReader reader, ElementSink sink) throws IOException
+  {
+    JsonParser parser = new JsonParser();
+    long       count  = 0;
+
+    reader.beginObject();
+    while (reader.hasNext())
+    {
+      if ("value".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY)
+      {
+        reader.beginArray();
+        while (reader.hasNext())
+        {
+          sink.accept(parser.parse(reader));
+          count++;
+        }
+        reader.endArray();
+      }
+      else
+      {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return count;
+  }
+
+  /*
+   * Walks every page (within the Max Pages/Max Entities limits), passing each value element to the sink.
+   */
+  private long forEachPageValue(PontusMicrosoftGraphPagePrefetcher.PageFetcher fetcher, ElementSink sink)
+    throws Exception
+  {
+    long entities = 0;
+    try (PontusMicrosoftGraphPagePrefetcher pages = new PontusMicrosoftGraphPagePrefetcher(pageExecutor,
+      prefetchPages, maxPages, fetcher))
+    {
+      JsonObject page;
+      while ((page = pages.next(() -> !isScheduled())) != null)
+      {
+        for (JsonElement element : limitEntities(page, entities))
+        {
+          sink.accept(element);
+          entities++;
+        }
+        if (maxEntities > 0 && entities >= maxEntities)
+        {
+          break;
+        }
+      }
+    }
+    return entities;
+  }
+
+  /*
+   * Writes the elements from the source as JSON Lines to the flow file, or as one child flow file each (the
+   * original flow file is then dropped), depending on the Split Value Array mode.
+   */
+  private void emitSplit(FlowFile flowFile, final ProcessSession session, final ElementSource source)
+    throws Exception
+  {
+    if (SPLIT_JSON_LINES.equals(splitMode))
+    {
+      final long[] count = new long[1];
+      flowFile = session.write(flowFile, out -> {
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        try
+        {
+          count[0] = source.forEach(element -> {
+            writer.write(element.toString());
+            writer.write('\n');
+          });
+        }
+        catch (IOException ex)
+        {
+          throw ex;
+        }
+        catch (Exception ex)
+        {
+          throw new IOException(ex);
+        }
+        writer.flush();
+      });
+      flowFile = session.putAttribute(flowFile, OFFICE365_ENTITY_COUNT, Long.toString(count[0]));
+      flowFile = session.putAttribute(flowFile, CoreAttributes.MIME_TYPE.key(), JSON_LINES_MIME_TYPE);
+      session.transfer(flowFile, SUCCESS);
+      return;
+    }
+
+    final FlowFile       parent   = flowFile;
+    final List<FlowFile> children = new ArrayList<>();
+    final List<String>   fields   = splitFields;
+    try
+    {
+      source.forEach(element -> {
+        FlowFile child = session.create(parent);
+        child = session.putAttribute(child, OFFICE365_ELEMENT_INDEX, Integer.toString(children.size()));
+        if (element.isJsonObject())
+        {
+          JsonObject obj = element.getAsJsonObject();
+          for (String field : fields)
+          {
+            JsonElement fieldValue = obj.get(field);
+            if (fieldValue != null && fieldValue.isJsonPrimitive())
+            {
+              child = session.putAttribute(child, OFFICE365_ATTRIBUTE_PREFIX + field, fieldValue.getAsString());
+            }
+          }
+        }
+        final String elementStr = element.toString();
+        child = session.write(child, out -> IOUtils.write(elementStr, out, StandardCharsets.UTF_8));
+        child = session.putAttribute(child, CoreAttributes.MIME_TYPE.key(), DEFAULT_CONTENT_TYPE);
+        children.add(child);
+      });
+    }
+    catch (Exception ex)
+    {
+      session.remove(children);
+      throw ex;
+    }
+    session.transfer(children, SUCCESS);
+    session.remove(parent);
+  }
+
+  /*
+   * Writes a JSON response body to the flow file, split if Split Value Array is set.
+   */
+  private void writeResult(FlowFile flowFile, ProcessSession session, final String body) throws Exception
+  {
+    if (SPLIT_NONE.equals(splitMode) || StringUtils.isBlank(body))
+    {
+      writeFlowFile(flowFile, session, body, SUCCESS);
+      return;
+    }
+    emitSplit(flowFile, session, sink -> forEachValue(new JsonReader(new StringReader(body)), sink));
+  }
+
+  /*
+   * GET through the response cache: serves a recent enough entry as is, revalidates an older one with its ETag,
+   * and stores the response otherwise.
+   */
+  private void getCached(FlowFile flowFile, ProcessSession session, IGraphServiceClient graphClient,
+                         CustomRequest<JsonObject> req, PontusMicrosoftGraphResponseCache cache) throws Exception
+  {
+    final StringBuilder keyBuilder = new StringBuilder(req.getRequestUrl().toString());
+    for (HeaderOption header : req.getHeaders())
+    {
+      keyBuilder.append('\n').append(header.getName()).append(':').append(header.getValue());
+    }
+    final String key = keyBuilder.toString();
+    final long   now = System.currentTimeMillis();
+
+    PontusMicrosoftGraphResponseCache.Entry entry = cache.get(key, now);
+    if (entry != null && now - entry.getStoredAt() < cacheMaxAge)
+    {
+      session.adjustCounter(CACHE_HITS_COUNTER, 1, false);
+      writeResult(flowFile, session, entry.getBody());
+      return;
+    }
+
+    if (entry != null && entry.getEtag() != null)
+    {
+      req.addHeader("If-None-Match", entry.getEtag());
+      session.adjustCounter(CACHE_REVALIDATIONS_COUNTER, 1, false);
+    }
+
+    try (PontusMicrosoftGraphRawRequest.Response response = PontusMicrosoftGraphRawRequest
+      .execute(graphClient, req, "GET", null, -1, null))
+    {
+      if (response.getStatus() == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null)
+      {
+        cache.touch(key, entry, now);
+        session.adjustCounter(CACHE_HITS_COUNTER, 1, false);
+        writeResult(flowFile, session, entry.getBody());
+        return;
+      }
+
+      session.adjustCounter(CACHE_MISSES_COUNTER, 1, false);
+
+      String body = "";
+      if (response.hasBody())
+      {
+        try (InputStream in = response.getBody())
+        {
+          body = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+      }
+
+      String etag = response.getHeader("ETag");
+      if (etag != null || cacheMaxAge > 0)
+      {
+        cache.put(key, etag, body, response.getContentType(), now);
+      }
+      else
+      {
+        cache.remove(key);
+      }
+      writeResult(flowFile, session, body);
+    }
+  }
+
+  /*
+   * Applies the Max Entities limit to a page, given the number of entities already written; returns the (possibly
+   * truncated) value array.  A truncated page loses its nextLink, as resuming from it would skip entities.
+   */
+  private JsonArray limitEntities(JsonObject page, long written)
+  {
+    JsonElement valueElement = page.get("value");
+    JsonArray   value        = valueElement != null && valueElement.isJsonArray() ?
+      valueElement.getAsJsonArray() :
+      new JsonArray();
+
+    if (maxEntities > 0 && written + value.size() > maxEntities)
+    {
+      JsonArray truncated = new JsonArray();
+      for (int i = 0, ilen = (int) (maxEntities - written); i < ilen; i++)
+      {
+        truncated.add(value.get(i));
+      }
+      page.add("value", truncated);
+      page.remove(PontusMicrosoftGraphPagePrefetcher.NEXT_LINK);
+      value = truncated;
+    }
+    return value;
+  }
+
+  private static String getNextLink(JsonObject page)
+  {
+    JsonElement next = page.get(PontusMicrosoftGraphPagePrefetcher.NEXT_LINK);
+    return next == null || next.isJsonNull() ? null : next.getAsString();
+  }
+
+  /*
+   * Emits each page as a child of the original flow file, which is then dropped.
+   */
+  private void writePages(FlowFile flowFile, ProcessSession session,
+                          PontusMicrosoftGraphPagePrefetcher.PageFetcher fetcher) throws Exception
+  {
+    List<FlowFile> children = new ArrayList<>();
+    long           entities = 0;
+    String         nextLink = null;
+
+    try (PontusMicrosoftGraphPagePrefetcher pages = new PontusMicrosoftGraphPagePrefetcher(pageExecutor,
+      prefetchPages, maxPages, fetcher))
+    {
+      JsonObject page;
+      while ((page = pages.next(() -> !isScheduled())) != null)
+      {
+        JsonArray value = limitEntities(page, entities);
+        entities += value.size();
+
+        FlowFile child = session.create(flowFile);
+        child = session.putAttribute(child, OFFICE365_PAGE_INDEX, Integer.toString(children.size()));
+        child = session.putAttribute(child, OFFICE365_ENTITY_COUNT, Integer.toString(value.size()));
+        final String pageStr = page.toString();
+        child = session.write(child, out -> IOUtils.write(pageStr, out, StandardCharsets.UTF_8));
+        children.add(child);
+        nextLink = getNextLink(page);
+
+        if (maxEntities > 0 && entities >= maxEntities)
+        {
+          break;
+        }
+      }
+    }
+    catch (Exception ex)
+    {
+      session.remove(children);
+      throw ex;
+    }
+
+    if (nextLink != null && !children.isEmpty())
+    {
+      int last = children.size() - 1;
+      children.set(last, session.putAttribute(children.get(last), OFFICE365_NEXT_LINK, nextLink));
+    }
+    session.transfer(children, SUCCESS);
+    session.remove(flowFile);
+  }
+
+  /*
+   * Streams the value elements of every page into the original flow file.
+   */
+  private void writeAllPages(FlowFile flowFile, ProcessSession session,
+                             PontusMicrosoftGraphPagePrefetcher.PageFetcher fetcher)
+  {
+    final long[]   counts   = new long[2];
+    final String[] nextLink = new String[1];
+
+    try (PontusMicrosoftGraphPagePrefetcher pages = new PontusMicrosoftGraphPagePrefetcher(pageExecutor,
+      prefetchPages, maxPages, fetcher))
+    {
+      flowFile = session.write(flowFile, out -> {
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.beginObject().name("value").beginArray();
+        try
+        {
+          JsonObject page;
+          while ((page = pages.next(() -> !isScheduled())) != null)
+          {
+            JsonArray value = limitEntities(page, counts[1]);
+            for (JsonElement element : value)
+            {
+              GSON.toJson(element, writer);
+            }
+            counts[0]++;
+            counts[1] += value.size();
+            nextLink[0] = getNextLink(page);
+
+            if (maxEntities > 0 && counts[1] >= maxEntities)
+            {
+              break;
+            }
+          }
+        }
+        catch (IOException ex)
+        {
+          throw ex;
+        }
+        catch (Exception ex)
+        {
+          throw new IOException(ex);
+        }
+        writer.endArray().endObject();
+        writer.flush();
+      });
+    }
+
+    flowFile = session.putAttribute(flowFile, OFFICE365_PAGE_COUNT, Long.toString(counts[0]));
+    flowFile = session.putAttribute(flowFile, OFFICE365_ENTITY_COUNT, Long.toString(counts[1]));
+    if (nextLink[0] != null)
+    {
+      flowFile = session.putAttribute(flowFile, OFFICE365_NEXT_LINK, nextLink[0]);
+    }
+    flowFile = session.putAttribute(flowFile, CoreAttributes.MIME_TYPE.key(), DEFAULT_CONTENT_TYPE);
+    session.transfer(flowFile, SUCCESS);
+  }
+
+  /*
+   * Sends the DATA property, or (if it is blank) the flow file content, as the request body without reading it into
+   * memory, and writes the response body (JSON or binary) to the flow file the same way.  Once the request body has
+   * been sent, failures are routed to failure here rather than thrown, so onTrigger does not send it again (Graph may
+   * already have acted on it); only failures before that, or a 401, are thrown to be retried with a fresh token.
+   */
+  private void streamData(final FlowFile flowFile, final ProcessSession session, IGraphServiceClient graphClient,
+                          CustomRequest<JsonObject> req, String methodType, String data) throws Exception
+  {
+    PontusMicrosoftGraphRawRequest.BodyWriter body          = null;
+    long                                      contentLength = -1;
+    final boolean[]                           sent          = new boolean[1];
+
+    String contentType = flowFile.getAttribute(CoreAttributes.MIME_TYPE.key());
+    if (StringUtils.isBlank(contentType))
+    {
+      contentType = DEFAULT_CONTENT_TYPE;
+    }
+
+    if ("POST".equalsIgnoreCase(methodType) || "PUT".equalsIgnoreCase(methodType) ||
+        "PATCH".equalsIgnoreCase(methodType))
+    {
+      if (StringUtils.isNotBlank(data))
+      {
+        final byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        contentLength = bytes.length;
+        body = out -> {
+          sent[0] = true;
+          out.write(bytes);
+        };
+      }
+      else
+      {
+        contentLength = flowFile.getSize();
+        body = out -> {
+          sent[0] = true;
+          session.exportTo(flowFile, out);
+        };
+      }
+    }
+
+    PontusMicrosoftGraphRawRequest.Response response;
+    try
+    {
+      response = PontusMicrosoftGraphRawRequest.execute(graphClient, req, methodType, contentType, contentLength,
+        body);
+    }
+    catch (Exception ex)
+    {
+      if (!sent[0] || (ex instanceof PontusMicrosoftGraphRawRequest.HttpStatusException &&
+        ((PontusMicrosoftGraphRawRequest.HttpStatusException) ex).getResponseCode() == 401))
+      {
+        throw ex;
+      }
+      PontusMicrosoftGraphBaseProcessor.handleError(getLogger(), ex, session, flowFile);
+      return;
+    }
+
+    FlowFile ff = flowFile;
+    try
+    {
+      ff = session.putAttribute(ff, OFFICE365_STATUS_CODE, Integer.toString(response.getStatus()));
+      ff = session.putAllAttributes(ff, getHeaderAttributes(response));
+
+      if (response.hasBody() && !SPLIT_NONE.equals(splitMode) &&
+          PontusMicrosoftGraphRawRequest.isJson(response.getContentType()))
+      {
+        emitSplit(ff, session, sink -> {
+          try (JsonReader reader = new JsonReader(new InputStreamReader(response.getBody(), StandardCharsets.UTF_8)))
+          {
+            return forEachValue(reader, sink);
+          }
+        });
+        return;
+      }
+
+      if (response.hasBody())
+      {
+        ff = session.write(ff, out -> {
+          try (InputStream in = response.getBody())
+          {
+            PontusMicrosoftGraphRawRequest.copy(in, out);
+          }
+        });
+        if (StringUtils.isNotBlank(response.getContentType()))
+        {
+          ff = session.putAttribute(ff, CoreAttributes.MIME_TYPE.key(), response.getContentType());
+        }
+        ff = session.putAttribute(ff, OFFICE365_BINARY,
+          Boolean.toString(!PontusMicrosoftGraphRawRequest.isJson(response.getContentType())));
+      }
+      session.transfer(ff, SUCCESS);
+    }
+    catch (Exception ex)
+    {
+      // ff is the latest version of the flow file; emitSplit leaves it untransferred when it fails
+      PontusMicrosoftGraphBaseProcessor.handleError(getLogger(), ex, session, ff);
+    }
+    finally
+    {
+      response.close();
+    }
+  }
+
+  /*
+   * Batch mode: packs up to Batch Size flow files into $batch requests, and routes each response to its flow file.
+   */
+  private void processBatch(final ProcessContext context, final ProcessSession session)
+  {
+    List<FlowFile> flowFiles = session.get(batchSize);
+    if (flowFiles.isEmpty())
+    {
+      return;
+    }
+
+    final IGraphServiceClient graphClient = authProviderService.getService();
+    final JsonParser          parser      = new JsonParser();
+
+    for (List<FlowFile> chunk : PontusMicrosoftGraphBatch.partition(flowFiles))
+    {
+      List<PontusMicrosoftGraphBatch.Request> requests      = new ArrayList<>(chunk.size());
+      Map<String, FlowFile>                   pending       = new HashMap<>();
+      Map<String, String>                     lastIdByGroup = new HashMap<>();
+
+      for (FlowFile flowFile : chunk)
+      {
+        try
+        {
+          String id         = Integer.toString(requests.size());
+          String methodType = context.getProperty(METHOD_TYPE).evaluateAttributeExpressions(flowFile).getValue();
+          String group      = dependencyAttribute == null ? null : flowFile.getAttribute(dependencyAttribute);
+
+          JsonElement body = null;
+          if (!"GET".equalsIgnoreCase(methodType) && !"DELETE".equalsIgnoreCase(methodType))
+          {
+            String data = context.getProperty(DATA).evaluateAttributeExpressions(flowFile).getValue();
+            if (StringUtils.isBlank(data))
+            {
+              data = readFromFlowFile(session, flowFile);
+            }
+            body = StringUtils.isBlank(data) ? null : parser.parse(data);
+          }
+
+          requests.add(PontusMicrosoftGraphBatch.Request.of(graphClient, id, methodType,
+            buildRequest(flowFile, context, graphClient), body, group == null ? null : lastIdByGroup.get(group)));
+          pending.put(id, flowFile);
+          if (group != null)
+          {
+            lastIdByGroup.put(group, id);
+          }
+        }
+        catch (Exception ex)
+        {
+          PontusMicrosoftGraphBaseProcessor.handleError(getLogger(), ex, session, flowFile);
+        }
+      }
+
+      if (requests.isEmpty())
+      {
+        continue;
+      }
+
+      Map<String, PontusMicrosoftGraphBatch.Response> responses;
+      try
+      {
+        responses = PontusMicrosoftGraphBatch.execute(graphClient, requests);
+      }
+      catch (Exception e)
+      {
+        try
+        {
+          authProviderService.refreshToken();
+          responses = PontusMicrosoftGraphBatch.execute(graphClient, requests);
+        }
+        catch (Exception ex2)
+        {
+          pending.values().forEach(flowFile -> PontusMicrosoftGraphBaseProcessor
+            .handleError(getLogger(), ex2, session, flowFile));
+          continue;
+        }
+      }
+
+      for (Map.Entry<String, FlowFile> entry : pending.entrySet())
+      {
+        PontusMicrosoftGraphBatch.Response response = responses.get(entry.getKey());
+        FlowFile                           flowFile = entry.getValue();
+
+        if (response == null)
+        {
+          flowFile = session.putAttribute(flowFile, "Office365.Error", "No response for this request in the $batch result");
+          session.transfer(flowFile, FAILURE);
+          continue;
+        }
+
+        flowFile = session.putAttribute(flowFile, OFFICE365_BATCH_STATUS, Integer.toString(response.getStatus()));
+        String body = response.getBodyAsString();
+
+        if (response.isSuccess())
+        {
+          if (body != null)
+          {
+            writeFlowFile(flowFile, session, body, SUCCESS);
+          }
+          else
+          {
+            session.transfer(flowFile, SUCCESS);
+          }
+        }
+        else
+        {
+          flowFile = session.putAttribute(flowFile, "Office365.Error",
+            body != null ? body : "HTTP " + response.getStatus());
+          if (response.isThrottled())
+          {
+            flowFile = session.penalize(flowFile);
+          }
+          session.transfer(flowFile, FAILURE);
+        }
+      }
+    }
+  }
+
+  private Map<String, String> getHeaderAttributes(PontusMicrosoftGraphRawRequest.Response response)
+  {
+    final Pattern pattern = responseHeaderPattern;
+    if (pattern == null)
+    {
+      return Collections.emptyMap();
+    }
+
+    Map<String, String> attributes = new HashMap<>();
+    for (Map.Entry<String, List<String>> header : response.getHeaders().entrySet())
+    {
+      // the status line is returned with a null name
+      if (header.getKey() != null && pattern.matcher(header.getKey()).matches())
+      {
+        attributes.put(header.getKey(), String.join(", ", header.getValue()));
+      }
+    }
+    return attributes;
+  }
+
   @Override public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException
   {
+    if (batchSize > 1)
+    {
+      processBatch(context, session);
+      return;
+    }
+
     FlowFile flowFile = session.get();
 
     if (flowFile == null)
@@ -264,7 +1246,7 @@ public class PontusMicrosoftGraphGenericProcessor extends AbstractProcessor
     {
       data = context.getProperty(DATA).evaluateAttributeExpressions(flowFile).getValue();
 
-      if (StringUtils.isBlank(data))
+      if (StringUtils.isBlank(data) && !streamBody)
       {
         data = readFromFlowFile(session,flowFile);
   //      if (StringUtils.isBlank(data)) {
@@ -274,14 +1256,6 @@ public class PontusMicrosoftGraphGenericProcessor extends AbstractProcessor
   //      }
       }
 
-      if (authProviderService == null)
-      {
-        authProviderService = context
-          .getProperty(SERVICE)
-          .asControllerService(PontusMicrosoftGraphAuthControllerServiceInterface.class);
-      }
-
-
       processData(flowFile,context,session,data);
     }
     catch (Exception e)
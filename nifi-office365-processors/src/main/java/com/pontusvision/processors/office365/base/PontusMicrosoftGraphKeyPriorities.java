@@ -0,0 +1,115 @@
+package com.pontusvision.processors.office365.base;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/*
+ * Priority rules for cache keys, in the format <regex>=<priority>, one rule per line (the last '=' separates the
+ * regex from the priority).  The first rule whose regex matches a key gives its priority; keys with no matching
+ * rule have priority 0.  Higher priorities are processed first.
+ */
+public final class PontusMicrosoftGraphKeyPriorities
+{
+  public static final PontusMicrosoftGraphKeyPriorities NONE = new PontusMicrosoftGraphKeyPriorities("",
+      Collections.emptyList(), Collections.emptyList());
+
+  private final String        rules;
+  private final List<Pattern> patterns;
+  private final List<Integer> priorities;
+
+  private PontusMicrosoftGraphKeyPriorities(String rules, List<Pattern> patterns, List<Integer> priorities)
+  {
+    this.rules = rules;
+    this.patterns = patterns;
+    this.priorities = priorities;
+  }
+
+  /*
+   * Throws IllegalArgumentException if a rule is not in the <regex>=<priority> format.
+   */
+  public static PontusMicrosoftGraphKeyPriorities compile(String rules)
+  {
+    if (rules == null || rules.trim().isEmpty())
+    {
+      return NONE;
+    }
+
+    List<Pattern> patterns   = new ArrayList<>();
+    List<Integer> priorities = new ArrayList<>();
+
+    for (String line : rules.split("\\r?\\n"))
+    {
+      String rule = line.trim();
+      if (rule.isEmpty())
+      {
+        continue;
+      }
+      int idx = rule.lastIndexOf('=');
+      if (idx <= 0)
+      {
+        throw new IllegalArgumentException("Invalid priority rule '" + rule + "'; expected <regex>=<priority>");
+      }
+      try
+      {
+        patterns.add(Pattern.compile(rule.substring(0, idx).trim()));
+        priorities.add(Integer.parseInt(rule.substring(idx + 1).trim()));
+      }
+      catch (RuntimeException ex)
+      {
+        throw new IllegalArgumentException("Invalid priority rule '" + rule + "': " + ex.getMessage(), ex);
+      }
+    }
+    return new PontusMicrosoftGraphKeyPriorities(rules, Collections.unmodifiableList(patterns),
+        Collections.unmodifiableList(priorities));
+  }
+
+  public String getRules()
+  {
+    return rules;
+  }
+
+  public int priorityOf(String key)
+  {
+    for (int i = 0, ilen = patterns.size(); i < ilen; i++)
+    {
+      if (patterns.get(i).matcher(key).matches())
+      {
+        return priorities.get(i);
+      }
+    }
+    return 0;
+  }
+
+  /*
+   * Orders the keys by priority (highest first); keys with the same priority are sorted by name, starting after the
+   * cursor (the last key processed by a run that ran out of time), so keys left over by that run go first.
+   */
+  public List<String> order(Collection<String> keys, String cursor)
+  {
+    final Map<String, Integer> keyPriorities = new HashMap<>(keys.size() * 2);
+    for (String key : keys)
+    {
+      keyPriorities.put(key, priorityOf(key));
+    }
+
+    List<String> ordered = new ArrayList<>(keys);
+    ordered.sort((a, b) -> {
+      int cmp = Integer.compare(keyPriorities.get(b), keyPriorities.get(a));
+      if (cmp != 0)
+      {
+        return cmp;
+      }
+      if (cursor != null)
+      {
+        boolean aAfter = a.compareTo(cursor) > 0;
+        boolean bAfter = b.compareTo(cursor) > 0;
+        if (aAfter != bAfter)
+        {
+          return aAfter ? -1 : 1;
+        }
+      }
+      return a.compareTo(b);
+    });
+    return ordered;
+  }
+}
@@ -0,0 +1,161 @@
+package com.pontusvision.processors.office365.base;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.util.StringUtils;
+
+import java.util.*;
+
+/*
+ * A JSON object property (e.g. the Function Options, Query Options and Headers of the generic processor) compiled
+ * once in @OnScheduled into a list of name/value pairs.  Static properties are parsed once; when Expression Language
+ * is only used inside the names or values, the JSON is still parsed once, and only those names or values are
+ * evaluated per flow file; when Expression Language builds the JSON itself, the evaluated string is parsed per flow
+ * file, with the parsed results of recently seen strings reused.
+ */
+public final class PontusMicrosoftGraphOptionsTemplate
+{
+  public static final PontusMicrosoftGraphOptionsTemplate EMPTY = new PontusMicrosoftGraphOptionsTemplate(
+      Collections.emptyList(), null, null);
+
+  private static final int MAX_PARSED_CACHE_SIZE = 256;
+
+  private final List<TemplateEntry>                          entries;
+  private final List<Map.Entry<String, String>>              staticOptions;
+  private final PropertyValue                                dynamicJson;
+  private final Map<String, List<Map.Entry<String, String>>> parsedCache;
+
+  private PontusMicrosoftGraphOptionsTemplate(List<TemplateEntry> entries,
+                                              List<Map.Entry<String, String>> staticOptions,
+                                              PropertyValue dynamicJson)
+  {
+    this.entries = entries;
+    this.staticOptions = staticOptions;
+    this.dynamicJson = dynamicJson;
+    this.parsedCache = dynamicJson == null ? null :
+        Collections.synchronizedMap(new LinkedHashMap<String, List<Map.Entry<String, String>>>(16, 0.75f, true)
+        {
+          @Override protected boolean removeEldestEntry(Map.Entry<String, List<Map.Entry<String, String>>> eldest)
+          {
+            return size() > MAX_PARSED_CACHE_SIZE;
+          }
+        });
+  }
+
+  private static final class TemplateEntry
+  {
+    final String        name;
+    final PropertyValue nameExpression;
+    final String        value;
+    final PropertyValue valueExpression;
+
+    TemplateEntry(String name, PropertyValue nameExpression, String value, PropertyValue valueExpression)
+    {
+      this.name = name;
+      this.nameExpression = nameExpression;
+      this.value = value;
+      this.valueExpression = valueExpression;
+    }
+  }
+
+  public static PontusMicrosoftGraphOptionsTemplate compile(ProcessContext context, PropertyDescriptor descriptor)
+  {
+    PropertyValue property = context.getProperty(descriptor);
+    String        raw      = property.getValue();
+
+    if (StringUtils.isBlank(raw))
+    {
+      return EMPTY;
+    }
+
+    if (!property.isExpressionLanguagePresent())
+    {
+      return new PontusMicrosoftGraphOptionsTemplate(Collections.emptyList(), parse(raw), null);
+    }
+
+    JsonObject json;
+    try
+    {
+      json = new JsonParser().parse(raw).getAsJsonObject();
+    }
+    catch (RuntimeException ex)
+    {
+      // the Expression Language builds the JSON document itself
+      return new PontusMicrosoftGraphOptionsTemplate(Collections.emptyList(), null, property);
+    }
+
+    List<TemplateEntry> entries = new ArrayList<>(json.size());
+    for (Map.Entry<String, JsonElement> entry : json.entrySet())
+    {
+      String        name            = entry.getKey();
+      String        value           = entry.getValue().getAsString();
+      PropertyValue nameExpression  = context.newPropertyValue(name);
+      PropertyValue valueExpression = context.newPropertyValue(value);
+
+      entries.add(new TemplateEntry(name, nameExpression.isExpressionLanguagePresent() ? nameExpression : null,
+          value, valueExpression.isExpressionLanguagePresent() ? valueExpression : null));
+    }
+    return new PontusMicrosoftGraphOptionsTemplate(Collections.unmodifiableList(entries), null, null);
+  }
+
+  private static List<Map.Entry<String, String>> parse(String json)
+  {
+    JsonObject                      obj     = new JsonParser().parse(json).getAsJsonObject();
+    List<Map.Entry<String, String>> options = new ArrayList<>(obj.size());
+    for (Map.Entry<String, JsonElement> entry : obj.entrySet())
+    {
+      options.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue().getAsString()));
+    }
+    return Collections.unmodifiableList(options);
+  }
+
+  public boolean isEmpty()
+  {
+    return this == EMPTY;
+  }
+
+  /*
+   * Returns the name/value pairs for the given flow file.
+   */
+  public List<Map.Entry<String, String>> evaluate(FlowFile flowFile)
+  {
+    if (staticOptions != null)
+    {
+      return staticOptions;
+    }
+
+    if (dynamicJson != null)
+    {
+      String json = dynamicJson.evaluateAttributeExpressions(flowFile).getValue();
+      if (StringUtils.isEmpty(json))
+      {
+        return Collections.emptyList();
+      }
+      List<Map.Entry<String, String>> options = parsedCache.get(json);
+      if (options == null)
+      {
+        options = parse(json);
+        parsedCache.put(json, options);
+      }
+      return options;
+    }
+
+    List<Map.Entry<String, String>> options = new ArrayList<>(entries.size());
+    for (TemplateEntry entry : entries)
+    {
+      options.add(new AbstractMap.SimpleImmutableEntry<>(
+          entry.nameExpression == null ?
+              entry.name :
+              entry.nameExpression.evaluateAttributeExpressions(flowFile).getValue(),
+          entry.valueExpression == null ?
+              entry.value :
+              entry.valueExpression.evaluateAttributeExpressions(flowFile).getValue()));
+    }
+    return options;
+  }
+}
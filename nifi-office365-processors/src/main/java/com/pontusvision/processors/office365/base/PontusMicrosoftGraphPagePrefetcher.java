@@ -0,0 +1,137 @@
+package com.pontusvision.processors.office365.base;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.apache.nifi.processor.exception.ProcessException;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/*
+ * Walks the @odata.nextLink chain of a Graph collection on a background thread, keeping at most lookAhead pages
+ * fetched ahead of the consumer, so the next page is already in flight while the current one is written out.
+ */
+public final class PontusMicrosoftGraphPagePrefetcher implements Closeable
+{
+  public static final String NEXT_LINK = "@odata.nextLink";
+
+  public interface PageFetcher
+  {
+    /*
+     * Fetches the first page if nextLink is null, otherwise the page at nextLink.
+     */
+    JsonObject fetch(String nextLink) throws Exception;
+  }
+
+  private static final class Item
+  {
+    final JsonObject page;
+    final Exception  error;
+
+    Item(JsonObject page, Exception error)
+    {
+      this.page = page;
+      this.error = error;
+    }
+  }
+
+  private static final Item END = new Item(null, null);
+
+  private static final long POLL_INTERVAL_MS = 500;
+
+  private final BlockingQueue<Item> queue;
+  private final Future<?>           producer;
+  private       boolean             done = false;
+
+  /*
+   * Starts fetching straight away; maxPages <= 0 means no page limit.
+   */
+  public PontusMicrosoftGraphPagePrefetcher(ExecutorService executor, int lookAhead, long maxPages,
+                                            PageFetcher fetcher)
+  {
+    this.queue = new ArrayBlockingQueue<>(Math.max(1, lookAhead));
+    this.producer = executor.submit(() -> {
+      try
+      {
+        String nextLink = null;
+        long   pages    = 0;
+        do
+        {
+          JsonObject page = fetcher.fetch(nextLink);
+          pages++;
+          queue.put(new Item(page, null));
+
+          JsonElement next = page.get(NEXT_LINK);
+          nextLink = next == null || next.isJsonNull() ? null : next.getAsString();
+        }
+        while (nextLink != null && (maxPages <= 0 || pages < maxPages) && !Thread.currentThread().isInterrupted());
+
+        queue.put(END);
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+      }
+      catch (Throwable ex)
+      {
+        try
+        {
+          queue.put(new Item(null, ex instanceof Exception ? (Exception) ex : new ExecutionException(ex)));
+        }
+        catch (InterruptedException ie)
+        {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+  }
+
+  /*
+   * Returns the next page, or null once the last page (or the page limit) has been reached; throws if stopped
+   * returns true, or the background fetch ends without the last page, while waiting for a page.
+   */
+  public JsonObject next(BooleanSupplier stopped) throws Exception
+  {
+    if (done)
+    {
+      return null;
+    }
+    Item item = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    while (item == null)
+    {
+      // the producer exits without a word when interrupted (e.g. its executor is shut down on stop)
+      if (stopped.getAsBoolean() || (producer.isDone() && queue.isEmpty()))
+      {
+        close();
+        throw new ProcessException("Stopped before the last page was fetched");
+      }
+      item = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+    if (item.error != null)
+    {
+      done = true;
+      throw item.error;
+    }
+    if (item == END)
+    {
+      done = true;
+      return null;
+    }
+    return item.page;
+  }
+
+  /*
+   * Stops the background fetch, e.g. once the consumer has reached its entity limit.
+   */
+  @Override public void close()
+  {
+    done = true;
+    producer.cancel(true);
+  }
+}
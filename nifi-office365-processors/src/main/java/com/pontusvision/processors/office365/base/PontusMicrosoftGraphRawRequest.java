@@ -0,0 +1,266 @@
+package com.pontusvision.processors.office365.base;
+
+import com.microsoft.graph.http.IHttpRequest;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+import com.microsoft.graph.options.HeaderOption;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Sends a Graph request built by the SDK (URL, function/query options, headers and authentication) without going
+ * through the SDK serializer: the request body is streamed from the caller, and the response body is handed back as
+ * a stream, so neither is ever held as a String or a Gson tree.
+ */
+public final class PontusMicrosoftGraphRawRequest
+{
+  private static final int MAX_ERROR_BODY_SIZE = 64 * 1024;
+  private static final int BUFFER_SIZE         = 64 * 1024;
+
+  public interface BodyWriter
+  {
+    void write(OutputStream out) throws IOException;
+  }
+
+  /*
+   * Thrown when Graph answers with an HTTP error status; the message holds the (truncated) error body.
+   */
+  public static class HttpStatusException extends IOException
+  {
+    private final int responseCode;
+
+    public HttpStatusException(int responseCode, String message)
+    {
+      super(message);
+      this.responseCode = responseCode;
+    }
+
+    public int getResponseCode()
+    {
+      return responseCode;
+    }
+  }
+
+  public static final class Response implements Closeable
+  {
+    private final HttpURLConnection connection;
+    private final int               status;
+
+    private Response(HttpURLConnection connection, int status)
+    {
+      this.connection = connection;
+      this.status = status;
+    }
+
+    public int getStatus()
+    {
+      return status;
+    }
+
+    public String getHeader(String name)
+    {
+      return connection.getHeaderField(name);
+    }
+
+    public Map<String, List<String>> getHeaders()
+    {
+      return connection.getHeaderFields();
+    }
+
+    public String getContentType()
+    {
+      return connection.getContentType();
+    }
+
+    public boolean hasBody()
+    {
+      return status != HttpURLConnection.HTTP_NO_CONTENT && status != HttpURLConnection.HTTP_NOT_MODIFIED
+          && connection.getContentLengthLong() != 0;
+    }
+
+    public InputStream getBody() throws IOException
+    {
+      return connection.getInputStream();
+    }
+
+    /*
+     * Closes the response stream (rather than disconnecting), so the connection can be kept alive and reused.
+     */
+    @Override public void close()
+    {
+      try
+      {
+        InputStream in = connection.getInputStream();
+        if (in != null)
+        {
+          in.close();
+        }
+      }
+      catch (IOException ex)
+      {
+        connection.disconnect();
+      }
+    }
+  }
+
+  private PontusMicrosoftGraphRawRequest()
+  {
+  }
+
+  /*
+   * Copies a (possibly very large) body through a single fixed size buffer; returns the number of bytes copied.
+   */
+  public static long copy(InputStream in, OutputStream out) throws IOException
+  {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long   total  = 0;
+    int    len;
+    while ((len = in.read(buffer)) != -1)
+    {
+      out.write(buffer, 0, len);
+      total += len;
+    }
+    return total;
+  }
+
+  /*
+   * True for JSON content types (application/json, and vendor types such as application/problem+json).
+   */
+  public static boolean isJson(String contentType)
+  {
+    if (contentType == null)
+    {
+      return false;
+    }
+    String mimeType = contentType.toLowerCase();
+    int    idx      = mimeType.indexOf(';');
+    if (idx >= 0)
+    {
+      mimeType = mimeType.substring(0, idx);
+    }
+    mimeType = mimeType.trim();
+    return mimeType.equals("application/json") || mimeType.endsWith("+json");
+  }
+
+  /*
+   * Sends the request; body may be null for requests without content, otherwise contentLength is the exact number
+   * of bytes the body writer will write, or -1 if unknown (the body is then sent chunked).
+   */
+  public static Response execute(IGraphServiceClient graphClient, IHttpRequest request, String method,
+                                 String contentType, long contentLength, BodyWriter body) throws IOException
+  {
+    graphClient.getAuthenticationProvider().authenticateRequest(request);
+
+    HttpURLConnection connection = (HttpURLConnection) request.getRequestUrl().openConnection();
+
+    // HttpURLConnection does not support PATCH; Graph accepts it as a POST override (as the SDK itself does)
+    if ("PATCH".equalsIgnoreCase(method))
+    {
+      connection.setRequestMethod("POST");
+      connection.setRequestProperty("X-HTTP-Method-Override", "PATCH");
+    }
+    else
+    {
+      connection.setRequestMethod(method.toUpperCase());
+    }
+
+    for (HeaderOption header : request.getHeaders())
+    {
+      connection.setRequestProperty(header.getName(), String.valueOf(header.getValue()));
+    }
+
+    if (body != null)
+    {
+      connection.setDoOutput(true);
+      connection.setRequestProperty("Content-Type", contentType);
+      if (contentLength >= 0)
+      {
+        connection.setFixedLengthStreamingMode(contentLength);
+      }
+      else
+      {
+        connection.setChunkedStreamingMode(BUFFER_SIZE);
+      }
+      try (OutputStream out = connection.getOutputStream())
+      {
+        body.write(out);
+      }
+    }
+
+    int status = connection.getResponseCode();
+    if (status >= 400)
+    {
+      String error = readErrorBody(connection);
+      connection.disconnect();
+      throw new HttpStatusException(status,
+          String.format("Graph request %s %s failed with HTTP %d: %s", method, request.getRequestUrl(), status,
+              error));
+    }
+    return new Response(connection, status);
+  }
+
+  /*
+   * PUTs one byte range of a file to an upload session URL (e.g. from createUploadSession); the URL is
+   * pre-authenticated, so no Authorization header is sent.  Returns the HTTP status: 200 while more ranges are
+   * expected, and 201 once the upload is complete.
+   */
+  public static int uploadRange(String uploadUrl, byte[] buffer, int length, long offset, long totalSize)
+    throws IOException
+  {
+    HttpURLConnection connection = (HttpURLConnection) new URL(uploadUrl).openConnection();
+    connection.setRequestMethod("PUT");
+    connection.setDoOutput(true);
+    connection.setFixedLengthStreamingMode(length);
+    connection.setRequestProperty("Content-Type", "application/octet-stream");
+    connection.setRequestProperty("Content-Range",
+        String.format("bytes %d-%d/%d", offset, offset + length - 1, totalSize));
+
+    try (OutputStream out = connection.getOutputStream())
+    {
+      out.write(buffer, 0, length);
+    }
+
+    int status = connection.getResponseCode();
+    if (status >= 400)
+    {
+      String error = readErrorBody(connection);
+      connection.disconnect();
+      throw new HttpStatusException(status,
+          String.format("Upload of bytes %d-%d/%d failed with HTTP %d: %s", offset, offset + length - 1, totalSize,
+              status, error));
+    }
+    new Response(connection, status).close();
+    return status;
+  }
+
+  private static String readErrorBody(HttpURLConnection connection)
+  {
+    try (InputStream in = connection.getErrorStream())
+    {
+      if (in == null)
+      {
+        return "";
+      }
+      ByteArrayOutputStream out    = new ByteArrayOutputStream();
+      byte[]                buffer = new byte[4096];
+      int                   len;
+      while (out.size() < MAX_ERROR_BODY_SIZE && (len = in.read(buffer)) != -1)
+      {
+        out.write(buffer, 0, len);
+      }
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+    catch (IOException ex)
+    {
+      return "";
+    }
+  }
+}
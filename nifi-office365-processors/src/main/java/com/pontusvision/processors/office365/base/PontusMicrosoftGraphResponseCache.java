@@ -0,0 +1,102 @@
+package com.pontusvision.processors.office365.base;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * In-memory cache of GET responses, keyed by the full request (URL with its select list, function and query
+ * options, plus the request headers).  Entries are evicted least recently used first once there are more than
+ * maxEntries, and are dropped once older than the TTL.  Entries with an ETag are revalidated with If-None-Match.
+ */
+public final class PontusMicrosoftGraphResponseCache
+{
+  public static final class Entry
+  {
+    private final String etag;
+    private final String body;
+    private final String contentType;
+    private final long   storedAt;
+
+    Entry(String etag, String body, String contentType, long storedAt)
+    {
+      this.etag = etag;
+      this.body = body;
+      this.contentType = contentType;
+      this.storedAt = storedAt;
+    }
+
+    public String getEtag()
+    {
+      return etag;
+    }
+
+    public String getBody()
+    {
+      return body;
+    }
+
+    public String getContentType()
+    {
+      return contentType;
+    }
+
+    public long getStoredAt()
+    {
+      return storedAt;
+    }
+  }
+
+  private final long               ttl;
+  private final Map<String, Entry> entries;
+
+  public PontusMicrosoftGraphResponseCache(final int maxEntries, long ttl)
+  {
+    this.ttl = ttl;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+    {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+      {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /*
+   * Returns the entry for the key, or null if there is none or it has expired.
+   */
+  public synchronized Entry get(String key, long now)
+  {
+    Entry entry = entries.get(key);
+    if (entry != null && ttl > 0 && now - entry.storedAt >= ttl)
+    {
+      entries.remove(key);
+      return null;
+    }
+    return entry;
+  }
+
+  public synchronized void put(String key, String etag, String body, String contentType, long now)
+  {
+    entries.put(key, new Entry(etag, body, contentType, now));
+  }
+
+  /*
+   * Restarts the TTL of an entry that Graph has just confirmed (HTTP 304) is still current.
+   */
+  public synchronized Entry touch(String key, Entry entry, long now)
+  {
+    Entry touched = new Entry(entry.etag, entry.body, entry.contentType, now);
+    entries.put(key, touched);
+    return touched;
+  }
+
+  public synchronized void remove(String key)
+  {
+    entries.remove(key);
+  }
+
+  public synchronized int size()
+  {
+    return entries.size();
+  }
+}
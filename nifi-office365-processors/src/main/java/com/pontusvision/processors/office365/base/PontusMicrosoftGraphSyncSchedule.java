@@ -0,0 +1,106 @@
+package com.pontusvision.processors.office365.base;
+
+import java.util.regex.Pattern;
+
+/*
+ * Polling schedule of a single cache key (e.g. O365_messages|<user id>|<folder id>).  The schedule is kept in the
+ * distributed map cache next to the delta token, under the key O365_schedule|<cache key>, and records when the
+ * last delta run happened and the interval it set; quiet keys back off exponentially, and busy keys are polled more
+ * often.
+ */
+public final class PontusMicrosoftGraphSyncSchedule
+{
+  public static final String OFFICE365_SCHEDULE_KEY_PREFIX = "O365_schedule|";
+
+  private static final Pattern SEPARATOR = Pattern.compile(Pattern.quote("|"));
+
+  private final long lastRun;
+  private final long nextDue;
+  private final long interval;
+
+  public PontusMicrosoftGraphSyncSchedule(long lastRun, long nextDue, long interval)
+  {
+    this.lastRun = lastRun;
+    this.nextDue = nextDue;
+    this.interval = interval;
+  }
+
+  public static String getScheduleKey(String cacheKey)
+  {
+    return OFFICE365_SCHEDULE_KEY_PREFIX + cacheKey;
+  }
+
+  /*
+   * Returns null if the value is missing or cannot be parsed, so the key is treated as due.  Any fields after the
+   * interval (e.g. the change rate stored by earlier versions) are ignored.
+   */
+  public static PontusMicrosoftGraphSyncSchedule parse(String value)
+  {
+    if (value == null)
+    {
+      return null;
+    }
+    try
+    {
+      String[] fields = SEPARATOR.split(value);
+      return new PontusMicrosoftGraphSyncSchedule(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+          Long.parseLong(fields[2]));
+    }
+    catch (RuntimeException ex)
+    {
+      return null;
+    }
+  }
+
+  public String serialize()
+  {
+    return lastRun + "|" + nextDue + "|" + interval;
+  }
+
+  public boolean isDue(long now)
+  {
+    return now >= nextDue;
+  }
+
+  /*
+   * Computes the schedule after a delta run that returned the given number of entities: an empty run multiplies the
+   * interval by the backoff multiplier, and a run with changes divides it, within the min/max interval bounds.
+   */
+  public static PontusMicrosoftGraphSyncSchedule next(PontusMicrosoftGraphSyncSchedule previous, long now,
+                                                      long changes, long minInterval, long maxInterval,
+                                                      double multiplier)
+  {
+    long interval;
+
+    if (previous == null)
+    {
+      interval = minInterval;
+    }
+    else
+    {
+      // with a multiplier above 1, an empty run grows the interval by at least 1 ms, so rounding cannot stall it
+      interval = changes == 0 ?
+          Math.max(multiplier > 1 ? previous.interval + 1 : 0, (long) (previous.interval * multiplier)) :
+          (long) (previous.interval / multiplier);
+    }
+
+    interval = Math.max(minInterval, Math.min(maxInterval, interval));
+
+    return new PontusMicrosoftGraphSyncSchedule(now, now + interval, interval);
+  }
+
+  public long getLastRun()
+  {
+    return lastRun;
+  }
+
+  public long getNextDue()
+  {
+    return nextDue;
+  }
+
+  public long getInterval()
+  {
+    return interval;
+  }
+}
@@ -0,0 +1,236 @@
+package com.pontusvision.processors.office365.base;
+
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+import com.microsoft.graph.models.extensions.User;
+import com.microsoft.graph.options.QueryOption;
+import com.microsoft.graph.requests.extensions.IUserCollectionPage;
+import com.microsoft.graph.requests.extensions.IUserCollectionRequest;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/*
+ * Enumerates every user of the directory for an initial sync.  The directory is split into userPrincipalName ranges
+ * (between consecutive boundaries), the ranges are fetched by up to concurrency background threads with the largest
+ * page size Graph allows, and the pages are handed to the consumer, on its own thread, as they arrive.
+ */
+public final class PontusMicrosoftGraphUserScan implements Closeable
+{
+  public static final int MAX_PAGE_SIZE = 999;
+
+  public static final String DEFAULT_BOUNDARIES = "b,c,d,e,f,g,h,i,j,k,l,m,n,o,p,q,r,s,t,u,v,w,x,y,z";
+
+  private static final class Item
+  {
+    final List<User> users;
+    final Exception  error;
+
+    Item(List<User> users, Exception error)
+    {
+      this.users = users;
+      this.error = error;
+    }
+  }
+
+  private static final Item END = new Item(null, null);
+
+  private static final long POLL_INTERVAL_MS = 500;
+
+  private final BlockingQueue<Item> queue;
+  private final List<Future<?>>     workers;
+  private       int                 running;
+  private       boolean             complete = false;
+
+  /*
+   * Starts fetching straight away; the ranges are taken in order by whichever worker is free.
+   */
+  public PontusMicrosoftGraphUserScan(ExecutorService executor, int concurrency, IGraphServiceClient graphClient,
+                                      String select, Collection<String> boundaries)
+  {
+    final List<String>  filters = getFilters(boundaries);
+    final AtomicInteger next    = new AtomicInteger();
+
+    this.running = Math.max(1, Math.min(concurrency, filters.size()));
+    this.queue = new ArrayBlockingQueue<>(running * 2);
+    this.workers = new ArrayList<>(running);
+
+    for (int i = 0; i < running; i++)
+    {
+      workers.add(executor.submit(() -> {
+        try
+        {
+          for (int idx = next.getAndIncrement(); idx < filters.size(); idx = next.getAndIncrement())
+          {
+            fetch(graphClient, select, filters.get(idx));
+          }
+          queue.put(END);
+        }
+        catch (InterruptedException ex)
+        {
+          Thread.currentThread().interrupt();
+        }
+        catch (Exception ex)
+        {
+          try
+          {
+            queue.put(new Item(null, ex));
+          }
+          catch (InterruptedException ie)
+          {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }));
+    }
+  }
+
+  private void fetch(IGraphServiceClient graphClient, String select, String filter) throws InterruptedException
+  {
+    IUserCollectionRequest request = graphClient.users().buildRequest().select(select).top(MAX_PAGE_SIZE);
+    if (filter != null)
+    {
+      request = request.filter(filter);
+    }
+
+    while (request != null && !Thread.currentThread().isInterrupted())
+    {
+      IUserCollectionPage page  = request.get();
+      List<User>          users = page.getCurrentPage();
+      if (users != null && !users.isEmpty())
+      {
+        queue.put(new Item(users, null));
+      }
+      request = page.getNextPage() == null ? null : page.getNextPage().buildRequest();
+    }
+  }
+
+  /*
+   * One $filter per range: below the first boundary, between each pair of consecutive boundaries, and from the last
+   * boundary on; a single null filter (the whole directory) if there are no boundaries.  As a userPrincipalName
+   * always holds an '@', it never equals a boundary without one, so the ranges do not overlap.
+   */
+  public static List<String> getFilters(Collection<String> boundaries)
+  {
+    List<String> filters = new ArrayList<>(boundaries.size() + 1);
+    String       lower   = null;
+    for (String upper : new TreeSet<>(boundaries))
+    {
+      filters.add(getFilter(lower, upper));
+      lower = upper;
+    }
+    filters.add(getFilter(lower, null));
+    return filters;
+  }
+
+  private static String getFilter(String lower, String upper)
+  {
+    if (lower == null && upper == null)
+    {
+      return null;
+    }
+    StringBuilder filter = new StringBuilder();
+    if (lower != null)
+    {
+      filter.append("userPrincipalName ge '").append(lower.replace("'", "''")).append("'");
+    }
+    if (upper != null)
+    {
+      filter.append(lower != null ? " and " : "")
+            .append("userPrincipalName le '").append(upper.replace("'", "''")).append("'");
+    }
+    return filter.toString();
+  }
+
+  /*
+   * The delta link of the current state of the directory, without listing it ($deltatoken=latest); taken before a
+   * scan, the delta runs from it pick up the changes made during the scan.
+   */
+  public static String getLatestDeltaLink(IGraphServiceClient graphClient, String select)
+  {
+    return graphClient.users()
+                      .delta()
+                      .buildRequest(Collections.singletonList(new QueryOption("$deltatoken", "latest")))
+                      .select(select)
+                      .get()
+                      .deltaLink();
+  }
+
+  /*
+   * Parses a comma-separated list of boundaries (lower cased, blanks dropped).
+   */
+  public static Collection<String> parseBoundaries(String boundaries)
+  {
+    Set<String> parsed = new TreeSet<>();
+    if (boundaries != null)
+    {
+      for (String boundary : boundaries.split(","))
+      {
+        if (!boundary.trim().isEmpty())
+        {
+          parsed.add(boundary.trim().toLowerCase());
+        }
+      }
+    }
+    return parsed;
+  }
+
+  /*
+   * Returns the next page of users, or null once every range has been fetched (see isComplete), or once stopped
+   * returns true while waiting for a page; the scan is then closed, and is incomplete.
+   */
+  public List<User> next(BooleanSupplier stopped) throws Exception
+  {
+    while (running > 0)
+    {
+      Item item = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+      if (item == null)
+      {
+        // the workers exit without a word when interrupted (e.g. their executor is shut down on stop)
+        if (stopped.getAsBoolean() || (workers.stream().allMatch(Future::isDone) && queue.isEmpty()))
+        {
+          close();
+          return null;
+        }
+        continue;
+      }
+      if (item.error != null)
+      {
+        close();
+        throw item.error;
+      }
+      if (item == END)
+      {
+        complete = --running == 0;
+        continue;
+      }
+      if (stopped.getAsBoolean())
+      {
+        close();
+        return null;
+      }
+      return item.users;
+    }
+    return null;
+  }
+
+  /*
+   * True once every range has been fetched and handed out, so the scan covered the whole directory.
+   */
+  public boolean isComplete()
+  {
+    return complete;
+  }
+
+  @Override public void close()
+  {
+    running = 0;
+    workers.forEach(worker -> worker.cancel(true));
+  }
+}
@@ -0,0 +1,113 @@
+package com.pontusvision.processors.office365;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+ * Posts notifications to the processor's handler, served by a local HTTP server in place of the one the processor
+ * starts when scheduled.
+ */
+public class TestPontusMicrosoftGraphChangeNotificationProcessor {
+
+    private static final String CLIENT_STATE = "secret";
+
+    private PontusMicrosoftGraphChangeNotificationProcessor processor;
+    private HttpServer                                     server;
+    private String                                         url;
+
+    @Before
+    public void init() throws IOException {
+        processor = new PontusMicrosoftGraphChangeNotificationProcessor();
+        TestRunners.newTestRunner(processor);
+        processor.initNotifications(CLIENT_STATE, 2);
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/notifications", processor::handleNotification);
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort() + "/notifications";
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testValidationToken() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url + "?validationToken=a%20token").openConnection();
+        connection.setRequestMethod("POST");
+
+        assertEquals(200, connection.getResponseCode());
+        try (InputStream in = connection.getInputStream()) {
+            assertEquals("a token", IOUtils.toString(in, StandardCharsets.UTF_8));
+        }
+        assertEquals(0, processor.getQueuedNotifications());
+    }
+
+    @Test
+    public void testInvalidClientState() throws IOException {
+        assertEquals(202, post(notifications("wrong", "wrong")));
+        assertEquals(0, processor.getQueuedNotifications());
+
+        assertEquals(202, post(notifications(CLIENT_STATE, "wrong")));
+        assertEquals(1, processor.getQueuedNotifications());
+    }
+
+    @Test
+    public void testFullQueue() throws IOException {
+        // a batch that does not fit is rejected whole, so Graph's redelivery does not duplicate any of it
+        assertEquals(503, post(notifications(CLIENT_STATE, CLIENT_STATE, CLIENT_STATE)));
+        assertEquals(0, processor.getQueuedNotifications());
+
+        assertEquals(202, post(notifications(CLIENT_STATE, CLIENT_STATE)));
+        assertEquals(2, processor.getQueuedNotifications());
+
+        assertEquals(503, post(notifications(CLIENT_STATE)));
+        assertEquals(2, processor.getQueuedNotifications());
+    }
+
+    @Test
+    public void testMethodNotAllowed() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("GET");
+
+        assertEquals(405, connection.getResponseCode());
+    }
+
+    private int post(String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return connection.getResponseCode();
+    }
+
+    private static String notifications(String... clientStates) {
+        StringBuilder body = new StringBuilder("{\"value\":[");
+        for (int i = 0; i < clientStates.length; i++) {
+            if (i > 0) {
+                body.append(',');
+            }
+            body.append("{\"subscriptionId\":\"sub-").append(i).append("\",\"clientState\":\"")
+                .append(clientStates[i]).append("\",\"changeType\":\"created\"}");
+        }
+        return body.append("]}").toString();
+    }
+}
@@ -0,0 +1,177 @@
+package com.pontusvision.processors.office365.base;
+
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.distributed.cache.client.AtomicCacheEntry;
+import org.apache.nifi.distributed.cache.client.AtomicDistributedMapCacheClient;
+import org.apache.nifi.distributed.cache.client.Deserializer;
+import org.apache.nifi.distributed.cache.client.Serializer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestPontusMicrosoftGraphDedupeStore {
+
+    private static final long WINDOW = 60000;
+
+    @Test
+    public void testInMemory() throws IOException {
+        PontusMicrosoftGraphDedupeStore store = new PontusMicrosoftGraphDedupeStore.InMemory(10);
+
+        assertTrue(store.reserve("a", 1000, WINDOW));
+        assertFalse(store.reserve("a", 2000, WINDOW));
+        assertTrue(store.reserve("a", 1000 + WINDOW, WINDOW));
+    }
+
+    @Test
+    public void testDistributed() throws IOException {
+        PontusMicrosoftGraphDedupeStore store = new PontusMicrosoftGraphDedupeStore.Distributed(new Cache());
+
+        assertTrue(store.reserve("a", 1000, WINDOW));
+        assertFalse(store.reserve("a", 2000, WINDOW));
+        assertTrue(store.reserve("a", 1000 + WINDOW, WINDOW));
+
+        store.release("a");
+        assertTrue(store.reserve("a", 3000 + WINDOW, WINDOW));
+    }
+
+    @Test
+    public void testConcurrentNewKey() throws Exception {
+        assertOneReservation(null, 1000);
+    }
+
+    @Test
+    public void testConcurrentExpiredKey() throws Exception {
+        assertOneReservation("0", 1000 + WINDOW);
+    }
+
+    /*
+     * Many nodes (each with its own store over the same cache) reserve the same key at once; only one may send.  The
+     * key is either new (existing is null), or holds an earlier reservation.
+     */
+    private static void assertOneReservation(String existing, long now) throws Exception {
+        int             nodes    = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(nodes);
+        try {
+            for (int run = 0; run < 50; run++) {
+                Cache cache = new Cache();
+                if (existing != null) {
+                    cache.put(PontusMicrosoftGraphDedupeStore.OFFICE365_SENT_KEY_PREFIX + "key", existing, null, null);
+                }
+
+                CyclicBarrier   start    = new CyclicBarrier(nodes);
+                AtomicInteger   reserved = new AtomicInteger();
+                List<Future<?>> results  = new ArrayList<>();
+                for (int i = 0; i < nodes; i++) {
+                    results.add(executor.submit(() -> {
+                        PontusMicrosoftGraphDedupeStore store = new PontusMicrosoftGraphDedupeStore.Distributed(cache);
+                        start.await();
+                        if (store.reserve("key", now, WINDOW)) {
+                            reserved.incrementAndGet();
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> result : results) {
+                    result.get();
+                }
+                assertEquals(1, reserved.get());
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /*
+     * Stands in for DistributedMapCacheClientService: entries hold a revision, and a replace() carrying no revision
+     * is sent as revision 0, which also matches an entry just created at revision 0.
+     */
+    private static final class Cache extends AbstractControllerService
+            implements AtomicDistributedMapCacheClient<Object> {
+
+        private final Map<Object, Object> values    = new HashMap<>();
+        private final Map<Object, Long>   revisions = new HashMap<>();
+
+        @Override
+        public synchronized <K, V> AtomicCacheEntry<K, V, Object> fetch(K key, Serializer<K> keySerializer,
+                                                                      Deserializer<V> valueDeserializer) {
+            if (!values.containsKey(key)) {
+                return null;
+            }
+            @SuppressWarnings("unchecked") V value = (V) values.get(key);
+            return new AtomicCacheEntry<>(key, value, revisions.get(key));
+        }
+
+        @Override
+        public synchronized <K, V> boolean replace(AtomicCacheEntry<K, V, Object> entry, Serializer<K> keySerializer,
+                                                   Serializer<V> valueSerializer) {
+            long revision = entry.getRevision().map(r -> (Long) r).orElse(0L);
+            Long stored   = revisions.get(entry.getKey());
+            if (stored != null && stored != revision) {
+                return false;
+            }
+            values.put(entry.getKey(), entry.getValue());
+            revisions.put(entry.getKey(), stored == null ? 0L : stored + 1);
+            return true;
+        }
+
+        @Override
+        public synchronized <K, V> boolean putIfAbsent(K key, V value, Serializer<K> keySerializer,
+                                                       Serializer<V> valueSerializer) {
+            if (values.containsKey(key)) {
+                return false;
+            }
+            values.put(key, value);
+            revisions.put(key, 0L);
+            return true;
+        }
+
+        @Override
+        public synchronized <K, V> V getAndPutIfAbsent(K key, V value, Serializer<K> keySerializer,
+                                                       Serializer<V> valueSerializer, Deserializer<V> valueDeserializer) {
+            @SuppressWarnings("unchecked") V existing = (V) values.get(key);
+            putIfAbsent(key, value, keySerializer, valueSerializer);
+            return existing;
+        }
+
+        @Override
+        public synchronized <K> boolean containsKey(K key, Serializer<K> keySerializer) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public synchronized <K, V> void put(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+            Long stored = revisions.get(key);
+            values.put(key, value);
+            revisions.put(key, stored == null ? 0L : stored + 1);
+        }
+
+        @Override
+        public synchronized <K, V> V get(K key, Serializer<K> keySerializer, Deserializer<V> valueDeserializer) {
+            @SuppressWarnings("unchecked") V value = (V) values.get(key);
+            return value;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public synchronized <K> boolean remove(K key, Serializer<K> serializer) {
+            revisions.remove(key);
+            return values.remove(key) != null;
+        }
+
+        @Override
+        public long removeByPattern(String regex) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.pontusvision.processors.office365.base;
+
+import com.microsoft.graph.models.extensions.MailFolder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Runs Mailbox.accept() against a stubbed parent chain:
+ *
+ *   root
+ *    +- Inbox
+ *    |   +- Projects
+ *    |       +- Old
+ *    +- Deleted Items (deleteditems)
+ *        +- Trash
+ *            +- Nested
+ *
+ * plus a folder whose parent is not visible (the lookup returns null, as for a 404).
+ */
+public class TestPontusMicrosoftGraphFolderPolicy {
+
+    private final Map<String, MailFolder> folders = new HashMap<>();
+    private final List<String>            lookups = new ArrayList<>();
+    private final Map<String, String>     wellKnownIds = new HashMap<>();
+
+    @Before
+    public void init() {
+        add("root", "Top of Information Store", null);
+        add("inbox", "Inbox", "root");
+        add("projects", "Projects", "inbox");
+        add("old", "Old", "projects");
+        add("deleted", "Deleted Items", "root");
+        add("trash", "Trash", "deleted");
+        add("nested", "Nested", "trash");
+
+        wellKnownIds.put("msgfolderroot", "root");
+        wellKnownIds.put("deleteditems", "deleted");
+    }
+
+    @Test
+    public void testTopLevelFolder() {
+        PontusMicrosoftGraphFolderPolicy.Mailbox mailbox = forMailbox("deleteditems", null, "Inbox(/.*)?", null);
+
+        assertTrue(mailbox.accept(folders.get("inbox")));
+        assertFalse(mailbox.accept(folders.get("deleted")));
+        // the path stops at the root, which is never fetched
+        assertEquals(Collections.emptyList(), lookups);
+    }
+
+    @Test
+    public void testPaths() {
+        PontusMicrosoftGraphFolderPolicy.Mailbox mailbox = forMailbox(null, null, "Inbox(/.*)?", "Inbox/Projects/Old");
+
+        assertTrue(mailbox.accept(folders.get("projects")));
+        assertFalse(mailbox.accept(folders.get("old")));
+        assertFalse(mailbox.accept(folders.get("trash")));
+    }
+
+    @Test
+    public void testNestedUnderExcludedWellKnownFolder() {
+        PontusMicrosoftGraphFolderPolicy.Mailbox mailbox = forMailbox("deleteditems", null, null, null);
+
+        assertFalse(mailbox.accept(folders.get("nested")));
+        assertFalse(mailbox.accept(folders.get("trash")));
+        assertTrue(mailbox.accept(folders.get("old")));
+        // each parent is fetched once per walk, however many of its children are seen
+        assertEquals(Arrays.asList("trash", "deleted", "projects", "inbox"), lookups);
+    }
+
+    @Test
+    public void testParentNotFound() {
+        MailFolder orphan = folder("orphan", "Orphan", "hidden");
+
+        assertTrue(forMailbox("deleteditems", null, null, null).accept(orphan));
+        // the path starts at the folder itself
+        assertTrue(forMailbox(null, null, "Orphan", null).accept(orphan));
+        assertFalse(forMailbox(null, null, "Inbox(/.*)?", null).accept(orphan));
+        assertEquals(Arrays.asList("hidden", "hidden", "hidden"), lookups);
+    }
+
+    @Test
+    public void testExcludedName() {
+        PontusMicrosoftGraphFolderPolicy.Mailbox mailbox = forMailbox(null, "(?i)old", null, null);
+
+        assertFalse(mailbox.accept(folders.get("old")));
+        assertTrue(mailbox.accept(folders.get("projects")));
+        // removed folders carry no displayName, and are always passed on
+        assertTrue(mailbox.accept(folder("gone", null, null)));
+    }
+
+    private PontusMicrosoftGraphFolderPolicy.Mailbox forMailbox(String wellKnownNames, String excludedName,
+                                                                String includedPath, String excludedPath) {
+        return PontusMicrosoftGraphFolderPolicy.compile(wellKnownNames, excludedName, includedPath, excludedPath)
+                .forMailbox(id -> {
+                    lookups.add(id);
+                    return folders.get(id);
+                }, wellKnownIds);
+    }
+
+    private void add(String id, String displayName, String parentFolderId) {
+        folders.put(id, folder(id, displayName, parentFolderId));
+    }
+
+    private static MailFolder folder(String id, String displayName, String parentFolderId) {
+        MailFolder folder = new MailFolder();
+        folder.id = id;
+        folder.displayName = displayName;
+        folder.parentFolderId = parentFolderId;
+        return folder;
+    }
+}
@@ -0,0 +1,75 @@
+package com.pontusvision.processors.office365.base;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestPontusMicrosoftGraphUserScan {
+
+    private static final Pattern CONDITION = Pattern.compile("userPrincipalName (ge|le) '((?:[^']|'')*)'");
+
+    private static final List<String> USER_PRINCIPAL_NAMES = Arrays.asList(
+            "aaron@contoso.com", "a@contoso.com", "b@contoso.com", "bz@contoso.com", "c@contoso.com",
+            "m.smith@contoso.com", "mz@contoso.com", "n@contoso.com", "o'neil@contoso.com", "z@contoso.com",
+            "zz@contoso.com", "0day@contoso.com", "_admin@contoso.com", "~tilde@contoso.com");
+
+    @Test
+    public void testParseBoundaries() {
+        assertEquals(Arrays.asList("b", "m", "o'n"),
+                new ArrayList<>(PontusMicrosoftGraphUserScan.parseBoundaries(" M,b,, O'N ,m")));
+        assertEquals(Collections.emptyList(),
+                new ArrayList<>(PontusMicrosoftGraphUserScan.parseBoundaries(null)));
+    }
+
+    @Test
+    public void testNoBoundaries() {
+        List<String> filters = PontusMicrosoftGraphUserScan.getFilters(Collections.emptySet());
+        assertEquals(1, filters.size());
+        assertNull(filters.get(0));
+    }
+
+    @Test
+    public void testDefaultBoundaries() {
+        assertExactlyOneRange(PontusMicrosoftGraphUserScan.parseBoundaries(
+                PontusMicrosoftGraphUserScan.DEFAULT_BOUNDARIES), 26);
+    }
+
+    @Test
+    public void testUnorderedBoundaries() {
+        assertExactlyOneRange(PontusMicrosoftGraphUserScan.parseBoundaries("n,c,o'n,mz"), 5);
+    }
+
+    private static void assertExactlyOneRange(Collection<String> boundaries, int ranges) {
+        List<String> filters = PontusMicrosoftGraphUserScan.getFilters(boundaries);
+        assertEquals(ranges, filters.size());
+
+        for (String userPrincipalName : USER_PRINCIPAL_NAMES) {
+            int matches = 0;
+            for (String filter : filters) {
+                if (matches(filter, userPrincipalName)) {
+                    matches++;
+                }
+            }
+            assertEquals(userPrincipalName, 1, matches);
+        }
+    }
+
+    /*
+     * Evaluates the ge/le conditions of a filter the way Graph does for the (lower cased) names used here.
+     */
+    private static boolean matches(String filter, String userPrincipalName) {
+        Matcher matcher = CONDITION.matcher(filter);
+        while (matcher.find()) {
+            int comparison = userPrincipalName.compareTo(matcher.group(2).replace("''", "'"));
+            if ("ge".equals(matcher.group(1)) ? comparison < 0 : comparison > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}